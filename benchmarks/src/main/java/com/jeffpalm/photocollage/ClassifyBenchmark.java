@@ -0,0 +1,103 @@
+package com.jeffpalm.photocollage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Classifying library images: cold, which decodes the image, and cached, which only looks its colors up in the color
+ * cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifyBenchmark {
+
+  private final static int NUM_IMAGES = 8;
+
+  @Param({ "640", "2048" })
+  public int imageWidth;
+
+  @Param({ "true", "false" })
+  public boolean singleDecode;
+
+  // Levels per channel colors may be off, so images are decoded subsampled; 0 decodes every pixel.
+  @Param({ "0", "4" })
+  public int colorTolerance;
+
+  private File dir;
+  private List<File> files;
+  private ImageClassifier coldClassifier;
+  private ImageClassifier cachedClassifier;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Synthetic.quiet();
+    dir = Synthetic.tempDir();
+    files = Synthetic.jpegs(dir, NUM_IMAGES, imageWidth, imageWidth * 3 / 4);
+    ImageClassifier.Config config = new ImageClassifier.Config();
+    config.singleDecode = singleDecode;
+    config.colorTolerance = colorTolerance;
+    coldClassifier = new ImageClassifier(config, new ColorCacheStore(new File(dir, "cold")));
+    cachedClassifier = new ImageClassifier(config, new ColorCacheStore(new File(dir, "cached")));
+    for (File file : files) {
+      for (ImageSegment s : ImageSegment.values()) {
+        cachedClassifier.classify(file, s);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Synthetic.delete(dir);
+  }
+
+  private File nextFile() {
+    next = (next + 1) % NUM_IMAGES;
+    return files.get(next);
+  }
+
+  /** Classifies every segment of an image that isn't cached, as the library is first classified. */
+  @Benchmark
+  public int[] classifyCold() throws IOException {
+    File file = nextFile();
+    if (singleDecode) {
+      return coldClassifier.doClassifyAll(file);
+    }
+    int[] res = new int[ImageSegment.values().length];
+    for (ImageSegment s : ImageSegment.values()) {
+      res[s.ordinal()] = coldClassifier.doClassify(file, s).getRGB();
+    }
+    return res;
+  }
+
+  /** Looks up every segment of an image that is cached. */
+  @Benchmark
+  public int classifyCached() throws IOException {
+    File file = nextFile();
+    int res = 0;
+    for (ImageSegment s : ImageSegment.values()) {
+      res += cachedClassifier.classify(file, s).getRGB();
+    }
+    return res;
+  }
+}
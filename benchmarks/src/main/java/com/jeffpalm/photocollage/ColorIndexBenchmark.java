@@ -0,0 +1,77 @@
+package com.jeffpalm.photocollage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries of each kind of {@link ColorIndex} over random colors, at library sizes around where scanning stops beating
+ * a tree. Each call queries the next of a fixed sequence of random colors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorIndexBenchmark {
+
+  private final static int NUM_QUERIES = 1024;
+
+  @Param({ "100", "300", "1000", "3000", "10000", "30000" })
+  public int size;
+
+  // A ColorIndex.Type; JMH can't name nested enums.
+  @Param({ "LINEAR", "KD_TREE", "SCAN" })
+  public String colorIndexType;
+
+  @Param({ "20" })
+  public int threshhold;
+
+  private ColorIndex index;
+  private int[] queries;
+  private int query;
+  private final IntList out = new IntList();
+  private final KNearest heap = new KNearest(16);
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    index = ColorIndex.Type.valueOf(colorIndexType).newIndex(Synthetic.colors(size, 1));
+    queries = Synthetic.colors(NUM_QUERIES, 2);
+  }
+
+  private int nextQuery() {
+    query = (query + 1) & (NUM_QUERIES - 1);
+    return queries[query];
+  }
+
+  @Benchmark
+  public int nearest() {
+    return index.nearest(nextQuery());
+  }
+
+  @Benchmark
+  public int withinDistance() {
+    out.clear();
+    index.withinDistance(nextQuery(), threshhold * threshhold, out);
+    return out.size();
+  }
+
+  @Benchmark
+  public int nearestK() {
+    out.clear();
+    index.nearest(nextQuery(), 16, heap, out);
+    return out.size();
+  }
+}
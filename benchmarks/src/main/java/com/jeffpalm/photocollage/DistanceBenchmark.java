@@ -0,0 +1,66 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The distance between two colors, as {@link Color}s and as packed RGB values. Scores are per pair. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+  private final static int NUM_PAIRS = 1024;
+
+  private int[] a;
+  private int[] b;
+  private Color[] colorsA;
+  private Color[] colorsB;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    a = Synthetic.colors(NUM_PAIRS, 1);
+    b = Synthetic.colors(NUM_PAIRS, 2);
+    colorsA = new Color[NUM_PAIRS];
+    colorsB = new Color[NUM_PAIRS];
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      colorsA[i] = new Color(a[i]);
+      colorsB[i] = new Color(b[i]);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PAIRS)
+  public double distance() {
+    double res = 0;
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      res += Util.distance(colorsA[i], colorsB[i]);
+    }
+    return res;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_PAIRS)
+  public long distanceSquared() {
+    long res = 0;
+    for (int i = 0; i < NUM_PAIRS; i++) {
+      res += Util.distanceSquared(a[i], b[i]);
+    }
+    return res;
+  }
+}
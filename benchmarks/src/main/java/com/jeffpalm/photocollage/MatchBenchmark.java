@@ -0,0 +1,124 @@
+package com.jeffpalm.photocollage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching one cell against libraries of random colors, by itself and with all four neighbors. Each call matches the
+ * next of a fixed sequence of cell colors, the cells of a 64 by 64 grid in row order, keeping images out of the cells
+ * within <code>noRepeatRadius</code> of each other, with or without a {@link CandidateTable} of the threshold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchBenchmark {
+
+  private final static int NUM_CELLS = 4096;
+  private final static int GRID_WIDTH = 64;
+
+  @Param({ "1000", "10000", "100000" })
+  public int librarySize;
+
+  // A ColorIndex.Type; JMH can't name nested enums.
+  @Param({ "LINEAR", "KD_TREE" })
+  public String colorIndexType;
+
+  @Param({ "20" })
+  public int threshhold;
+
+  @Param({ "8" })
+  public int nearestImageCount;
+
+  @Param({ "0", "2" })
+  public int noRepeatRadius;
+
+  @Param({ "false", "true" })
+  public boolean candidateTable;
+
+  private File dir;
+  private Library library;
+  private TileMatcher matcher;
+  private int[] cells;
+  private int cell;
+  private final IntList withinDistance = new IntList();
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Synthetic.quiet();
+    dir = Synthetic.tempDir();
+    library = Synthetic.library(dir, librarySize, ColorIndex.Type.valueOf(colorIndexType),
+        candidateTable ? threshhold : 0);
+    OccupancyGrid grid = noRepeatRadius > 0 ? new OccupancyGrid(GRID_WIDTH, NUM_CELLS / GRID_WIDTH, noRepeatRadius)
+        : null;
+    matcher = new TileMatcher(library, threshhold, nearestImageCount, grid);
+    // Nearby cells have similar colors, as in a photo.
+    cells = new int[NUM_CELLS];
+    int[] steps = Synthetic.colors(NUM_CELLS, 1);
+    int rgb = 0x808080;
+    for (int i = 0; i < NUM_CELLS; i++) {
+      int r = clamp(((rgb >> 16) & 0xff) + ((steps[i] >> 16) & 0xf) - 8);
+      int g = clamp(((rgb >> 8) & 0xff) + ((steps[i] >> 8) & 0xf) - 8);
+      int b = clamp((rgb & 0xff) + (steps[i] & 0xf) - 8);
+      rgb = (r << 16) | (g << 8) | b;
+      cells[i] = rgb;
+    }
+  }
+
+  private static int clamp(int c) {
+    return Math.max(0, Math.min(255, c));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Synthetic.delete(dir);
+  }
+
+  private int nextCell() {
+    cell = (cell + 1) & (NUM_CELLS - 1);
+    return cell;
+  }
+
+  /** Matches a cell with no neighbors, which only looks up the images nearest its color. */
+  @Benchmark
+  public int nearestImages() throws IOException {
+    int i = nextCell();
+    return matcher.match(i % GRID_WIDTH, i / GRID_WIDTH, cells[i], TileMatcher.NO_COLOR, TileMatcher.NO_COLOR,
+        TileMatcher.NO_COLOR, TileMatcher.NO_COLOR);
+  }
+
+  /** Matches a cell whose neighbors are the cells around it in the sequence. */
+  @Benchmark
+  public int nearestImageWithNeighbors() throws IOException {
+    int i = nextCell();
+    int mask = NUM_CELLS - 1;
+    return matcher.match(i % GRID_WIDTH, i / GRID_WIDTH, cells[i], cells[(i - GRID_WIDTH) & mask],
+        cells[(i + 1) & mask], cells[(i + GRID_WIDTH) & mask], cells[(i - 1) & mask]);
+  }
+
+  /** Looks up the images within the threshold of a cell's color in the index. */
+  @Benchmark
+  public int withinDistance() throws IOException {
+    withinDistance.clear();
+    library.getColorIndex(ImageSegment.ALL).withinDistance(cells[nextCell()], threshhold * threshhold,
+        withinDistance);
+    return withinDistance.size();
+  }
+}
@@ -0,0 +1,111 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Composing a collage of <code>cells</code> by <code>cells</code> tiles: writing the tiles alone, and writing them
+ * and encoding the PNG.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+  private final static int NUM_TILES = 64;
+
+  @Param({ "40", "160" })
+  public int cells;
+
+  @Param({ "25" })
+  public int tileSize;
+
+  @Param({ "image", "streaming" })
+  public String output;
+
+  private File dir;
+  private File outFile;
+  private Tile[] tiles;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Synthetic.quiet();
+    dir = Synthetic.tempDir();
+    outFile = new File(dir, "out.png");
+    tiles = new Tile[NUM_TILES];
+    for (int i = 0; i < NUM_TILES; i++) {
+      tiles[i] = Tile.crop(null, Synthetic.image(tileSize, tileSize, BufferedImage.TYPE_INT_RGB, i),
+          tileSize, tileSize);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    Synthetic.delete(dir);
+  }
+
+  private Output newOutput() throws IOException {
+    Output res = output.equals("image") ? new ImageOutput() : new StreamingPngOutput(tileSize);
+    return res.open(outFile, cells * tileSize, cells * tileSize);
+  }
+
+  /** An output opened before each call, so {@link OutputBenchmark#write} doesn't measure allocating it. */
+  @State(Scope.Thread)
+  public static class OpenOutput {
+    Output output;
+
+    @Setup(Level.Invocation)
+    public void open(OutputBenchmark benchmark) throws IOException {
+      output = benchmark.newOutput();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+      output.close();
+    }
+  }
+
+  private void writeAll(Output out) throws IOException {
+    for (int y = 0; y < cells; y++) {
+      for (int x = 0; x < cells; x++) {
+        out.write(tiles[(y * 31 + x) % NUM_TILES], x * tileSize, y * tileSize);
+      }
+    }
+  }
+
+  /**
+   * Writes every tile into an output opened beforehand. The streaming output encodes each band as the next one is
+   * started, so this includes all but its last band.
+   */
+  @Benchmark
+  public void write(OpenOutput openOutput) throws IOException {
+    writeAll(openOutput.output);
+  }
+
+  /** Opens an output, writes every tile and encodes the PNG. */
+  @Benchmark
+  public void writeAndClose() throws IOException {
+    Output out = newOutput();
+    writeAll(out);
+    out.close();
+  }
+}
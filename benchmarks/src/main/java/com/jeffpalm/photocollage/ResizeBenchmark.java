@@ -0,0 +1,104 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resizing images to thumbnails and to the input width. Decoded JPEGs are usually <code>TYPE_3BYTE_BGR</code>, so that
+ * is measured along with <code>TYPE_INT_RGB</code>. <code>graphics2d</code> is the single bilinear
+ * <code>drawImage</code> that {@link Util#resize} used to do, as a baseline for the {@link Resizer} methods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResizeBenchmark {
+
+  @Param({ "640", "2048" })
+  public int sourceWidth;
+
+  @Param({ "25", "200" })
+  public int size;
+
+  @Param({ "INT_RGB", "3BYTE_BGR" })
+  public String imageType;
+
+  @Param({ "graphics2d", "AREA_AVERAGE", "PROGRESSIVE" })
+  public String method;
+
+  // Threads to resize bands of rows on; 1 resizes on the benchmark thread.
+  @Param({ "1" })
+  public int threads;
+
+  private BufferedImage image;
+  private ForkJoinPool pool;
+  private Resizer resizer;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Synthetic.quiet();
+    int type = imageType.equals("INT_RGB") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR;
+    image = Synthetic.image(sourceWidth, sourceWidth * 3 / 4, type, 1);
+    pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    if (!method.equals("graphics2d")) {
+      resizer = new Resizer(Resizer.Method.valueOf(method), pool);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public BufferedImage resize() throws IOException {
+    if (resizer == null) {
+      return graphics2d(image, size);
+    }
+    return Util.resize(image, size, resizer);
+  }
+
+  /** The old Util.resize. */
+  private static BufferedImage graphics2d(BufferedImage img, int size) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    int newWidth, newHeight;
+    if (width < height) {
+      newWidth = size;
+      newHeight = (int) (height * (1.0 * size / width));
+    } else {
+      newWidth = (int) (width * (1.0 * size / height));
+      newHeight = size;
+    }
+    BufferedImage dimg = new BufferedImage(newWidth, newHeight, img.getType());
+    Graphics2D g = dimg.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.drawImage(img, 0, 0, newWidth, newHeight, 0, 0, width, height, null);
+    g.dispose();
+    g.setComposite(AlphaComposite.Src);
+    return dimg;
+  }
+}
@@ -0,0 +1,124 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/** Inputs for the benchmarks, generated from fixed seeds so every run measures the same work. */
+final class Synthetic {
+
+  private Synthetic() {}
+
+  /** Returns <code>n</code> random packed RGB colors. */
+  static int[] colors(int n, long seed) {
+    Random random = new Random(seed);
+    int[] res = new int[n];
+    for (int i = 0; i < n; i++) {
+      res[i] = random.nextInt(0x1000000);
+    }
+    return res;
+  }
+
+  /** Returns a photo-like image: a smooth gradient between random corner colors with some noise. */
+  static BufferedImage image(int width, int height, int type, long seed) {
+    Random random = new Random(seed);
+    int[] corners = colors(4, seed);
+    BufferedImage image = new BufferedImage(width, height, type);
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int rgb = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+          float top = lerp(channel(corners[0], shift), channel(corners[1], shift), x, width);
+          float bottom = lerp(channel(corners[2], shift), channel(corners[3], shift), x, width);
+          int c = (int) (top + (bottom - top) * y / height) + random.nextInt(17) - 8;
+          rgb |= Math.max(0, Math.min(255, c)) << shift;
+        }
+        row[x] = rgb;
+      }
+      image.setRGB(0, y, width, 1, row, 0, width);
+    }
+    return image;
+  }
+
+  private static int channel(int rgb, int shift) {
+    return (rgb >> shift) & 0xff;
+  }
+
+  private static float lerp(int a, int b, int i, int n) {
+    return a + (b - a) * (float) i / n;
+  }
+
+  /** Writes <code>n</code> JPEGs of <code>width</code> by <code>height</code> to <code>dir</code>. */
+  static List<File> jpegs(File dir, int n, int width, int height) throws IOException {
+    List<File> res = new ArrayList<File>();
+    for (int i = 0; i < n; i++) {
+      File file = new File(dir, "image" + i + ".jpg");
+      ImageIO.write(image(width, height, BufferedImage.TYPE_INT_RGB, i), "jpg", file);
+      res.add(file);
+    }
+    return res;
+  }
+
+  /**
+   * Returns a library of <code>n</code> images with random segment colors. The images don't exist; their colors are
+   * put straight into a color cache under <code>dir</code>.
+   */
+  static Library library(File dir, int n, ColorIndex.Type colorIndexType) throws IOException {
+    return library(dir, n, colorIndexType, 0);
+  }
+
+  /** Like {@link #library(File, int, ColorIndex.Type)}, wrapping the indexes in candidate tables of the radius. */
+  static Library library(File dir, int n, ColorIndex.Type colorIndexType, int candidateRadius) throws IOException {
+    ColorCacheStore colorCache = new ColorCacheStore(new File(dir, "colors"));
+    ImageClassifier imageClassifier = new ImageClassifier(new ImageClassifier.Config(), colorCache);
+    int numSegments = ImageSegment.values().length;
+    int[] colors = colors(n * numSegments, n);
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < n; i++) {
+      File file = new File(dir, "missing" + i + ".jpg");
+      int[] segmentColors = new int[numSegments];
+      System.arraycopy(colors, i * numSegments, segmentColors, 0, numSegments);
+      colorCache.put(file, segmentColors);
+      images.add(new ClassifiedImage(file, imageClassifier));
+    }
+    Library library = new Library(images, colorIndexType, ColorMetric.Type.RGB.newMetric(), candidateRadius);
+    for (ImageSegment s : ImageSegment.values()) {
+      library.getColorIndex(s);
+    }
+    return library;
+  }
+
+  static File tempDir() throws IOException {
+    return Files.createTempDirectory("photocollage-bench").toFile();
+  }
+
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /** Drops what the code under test logs, which would otherwise be measured with it. */
+  static void quiet() {
+    System.setErr(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    }));
+  }
+}
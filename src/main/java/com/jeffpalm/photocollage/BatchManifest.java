@@ -0,0 +1,65 @@
+package com.jeffpalm.photocollage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The targets of a batch, one per line: an input image followed by the options of its collage, separated by
+ * whitespace. Blank lines and lines starting with <code>#</code> are skipped, and relative paths are resolved against
+ * the directory of the manifest.
+ */
+final class BatchManifest {
+
+  /** An input image and the options of its collage. */
+  static final class Entry {
+    final File target;
+    final List<String> args;
+
+    Entry(File target, List<String> args) {
+      this.target = target;
+      this.args = args;
+    }
+  }
+
+  private BatchManifest() {}
+
+  static List<Entry> read(File manifest) throws IOException {
+    File dir = manifest.getAbsoluteFile().getParentFile();
+    List<Entry> entries = new ArrayList<Entry>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest),
+        StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Entry entry = parse(line, dir);
+        if (entry != null) {
+          entries.add(entry);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  /** Returns the entry of one line, resolving a relative target against <code>dir</code>, or null if it has none. */
+  static Entry parse(String line, File dir) {
+    line = line.trim();
+    if (line.isEmpty() || line.startsWith("#")) {
+      return null;
+    }
+    String[] parts = line.split("\\s+");
+    File target = new File(parts[0]);
+    if (!target.isAbsolute()) {
+      target = new File(dir, parts[0]);
+    }
+    return new Entry(target, Arrays.asList(parts).subList(1, parts.length));
+  }
+}
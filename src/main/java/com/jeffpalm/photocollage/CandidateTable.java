@@ -0,0 +1,151 @@
+package com.jeffpalm.photocollage;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ColorIndex} that answers queries from the colors of a cube of the color space around the query, 32 levels
+ * on a side, instead of the whole library. Each cube holds the ids of the colors within <code>radius</code> of any
+ * color in it, found in the index it wraps the first time the cube is queried. A collage's colors fall into few cubes,
+ * so after the first few cells a query scans a short list; queries further than <code>radius</code> fall through to
+ * the wrapped index.
+ *
+ * <p>
+ * Answers are the same as the wrapped index's. Queries may come from several threads.
+ */
+final class CandidateTable implements ColorIndex {
+
+  private final static Metrics.Timer BUILD = Metrics.timer("candidates.build");
+  private final static Metrics.Counter HITS = Metrics.counter("candidates.hits");
+  private final static Metrics.Counter MISSES = Metrics.counter("candidates.misses");
+
+  private final static int BITS = 5;
+  private final static int SHIFT = 8 - BITS;
+  private final static int BINS = 1 << (3 * BITS);
+  private final static int HALF_WIDTH = 1 << (SHIFT - 1);
+  // The farthest a color is from the center of its cube, rounded up.
+  private final static int REACH = (int) Math.ceil(HALF_WIDTH * Math.sqrt(3));
+
+  private final ColorIndex index;
+  private final int radius;
+  private final AtomicReferenceArray<int[]> bins = new AtomicReferenceArray<int[]>(BINS);
+  private final AtomicLong binsBuilt = new AtomicLong();
+  private final AtomicLong idsKept = new AtomicLong();
+  private final AtomicLong buildNanos = new AtomicLong();
+
+  CandidateTable(ColorIndex index, int radius) {
+    if (radius <= 0) {
+      throw new IllegalArgumentException("radius must be positive: " + radius);
+    }
+    this.index = index;
+    this.radius = radius;
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public int getColor(int id) {
+    return index.getColor(id);
+  }
+
+  /** Returns the ids within the radius of the cube of <code>rgb</code>, in increasing order. */
+  private int[] candidates(int rgb) {
+    int bin = ((rgb >> (16 + SHIFT)) & 0x1f) << (2 * BITS) | ((rgb >> (8 + SHIFT)) & 0x1f) << BITS
+        | ((rgb >> SHIFT) & 0x1f);
+    int[] res = bins.get(bin);
+    if (res == null) {
+      long start = System.nanoTime();
+      long timer = BUILD.start();
+      int center = ((rgb >> 16 & 0xff) >> SHIFT << SHIFT | HALF_WIDTH) << 16
+          | ((rgb >> 8 & 0xff) >> SHIFT << SHIFT | HALF_WIDTH) << 8 | ((rgb & 0xff) >> SHIFT << SHIFT | HALF_WIDTH);
+      IntList ids = new IntList();
+      index.withinDistance(center, (radius + REACH) * (radius + REACH), ids);
+      res = ids.toArray();
+      // Two threads may build the same cube; either's list will do.
+      if (bins.compareAndSet(bin, null, res)) {
+        binsBuilt.incrementAndGet();
+        idsKept.addAndGet(res.length);
+        buildNanos.addAndGet(System.nanoTime() - start);
+      }
+      BUILD.stop(timer);
+    }
+    return res;
+  }
+
+  @Override
+  public int nearest(int rgb) {
+    int[] ids = candidates(rgb);
+    int nearestDistance = Integer.MAX_VALUE;
+    int nearestId = -1;
+    for (int id : ids) {
+      int dist = Util.distanceSquared(rgb, index.getColor(id));
+      if (dist < nearestDistance) {
+        nearestDistance = dist;
+        nearestId = id;
+      }
+    }
+    // Anything nearer is within the radius too, so it's in the cube.
+    if (nearestDistance < radius * radius) {
+      HITS.increment();
+      return nearestId;
+    }
+    MISSES.increment();
+    return index.nearest(rgb);
+  }
+
+  @Override
+  public void nearest(int rgb, int k, KNearest heap, IntList out) {
+    index.nearest(rgb, k, heap, out);
+  }
+
+  @Override
+  public void nearest(int rgb, int k, int maxDistanceSquared, KNearest heap, IntList out) {
+    if (maxDistanceSquared <= radius * radius) {
+      int start = out.size();
+      heap.reset(k);
+      for (int id : candidates(rgb)) {
+        int dist = Util.distanceSquared(rgb, index.getColor(id));
+        if (dist < maxDistanceSquared) {
+          out.add(id);
+        } else {
+          heap.offer(dist, id);
+        }
+      }
+      // Anything nearer than the farthest kept is within the radius too, so it's in the cube.
+      if (out.size() - start >= k || (heap.isFull() && heap.worstDistance() < radius * radius)) {
+        HITS.increment();
+        heap.drainUnionTo(out, start);
+        return;
+      }
+      out.truncate(start);
+    }
+    MISSES.increment();
+    index.nearest(rgb, k, maxDistanceSquared, heap, out);
+  }
+
+  @Override
+  public void withinDistance(int rgb, int maxDistanceSquared, IntList out) {
+    if (maxDistanceSquared > radius * radius) {
+      MISSES.increment();
+      index.withinDistance(rgb, maxDistanceSquared, out);
+      return;
+    }
+    HITS.increment();
+    for (int id : candidates(rgb)) {
+      if (Util.distanceSquared(rgb, index.getColor(id)) < maxDistanceSquared) {
+        out.add(id);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    long ids = idsKept.get();
+    return String.format(Locale.ROOT, "CandidateTable(/*radius=*/%d, /*bins=*/%d, /*ids=*/%d, /*bytes=*/%d, "
+        + "/*buildMs=*/%.1f)", radius, binsBuilt.get(), ids, 4 * ids + 4L * BINS, buildNanos.get() / 1e6);
+  }
+}
@@ -4,8 +4,7 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -15,7 +14,6 @@ final class ClassifiedImage implements Comparable<ClassifiedImage> {
 
   private final File file;
   private final ImageClassifier imageClassifier;
-  private Color color;
 
   ClassifiedImage(File file, ImageClassifier imageClassifier) {
     this.file = file;
@@ -30,29 +28,47 @@ final class ClassifiedImage implements Comparable<ClassifiedImage> {
     return ImageIO.read(file);
   }
 
-  public File getResizedImage(int width) throws IOException {
-    return imageCache.getResizedImage(this, width);
+  /** Returns this image decoded only as large as resizing it to <code>size</code> needs. */
+  public BufferedImage getBufferedImage(int size) throws IOException {
+    return ImageDecoder.decode(file, size);
+  }
+
+  /** Returns a thumbnail of this image resized to <code>width</code> and cropped to <code>height</code>. */
+  public File getResizedImage(int width, int height) throws IOException {
+    return imageCache.getResizedImage(this, width, height);
   }
 
   public BufferedImage resize(int width) throws IOException {
-    return Util.resize(getBufferedImage(), width);
+    return Util.resize(getBufferedImage(width), width);
   }
 
-  private final Map<ImageSegment, Color> segmentsTocolors = new HashMap<>();
-  public Color getColor(ImageSegment s) throws IOException {
-    Color color = segmentsTocolors.get(s);
-    if (color == null) {
-      color = imageClassifier.classify(file, s);
-      segmentsTocolors.put(s, color);
+  private final static int UNCLASSIFIED = -1;
+
+  // Packed RGB colors indexed by segment ordinal.
+  private final int[] segmentColors = newSegmentColors();
+
+  private static int[] newSegmentColors() {
+    int[] res = new int[ImageSegment.values().length];
+    Arrays.fill(res, UNCLASSIFIED);
+    return res;
+  }
+
+  /** Returns the packed RGB color of segment <code>s</code>. */
+  public int getRGB(ImageSegment s) throws IOException {
+    int rgb = segmentColors[s.ordinal()];
+    if (rgb == UNCLASSIFIED) {
+      rgb = imageClassifier.classify(file, s).getRGB() & 0xffffff;
+      segmentColors[s.ordinal()] = rgb;
     }
-    return color;
+    return rgb;
+  }
+
+  public Color getColor(ImageSegment s) throws IOException {
+    return new Color(getRGB(s));
   }
 
   public Color getColor() throws IOException {
-    if (color == null) {
-      color = imageClassifier.classify(file, ImageSegment.ALL);
-    }
-    return color;
+    return getColor(ImageSegment.ALL);
   }
 
   @Override
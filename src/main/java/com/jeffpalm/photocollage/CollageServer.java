@@ -0,0 +1,359 @@
+package com.jeffpalm.photocollage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Makes collages on request over HTTP on the loopback interface, so the library only has to be loaded and indexed once
+ * however many collages are made from it. Jobs are queued and run <code>parallelism</code> at a time:
+ *
+ * <ul>
+ * <li><code>POST /jobs</code> with a line of a batch manifest as the body queues a job and returns it.
+ * <li><code>GET /jobs</code> returns every job, and <code>GET /jobs/&lt;id&gt;</code> one of them.
+ * <li><code>DELETE /jobs/&lt;id&gt;</code> cancels a job, stopping it at the next row of cells if it's running.
+ * </ul>
+ *
+ * Jobs are returned as JSON with their state, timings, and the files written once they're done, and only the last
+ * {@link #RETAINED_JOBS} to end are kept.
+ *
+ * <p>
+ * Since jobs write files, requests from web pages are refused: those with an <code>Origin</code> header, and those that
+ * queue or cancel jobs without an <code>X-Requested-With</code> header, which pages can't send to another origin
+ * without permission this never gives.
+ */
+final class CollageServer {
+
+  private final static Logger LOG = Logger.getLogger(CollageServer.class.getName());
+  private final static Metrics.Timer JOB = Metrics.timer("server.job");
+
+  /** How many ended jobs are kept to be looked up. */
+  final static int RETAINED_JOBS = 100;
+
+  /**
+   * Makes the collages of a target with the options of its job and returns the files written, stopping with a
+   * {@link CancellationException} once <code>cancelled</code> is set. Renders aren't interrupted, since they share
+   * open files with each other.
+   */
+  interface Renderer {
+    List<File> render(File target, List<String> args, AtomicBoolean cancelled) throws IOException,
+        InterruptedException;
+  }
+
+  enum State {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  final class Job implements Runnable {
+    private final int id;
+    private final File target;
+    private final List<String> args;
+    private final long submitMillis = System.currentTimeMillis();
+    private State state = State.QUEUED;
+    private long startMillis;
+    private long endMillis;
+    private List<File> outputs = Collections.emptyList();
+    private String error;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    Job(int id, File target, List<String> args) {
+      this.id = id;
+      this.target = target;
+      this.args = args;
+    }
+
+    synchronized State getState() {
+      return state;
+    }
+
+    synchronized boolean hasEnded() {
+      return endMillis != 0;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (state != State.QUEUED) {
+          return;
+        }
+        state = State.RUNNING;
+        startMillis = System.currentTimeMillis();
+      }
+      long timer = JOB.start();
+      State end;
+      List<File> res = Collections.emptyList();
+      String failure = null;
+      try {
+        res = renderer.render(target, args, cancelled);
+        end = State.DONE;
+      } catch (CancellationException e) {
+        end = State.CANCELLED;
+      } catch (InterruptedException e) {
+        end = State.CANCELLED;
+      } catch (Exception e) {
+        end = State.FAILED;
+        failure = e.toString();
+      }
+      JOB.stop(timer);
+      synchronized (this) {
+        // Cancelling while a render finishes is too late to stop it.
+        state = end == State.DONE || state == State.RUNNING ? end : state;
+        outputs = res;
+        error = failure;
+        endMillis = System.currentTimeMillis();
+      }
+      LOG.infof("Job %d of %s %s in %dms", id, target, end.toString().toLowerCase(Locale.ROOT),
+          endMillis - startMillis);
+    }
+
+    /** Cancels this job, stopping its render if it's running, and returns whether it hadn't ended yet. */
+    synchronized boolean cancel() {
+      if (state == State.QUEUED) {
+        endMillis = System.currentTimeMillis();
+      } else if (state != State.RUNNING) {
+        return false;
+      }
+      state = State.CANCELLED;
+      cancelled.set(true);
+      return true;
+    }
+
+    synchronized String toJson() {
+      long now = System.currentTimeMillis();
+      StringBuilder res = new StringBuilder();
+      res.append("{\"id\": ").append(id).append(", \"target\": ").append(quote(target.getPath()));
+      res.append(", \"args\": [");
+      String sep = "";
+      for (String arg : args) {
+        res.append(sep).append(quote(arg));
+        sep = ", ";
+      }
+      res.append("], \"state\": ").append(quote(state.toString().toLowerCase(Locale.ROOT)));
+      res.append(", \"queuedMs\": ").append((startMillis != 0 ? startMillis : endMillis != 0 ? endMillis : now)
+          - submitMillis);
+      if (startMillis != 0) {
+        res.append(", \"runMs\": ").append((endMillis != 0 ? endMillis : now) - startMillis);
+      }
+      res.append(", \"outputs\": [");
+      sep = "";
+      for (File output : outputs) {
+        res.append(sep).append(quote(output.getPath()));
+        sep = ", ";
+      }
+      res.append("]");
+      if (error != null) {
+        res.append(", \"error\": ").append(quote(error));
+      }
+      return res.append("}").toString();
+    }
+  }
+
+  private final Renderer renderer;
+  private final ExecutorService executor;
+  private final HttpServer server;
+  private final AtomicInteger nextId = new AtomicInteger(1);
+  private final Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /** Listens on <code>port</code> of the loopback interface, or any free port if it's 0, once started. */
+  CollageServer(Renderer renderer, int port, int parallelism) throws IOException {
+    this.renderer = renderer;
+    this.executor = Executors.newFixedThreadPool(parallelism > 0 ? parallelism : 1);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/jobs", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleJobs(exchange);
+        } catch (RuntimeException e) {
+          respond(exchange, 500, "{\"error\": " + quote(e.toString()) + "}");
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  void start() {
+    server.start();
+    LOG.infof("Serving on http://%s:%d/jobs", server.getAddress().getHostString(), getPort());
+  }
+
+  /** Serves until the thread is interrupted. */
+  void run() throws InterruptedException {
+    start();
+    try {
+      stopped.await();
+    } finally {
+      stop();
+    }
+  }
+
+  /** Stops taking requests and cancels the jobs that haven't ended. */
+  void stop() {
+    server.stop(0);
+    synchronized (jobs) {
+      for (Job job : jobs.values()) {
+        job.cancel();
+      }
+    }
+    executor.shutdown();
+    stopped.countDown();
+  }
+
+  Job submit(File target, List<String> args) {
+    Job job = new Job(nextId.getAndIncrement(), target, args);
+    synchronized (jobs) {
+      jobs.put(job.id, job);
+      evictEndedJobs();
+    }
+    executor.execute(job);
+    return job;
+  }
+
+  /** Forgets the jobs that ended first while more than {@link #RETAINED_JOBS} have ended. Holds the lock on jobs. */
+  private void evictEndedJobs() {
+    int ended = 0;
+    for (Job job : jobs.values()) {
+      if (job.hasEnded()) {
+        ended++;
+      }
+    }
+    for (Iterator<Job> it = jobs.values().iterator(); ended > RETAINED_JOBS && it.hasNext();) {
+      if (it.next().hasEnded()) {
+        it.remove();
+        ended--;
+      }
+    }
+  }
+
+  Job getJob(int id) {
+    synchronized (jobs) {
+      return jobs.get(id);
+    }
+  }
+
+  private void handleJobs(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    if (exchange.getRequestHeaders().containsKey("Origin")) {
+      respond(exchange, 403, "{\"error\": \"requests from web pages are refused\"}");
+      return;
+    }
+    if ((method.equals("POST") || method.equals("DELETE"))
+        && !exchange.getRequestHeaders().containsKey("X-Requested-With")) {
+      respond(exchange, 403, "{\"error\": \"an X-Requested-With header is required\"}");
+      return;
+    }
+    if (path.equals("/jobs") || path.equals("/jobs/")) {
+      if (method.equals("GET")) {
+        List<Job> all;
+        synchronized (jobs) {
+          all = new ArrayList<Job>(jobs.values());
+        }
+        StringBuilder res = new StringBuilder("[");
+        String sep = "\n  ";
+        for (Job job : all) {
+          res.append(sep).append(job.toJson());
+          sep = ",\n  ";
+        }
+        respond(exchange, 200, res.append(all.isEmpty() ? "]" : "\n]").toString());
+      } else if (method.equals("POST")) {
+        String line = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        BatchManifest.Entry entry = BatchManifest.parse(line, new File("").getAbsoluteFile());
+        if (entry == null) {
+          respond(exchange, 400, "{\"error\": \"a target is required\"}");
+          return;
+        }
+        respond(exchange, 201, submit(entry.target, entry.args).toJson());
+      } else {
+        respond(exchange, 405, "{\"error\": \"GET or POST\"}");
+      }
+      return;
+    }
+    Job job = null;
+    try {
+      job = getJob(Integer.parseInt(path.substring("/jobs/".length())));
+    } catch (NumberFormatException e) {
+      // Not found.
+    }
+    if (job == null) {
+      respond(exchange, 404, "{\"error\": \"no such job\"}");
+    } else if (method.equals("GET")) {
+      respond(exchange, 200, job.toJson());
+    } else if (method.equals("DELETE")) {
+      job.cancel();
+      respond(exchange, 200, job.toJson());
+    } else {
+      respond(exchange, 405, "{\"error\": \"GET or DELETE\"}");
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0;) {
+      res.write(buf, 0, n);
+    }
+    return res.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  static String quote(String s) {
+    StringBuilder res = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        res.append('\\').append(c);
+      } else if (c == '\n') {
+        res.append("\\n");
+      } else if (c == '\r') {
+        res.append("\\r");
+      } else if (c == '\t') {
+        res.append("\\t");
+      } else if (c < 0x20) {
+        res.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        res.append(c);
+      }
+    }
+    return res.append('"').toString();
+  }
+}
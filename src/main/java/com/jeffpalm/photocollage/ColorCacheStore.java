@@ -0,0 +1,728 @@
+package com.jeffpalm.photocollage;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent map from image files to their segment colors that several processes can share and extend.
+ *
+ * <p>
+ * Entries live in two files next to each other:
+ * <ul>
+ * <li><code>name.db</code>, a compacted snapshot holding an open-addressed hash table of entries. It is memory-mapped
+ * and probed in place, so opening the store doesn't read it.
+ * <li><code>name.journal</code>, an append-only log of entries written since the snapshot. Each record carries a
+ * CRC, so a record torn by a crashed writer is dropped.
+ * </ul>
+ * Writers append under an exclusive lock on the journal, readers pick up other processes' records under a shared
+ * lock, and once the journal grows past half the snapshot it is compacted into a new snapshot which is renamed over
+ * the old one. Both files carry a generation number so readers notice a compaction.
+ *
+ * <p>
+ * Every entry records the size and modification time of its file, and is ignored once the file changes, and the
+ * color tolerance its colors were classified with, so they aren't served to a stricter classifier. Besides
+ * the file's colors it can hold the SHA-1 of its contents, so thumbnails can be found without reading the file.
+ */
+final class ColorCacheStore implements Closeable {
+
+  private final static Logger LOG = Logger.getLogger(ColorCacheStore.class.getName());
+  private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final static int SNAPSHOT_MAGIC = 0x50434333; // PCC3
+  private final static int JOURNAL_MAGIC = 0x50434a33; // PCJ3
+  private final static int SNAPSHOT_HEADER_SIZE = 4 + 8 + 4 + 4;
+  private final static int JOURNAL_HEADER_SIZE = 4 + 8;
+  private final static int SLOT_SIZE = 8;
+  private final static long MIN_COMPACTION_JOURNAL_SIZE = 1 << 20;
+  private final static int AUTO_FLUSH_ENTRIES = 1024;
+  // How stale a hit may be before other processes' records are looked for.
+  private final static long DEFAULT_REFRESH_MILLIS = 1000;
+
+  final static int NUM_COLORS = ImageSegment.values().length;
+  // The colors of segments that weren't classified.
+  private final static int UNCLASSIFIED = -1;
+  private final static int HASH_SIZE = 20;
+  // Size, modification time, color tolerance, colors and content hash.
+  private final static int ENTRY_SIZE = 8 + 8 + 4 + 4 * NUM_COLORS + HASH_SIZE;
+
+  private final static class Entry {
+    final long size;
+    final long lastModified;
+    // How many levels per channel the colors may be off.
+    final int colorTolerance;
+    final int[] colors;
+    // The SHA-1 of the file, or null if it wasn't hashed.
+    final byte[] contentHash;
+
+    Entry(long size, long lastModified, int colorTolerance, int[] colors, byte[] contentHash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.colorTolerance = colorTolerance;
+      this.colors = colors;
+      this.contentHash = contentHash;
+    }
+
+    boolean isValidFor(File file) {
+      return size == file.length() && lastModified == file.lastModified();
+    }
+
+    boolean isValidFor(long size, long lastModified) {
+      return this.size == size && this.lastModified == lastModified;
+    }
+  }
+
+  private final File snapshotFile;
+  private final File journalFile;
+  private final File legacyFile;
+
+  // The mapped snapshot, or null if there is none.
+  private MappedByteBuffer snapshot;
+  private long snapshotGeneration;
+  private int snapshotEntries;
+  private int snapshotSlots;
+  // Whether the snapshot file is of another format or damaged, so it's read as missing until it can be replaced.
+  private boolean snapshotUnreadable;
+
+  // Entries read from the journal, which override the snapshot.
+  private final Map<String, Entry> journal = new HashMap<String, Entry>();
+  private long journalPosition;
+  private RandomAccessFile journalOut;
+
+  // Entries put since the last flush.
+  private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+
+  private final long refreshNanos;
+  private long lastRefreshNanos;
+
+  ColorCacheStore(File base) {
+    this(base, DEFAULT_REFRESH_MILLIS);
+  }
+
+  /**
+   * Opens the store at <code>base</code>, which looks for records other processes appended before a miss, and before
+   * a hit at most once per <code>refreshMillis</code>.
+   */
+  ColorCacheStore(File base, long refreshMillis) {
+    this.refreshNanos = refreshMillis * 1000000;
+    this.lastRefreshNanos = System.nanoTime();
+    this.snapshotFile = new File(base.getPath() + ".db");
+    this.journalFile = new File(base.getPath() + ".journal");
+    this.legacyFile = base;
+    try {
+      mapSnapshot();
+      if (journalFile.exists()) {
+        refresh();
+      } else if (snapshot == null && legacyFile.isFile()) {
+        importLegacy();
+      }
+    } catch (IOException e) {
+      LOG.warn("ignoring unreadable color cache " + snapshotFile + ": " + e);
+      snapshot = null;
+      journal.clear();
+    }
+  }
+
+  /** Returns the number of entries, counting superseded ones in the snapshot. */
+  public synchronized int size() {
+    return snapshotEntries + journal.size() + pending.size();
+  }
+
+  /**
+   * Returns a copy of the colors stored for <code>file</code> indexed by segment ordinal, or null if there are none
+   * or the file changed since they were stored.
+   */
+  public int[] get(File file) {
+    return get(file, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the colors stored for <code>file</code> like {@link #get(File)}, or null if they were classified with a
+   * looser color tolerance than <code>maxColorTolerance</code>.
+   */
+  public int[] get(File file, int maxColorTolerance) {
+    Entry entry = getEntry(file);
+    return entry != null && entry.colorTolerance <= maxColorTolerance ? entry.colors.clone() : null;
+  }
+
+  /** Returns the entry of <code>file</code> if it's still valid. */
+  private Entry getEntry(File file) {
+    String key = file.getAbsolutePath();
+    Entry entry;
+    synchronized (this) {
+      entry = lookup(key);
+      // Another process may have replaced an entry we already hold, but checking on every hit would put a stat of the
+      // journal in front of every lookup, so hits only check once in a while.
+      if (entry == null || !entry.isValidFor(file) || System.nanoTime() - lastRefreshNanos >= refreshNanos) {
+        try {
+          refreshIfChanged();
+        } catch (IOException e) {
+          LOG.warn("can't read " + journalFile + ": " + e);
+        }
+        entry = lookup(key);
+      }
+    }
+    return entry != null && entry.isValidFor(file) ? entry : null;
+  }
+
+  /** Stores the colors of <code>file</code> classified from every pixel, keeping its content hash. */
+  public void put(File file, int[] colors) throws IOException {
+    put(file, colors, 0);
+  }
+
+  /**
+   * Stores the colors of <code>file</code>, which may be <code>colorTolerance</code> levels per channel off, keeping
+   * its content hash.
+   */
+  public void put(File file, int[] colors, int colorTolerance) throws IOException {
+    put(file, file.length(), file.lastModified(), colorTolerance, colors.clone(), null);
+  }
+
+  /**
+   * Returns the hex SHA-1 stored for <code>file</code>, or null if there is none or the file changed since it was
+   * stored.
+   */
+  public String getContentHash(File file) {
+    Entry entry = getEntry(file);
+    if (entry == null || entry.contentHash == null) {
+      return null;
+    }
+    StringBuilder res = new StringBuilder();
+    for (byte b : entry.contentHash) {
+      res.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return res.toString();
+  }
+
+  /**
+   * Stores the hex SHA-1 of <code>file</code> as it was at <code>size</code> and <code>lastModified</code>, keeping its
+   * colors.
+   */
+  public void putContentHash(File file, long size, long lastModified, String hash) throws IOException {
+    byte[] contentHash = new byte[HASH_SIZE];
+    for (int i = 0; i < HASH_SIZE; i++) {
+      contentHash[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+    }
+    put(file, size, lastModified, 0, null, contentHash);
+  }
+
+  /** Stores an entry, taking the colors or hash left null from the entry of the same version of the file. */
+  private void put(File file, long size, long lastModified, int colorTolerance, int[] colors, byte[] contentHash)
+      throws IOException {
+    String key = file.getAbsolutePath();
+    boolean flush;
+    synchronized (this) {
+      Entry old = lookup(key);
+      if (old != null && old.isValidFor(size, lastModified)) {
+        if (colors == null) {
+          colors = old.colors;
+          colorTolerance = old.colorTolerance;
+        }
+        contentHash = contentHash != null ? contentHash : old.contentHash;
+      } else if (colors == null) {
+        colors = new int[NUM_COLORS];
+        Arrays.fill(colors, UNCLASSIFIED);
+      }
+      pending.put(key, new Entry(size, lastModified, colorTolerance, colors, contentHash));
+      flush = pending.size() >= AUTO_FLUSH_ENTRIES;
+    }
+    if (flush) {
+      flush();
+    }
+  }
+
+  private Entry lookup(String key) {
+    Entry entry = pending.get(key);
+    if (entry == null) {
+      entry = journal.get(key);
+    }
+    if (entry == null) {
+      entry = lookupSnapshot(key);
+    }
+    return entry;
+  }
+
+  /** Appends the pending entries to the journal, compacting it if it has grown too large. */
+  public synchronized void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    RandomAccessFile out = openJournal();
+    FileLock lock = out.getChannel().lock();
+    try {
+      readJournal(out.getChannel(), true);
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      for (Map.Entry<String, Entry> e : pending.entrySet()) {
+        byte[] record = encodeRecord(e.getKey(), e.getValue());
+        if (buf.remaining() < record.length) {
+          buf.flip();
+          journalPosition += writeFully(out.getChannel(), buf, journalPosition);
+          buf = ByteBuffer.allocate(Math.max(buf.capacity(), record.length));
+        }
+        buf.put(record);
+        journal.put(e.getKey(), e.getValue());
+      }
+      buf.flip();
+      journalPosition += writeFully(out.getChannel(), buf, journalPosition);
+      out.getChannel().force(false);
+      LOG.infof("appended %d entries to %s", pending.size(), journalFile);
+      pending.clear();
+      if (journalPosition > Math.max(MIN_COMPACTION_JOURNAL_SIZE, snapshotSize() / 2)) {
+        compactLocked(out.getChannel());
+      }
+    } finally {
+      lock.release();
+    }
+  }
+
+  /** Merges the journal into a new snapshot, dropping entries of files that changed or no longer exist. */
+  public synchronized void compact() throws IOException {
+    flush();
+    RandomAccessFile out = openJournal();
+    FileLock lock = out.getChannel().lock();
+    try {
+      readJournal(out.getChannel(), true);
+      compactLocked(out.getChannel());
+    } finally {
+      lock.release();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    if (journalOut != null) {
+      journalOut.close();
+      journalOut = null;
+    }
+  }
+
+  // Snapshot
+
+  private long snapshotSize() {
+    return snapshot == null ? 0 : snapshot.capacity();
+  }
+
+  /** Maps the snapshot, or leaves it empty at generation 0 if there is none or it can't be read. */
+  private void mapSnapshot() throws IOException {
+    snapshot = null;
+    snapshotGeneration = 0;
+    snapshotEntries = 0;
+    snapshotSlots = 0;
+    snapshotUnreadable = false;
+    if (!snapshotFile.exists()) {
+      return;
+    }
+    RandomAccessFile in = new RandomAccessFile(snapshotFile, "r");
+    try {
+      MappedByteBuffer map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      int entries = map.capacity() >= SNAPSHOT_HEADER_SIZE ? map.getInt(12) : -1;
+      int slots = map.capacity() >= SNAPSHOT_HEADER_SIZE ? map.getInt(16) : -1;
+      if (map.capacity() < SNAPSHOT_HEADER_SIZE || map.getInt(0) != SNAPSHOT_MAGIC || entries < 0 || slots < 0
+          || Integer.bitCount(slots) > 1 || SNAPSHOT_HEADER_SIZE + (long) slots * SLOT_SIZE > map.capacity()) {
+        LOG.warn("ignoring unreadable color cache " + snapshotFile);
+        snapshotUnreadable = true;
+        return;
+      }
+      snapshotGeneration = map.getLong(4);
+      snapshotEntries = entries;
+      snapshotSlots = slots;
+      snapshot = map;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes an unreadable snapshot and empties the journal that went with it, so the cache starts over at generation
+   * 0. Needs the exclusive lock.
+   */
+  private void discardSnapshot(FileChannel journalChannel) throws IOException {
+    LOG.warn("discarding unreadable color cache " + snapshotFile);
+    Files.deleteIfExists(snapshotFile.toPath());
+    mapSnapshot();
+    journal.clear();
+    resetJournal(journalChannel, snapshotGeneration);
+  }
+
+  private static int slotHash(String key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private Entry lookupSnapshot(String key) {
+    if (snapshot == null || snapshotSlots == 0) {
+      return null;
+    }
+    int hash = slotHash(key);
+    byte[] path = null;
+    for (int i = 0; i < snapshotSlots; i++) {
+      int slot = SNAPSHOT_HEADER_SIZE + ((hash + i) & (snapshotSlots - 1)) * SLOT_SIZE;
+      int offset = snapshot.getInt(slot + 4);
+      if (offset == 0) {
+        return null;
+      }
+      if (snapshot.getInt(slot) != hash) {
+        continue;
+      }
+      if (path == null) {
+        path = key.getBytes(UTF_8);
+      }
+      if (pathEquals(offset, path)) {
+        return readEntry(snapshot, offset + 2 + path.length);
+      }
+    }
+    return null;
+  }
+
+  private boolean pathEquals(int offset, byte[] path) {
+    if ((snapshot.getShort(offset) & 0xffff) != path.length) {
+      return false;
+    }
+    for (int i = 0; i < path.length; i++) {
+      if (snapshot.get(offset + 2 + i) != path[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Map<String, Entry> readSnapshotEntries() {
+    Map<String, Entry> res = new HashMap<String, Entry>();
+    if (snapshot == null) {
+      return res;
+    }
+    int offset = SNAPSHOT_HEADER_SIZE + snapshotSlots * SLOT_SIZE;
+    for (int i = 0; i < snapshotEntries; i++) {
+      int pathLength = snapshot.getShort(offset) & 0xffff;
+      byte[] path = new byte[pathLength];
+      for (int j = 0; j < pathLength; j++) {
+        path[j] = snapshot.get(offset + 2 + j);
+      }
+      offset += 2 + pathLength;
+      res.put(new String(path, UTF_8), readEntry(snapshot, offset));
+      offset += ENTRY_SIZE;
+    }
+    return res;
+  }
+
+  private void compactLocked(FileChannel journalChannel) throws IOException {
+    long start = System.currentTimeMillis();
+    Map<String, Entry> entries = readSnapshotEntries();
+    entries.putAll(journal);
+    List<String> keys = new ArrayList<String>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (e.getValue().isValidFor(new File(e.getKey()))) {
+        keys.add(e.getKey());
+      }
+    }
+
+    int slots = Integer.highestOneBit(Math.max(16, keys.size() * 2) - 1) << 1;
+    byte[][] paths = new byte[keys.size()][];
+    long size = SNAPSHOT_HEADER_SIZE + (long) slots * SLOT_SIZE;
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = keys.get(i).getBytes(UTF_8);
+      size += 2 + paths[i].length + ENTRY_SIZE;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("color cache too large to map: " + size + " bytes");
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate((int) size);
+    long generation = snapshotGeneration + 1;
+    buf.putInt(SNAPSHOT_MAGIC).putLong(generation).putInt(keys.size()).putInt(slots);
+    int offset = SNAPSHOT_HEADER_SIZE + slots * SLOT_SIZE;
+    for (int i = 0; i < paths.length; i++) {
+      int hash = slotHash(keys.get(i));
+      int slot = hash & (slots - 1);
+      while (buf.getInt(SNAPSHOT_HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      buf.putInt(SNAPSHOT_HEADER_SIZE + slot * SLOT_SIZE, hash);
+      buf.putInt(SNAPSHOT_HEADER_SIZE + slot * SLOT_SIZE + 4, offset);
+      buf.position(offset);
+      buf.putShort((short) paths[i].length).put(paths[i]);
+      writeEntry(buf, entries.get(keys.get(i)));
+      offset = buf.position();
+    }
+    buf.flip();
+
+    File tmp = new File(snapshotFile.getPath() + ".tmp");
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      out.setLength(0);
+      writeFully(out.getChannel(), buf, 0);
+      out.getChannel().force(false);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    resetJournal(journalChannel, generation);
+    mapSnapshot();
+    journal.clear();
+    LOG.infof("compacted %d entries into %s in %dms", keys.size(), snapshotFile,
+        System.currentTimeMillis() - start);
+  }
+
+  // Journal
+
+  private RandomAccessFile openJournal() throws IOException {
+    if (journalOut == null) {
+      File dir = journalFile.getAbsoluteFile().getParentFile();
+      if (dir != null) {
+        dir.mkdirs();
+      }
+      journalOut = new RandomAccessFile(journalFile, "rw");
+    }
+    return journalOut;
+  }
+
+  /**
+   * Reads the journal if it grew or shrank, or if its generation shows another process compacted it, which can leave
+   * it the same length.
+   */
+  private void refreshIfChanged() throws IOException {
+    lastRefreshNanos = System.nanoTime();
+    long length = journalFile.length();
+    if (length != journalPosition || (length >= JOURNAL_HEADER_SIZE && journalGeneration() != snapshotGeneration)) {
+      refresh();
+    }
+  }
+
+  private long journalGeneration() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+    if (readFully(openJournal().getChannel(), header, 0) < JOURNAL_HEADER_SIZE || header.getInt(0) != JOURNAL_MAGIC) {
+      return -1;
+    }
+    return header.getLong(4);
+  }
+
+  /** Reads the records other processes appended to the journal. */
+  private void refresh() throws IOException {
+    if (!journalFile.exists()) {
+      return;
+    }
+    RandomAccessFile in = openJournal();
+    FileLock lock = in.getChannel().lock(0, Long.MAX_VALUE, true);
+    try {
+      readJournal(in.getChannel(), false);
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Reads journal records from {@link #journalPosition}. If the journal belongs to another snapshot the snapshot is
+   * remapped and the journal is read from the start. When <code>repair</code> is set, which needs the exclusive lock,
+   * an unreadable snapshot is discarded, a journal with a missing header or of another snapshot is reset, and a torn
+   * record at the end is truncated.
+   */
+  private void readJournal(FileChannel channel, boolean repair) throws IOException {
+    if (repair && snapshotUnreadable) {
+      discardSnapshot(channel);
+      return;
+    }
+    long size = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+    if (size < JOURNAL_HEADER_SIZE || readFully(channel, header, 0) < JOURNAL_HEADER_SIZE
+        || header.getInt(0) != JOURNAL_MAGIC) {
+      journal.clear();
+      journalPosition = 0;
+      if (repair) {
+        mapSnapshot();
+        resetJournal(channel, snapshotGeneration);
+      }
+      return;
+    }
+    long generation = header.getLong(4);
+    if (generation != snapshotGeneration) {
+      mapSnapshot();
+      journal.clear();
+      journalPosition = 0;
+      if (repair && snapshotUnreadable) {
+        discardSnapshot(channel);
+        return;
+      }
+    }
+    if (generation < snapshotGeneration) {
+      // A compaction renamed its snapshot but didn't get to reset the journal, whose entries it already holds.
+      if (repair) {
+        resetJournal(channel, snapshotGeneration);
+      }
+      return;
+    }
+    if (generation > snapshotGeneration && repair) {
+      // The snapshot the journal was written against is gone. Its records still hold, so they're kept against ours
+      // rather than having every refresh read them again.
+      LOG.warn("moving " + journalFile + " of missing snapshot generation " + generation + " to " + snapshotGeneration);
+      ByteBuffer buf = ByteBuffer.allocate(8);
+      buf.putLong(snapshotGeneration).flip();
+      writeFully(channel, buf, 4);
+      channel.force(false);
+    }
+    if (journalPosition < JOURNAL_HEADER_SIZE || journalPosition > size) {
+      journal.clear();
+      journalPosition = JOURNAL_HEADER_SIZE;
+    }
+    if (journalPosition == size) {
+      return;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - journalPosition, Integer.MAX_VALUE));
+    readFully(channel, buf, journalPosition);
+    buf.flip();
+    CRC32 crc = new CRC32();
+    while (buf.remaining() >= 4) {
+      int start = buf.position();
+      int length = buf.getInt();
+      if (length <= 0 || buf.remaining() < length + 4) {
+        buf.position(start);
+        break;
+      }
+      crc.reset();
+      crc.update(buf.array(), buf.position(), length);
+      if ((int) crc.getValue() != buf.getInt(buf.position() + length)) {
+        buf.position(start);
+        break;
+      }
+      int pathLength = buf.getShort() & 0xffff;
+      String key = new String(buf.array(), buf.position(), pathLength, UTF_8);
+      buf.position(buf.position() + pathLength);
+      journal.put(key, readEntry(buf, buf.position()));
+      buf.position(start + 4 + length + 4);
+    }
+    journalPosition += buf.position();
+    if (repair && journalPosition < size) {
+      LOG.warn("truncating torn record at " + journalPosition + " in " + journalFile);
+      channel.truncate(journalPosition);
+    }
+  }
+
+  private void resetJournal(FileChannel channel, long generation) throws IOException {
+    channel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+    header.putInt(JOURNAL_MAGIC).putLong(generation).flip();
+    writeFully(channel, header, 0);
+    channel.force(false);
+    journalPosition = JOURNAL_HEADER_SIZE;
+  }
+
+  private static byte[] encodeRecord(String key, Entry entry) {
+    byte[] path = key.getBytes(UTF_8);
+    int length = 2 + path.length + ENTRY_SIZE;
+    ByteBuffer buf = ByteBuffer.allocate(4 + length + 4);
+    buf.putInt(length).putShort((short) path.length).put(path);
+    writeEntry(buf, entry);
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), 4, length);
+    buf.putInt((int) crc.getValue());
+    return buf.array();
+  }
+
+  private static void writeEntry(ByteBuffer buf, Entry entry) {
+    buf.putLong(entry.size).putLong(entry.lastModified).putInt(entry.colorTolerance);
+    for (int i = 0; i < NUM_COLORS; i++) {
+      buf.putInt(entry.colors[i]);
+    }
+    buf.put(entry.contentHash != null ? entry.contentHash : new byte[HASH_SIZE]);
+  }
+
+  private static Entry readEntry(ByteBuffer buf, int offset) {
+    long size = buf.getLong(offset);
+    long lastModified = buf.getLong(offset + 8);
+    int colorTolerance = buf.getInt(offset + 16);
+    int[] colors = new int[NUM_COLORS];
+    for (int i = 0; i < NUM_COLORS; i++) {
+      colors[i] = buf.getInt(offset + 20 + 4 * i);
+    }
+    // An unhashed entry is stored with a hash of zeros.
+    int hashOffset = offset + 20 + 4 * NUM_COLORS;
+    byte[] contentHash = null;
+    for (int i = 0; i < HASH_SIZE; i++) {
+      if (buf.get(hashOffset + i) != 0) {
+        contentHash = new byte[HASH_SIZE];
+        for (int j = 0; j < HASH_SIZE; j++) {
+          contentHash[j] = buf.get(hashOffset + j);
+        }
+        break;
+      }
+    }
+    return new Entry(size, lastModified, colorTolerance, colors, contentHash);
+  }
+
+  private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    int total = 0;
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static int writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    int written = 0;
+    while (buf.hasRemaining()) {
+      written += channel.write(buf, position + written);
+    }
+    return written;
+  }
+
+  // Legacy
+
+  /**
+   * Imports the old text cache, whose lines are "path:color,...,color" or just "path:color" for the whole image. It
+   * has no file sizes or times, so the files are trusted as they are now.
+   */
+  private void importLegacy() throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(legacyFile));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        int colon = line.lastIndexOf(':');
+        if (colon == -1) {
+          continue;
+        }
+        File file = new File(line.substring(0, colon));
+        if (!file.isFile()) {
+          continue;
+        }
+        String[] parts = line.substring(colon + 1).split(",");
+        int[] colors = new int[NUM_COLORS];
+        Arrays.fill(colors, UNCLASSIFIED);
+        if (parts.length == 1) {
+          colors[ImageSegment.ALL.ordinal()] = Integer.parseInt(parts[0]) & 0xffffff;
+        } else {
+          for (int i = 0; i < parts.length && i < NUM_COLORS; i++) {
+            int c = Integer.parseInt(parts[i]);
+            colors[i] = c == UNCLASSIFIED ? UNCLASSIFIED : c & 0xffffff;
+          }
+        }
+        pending.put(file.getAbsolutePath(), new Entry(file.length(), file.lastModified(), 0, colors, null));
+      }
+    } finally {
+      in.close();
+    }
+    LOG.infof("imported %d entries from %s", pending.size(), legacyFile);
+  }
+}
@@ -0,0 +1,61 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * Answers nearest-color queries over the colors of a library, one color per image id. Ids are the positions of the
+ * images in the library. Colors are points of three 8-bit channels packed like RGB (see {@link ColorMetric}), and
+ * distances are squared Euclidean distances between them (see {@link Util#distanceSquared(int, int)}) so every
+ * implementation agrees on ties and on the result order.
+ */
+interface ColorIndex {
+
+  enum Type {
+    LINEAR {
+      @Override
+      ColorIndex newIndex(int[] colors) {
+        return new LinearColorIndex(colors);
+      }
+    },
+    KD_TREE {
+      @Override
+      ColorIndex newIndex(int[] colors) {
+        return new KdTreeColorIndex(colors);
+      }
+    },
+    SCAN {
+      @Override
+      ColorIndex newIndex(int[] colors) {
+        return new ScanColorIndex(colors);
+      }
+    };
+
+    abstract ColorIndex newIndex(int[] colors);
+  }
+
+  /** Returns the number of colors in the index. */
+  int size();
+
+  /** Returns the packed color of image <code>id</code>. */
+  int getColor(int id);
+
+  /** Returns the id of the nearest color to <code>rgb</code>, preferring the smallest id on ties. */
+  int nearest(int rgb);
+
+  /**
+   * Adds the ids of the <code>k</code> nearest colors to <code>rgb</code> to <code>out</code>, ordered by distance and
+   * then by id. <code>heap</code> is reset and used for the search.
+   */
+  void nearest(int rgb, int k, KNearest heap, IntList out);
+
+  /**
+   * Adds the ids of the <code>k</code> nearest colors to <code>rgb</code>, and of all other colors whose squared
+   * distance to it is less than <code>maxDistanceSquared</code>, to <code>out</code> in increasing id order. The
+   * colors are searched once for both, with <code>heap</code> reset and used for the search.
+   */
+  void nearest(int rgb, int k, int maxDistanceSquared, KNearest heap, IntList out);
+
+  /**
+   * Adds the ids of all colors whose squared distance to <code>rgb</code> is less than
+   * <code>maxDistanceSquared</code> to <code>out</code>, in increasing id order.
+   */
+  void withinDistance(int rgb, int maxDistanceSquared, IntList out);
+}
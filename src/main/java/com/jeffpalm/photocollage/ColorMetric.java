@@ -0,0 +1,53 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * How close two colors look. Colors are mapped once to points, three 8-bit channels packed like RGB, that a
+ * {@link ColorIndex} is built over, so metrics whose distance is Euclidean in their points cost the same per comparison
+ * as RGB. Distances are squared and truncated to ints, in the units of the metric's channels.
+ */
+interface ColorMetric {
+
+  enum Type {
+    RGB {
+      @Override
+      ColorMetric newMetric() {
+        return new RgbColorMetric();
+      }
+    },
+    CIE76 {
+      @Override
+      ColorMetric newMetric() {
+        return new LabColorMetric(false);
+      }
+    },
+    CIEDE2000 {
+      @Override
+      ColorMetric newMetric() {
+        return new LabColorMetric(true);
+      }
+    };
+
+    abstract ColorMetric newMetric();
+  }
+
+  /** Returns the point of the library color <code>rgb</code>. */
+  int toPoint(int rgb);
+
+  /** Returns the point of the color <code>rgb</code> of the image being made into a collage. */
+  int toTargetPoint(int rgb);
+
+  /** Returns the squared distance between two points. */
+  int distanceSquared(int a, int b);
+
+  /**
+   * Returns whether {@link #distanceSquared} is the squared Euclidean distance between the channels of points, the
+   * distance a {@link ColorIndex} measures, so its answers are exact.
+   */
+  boolean isEuclidean();
+
+  /**
+   * Returns a squared Euclidean distance between points within which every pair of points closer than
+   * <code>distanceSquared</code> by this metric lies, for finding candidates in a {@link ColorIndex}.
+   */
+  int getIndexDistanceSquared(int distanceSquared);
+}
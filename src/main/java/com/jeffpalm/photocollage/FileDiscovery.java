@@ -0,0 +1,211 @@
+package com.jeffpalm.photocollage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks a library on a fork-join pool, a task per directory, and hands images over through a bounded queue as they're
+ * found, so they can be classified while slow directories are still being listed. The queue blocks the walk when the
+ * consumer falls behind.
+ *
+ * <p>
+ * Images come out of {@link #take} in whatever order the walk finds them. {@link #getFiles} puts them back in the order
+ * {@link FileFinder} finds them in, from the listing of each directory, so the library doesn't depend on timing.
+ */
+final class FileDiscovery implements Closeable {
+
+  private final static Logger LOG = Logger.getLogger(FileDiscovery.class.getName());
+
+  // Ends the queue.
+  private final static File END = new File("");
+
+  private final List<File> files;
+  private final List<File> directories;
+  private final BlockingQueue<File> queue;
+  private final ForkJoinPool pool;
+  private final long start = System.currentTimeMillis();
+
+  // The images and directories in each directory in the order it listed them, and which of them are directories.
+  private final Map<File, List<File>> listings = new ConcurrentHashMap<File, List<File>>();
+  private final Set<File> directorySet = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private final AtomicInteger found = new AtomicInteger();
+  private final AtomicInteger unreadable = new AtomicInteger();
+
+  private volatile boolean closed;
+  private boolean done;
+
+  private FileDiscovery(List<File> files, List<File> directories, int parallelism, int capacity) {
+    this.files = new ArrayList<File>(files);
+    this.directories = new ArrayList<File>(directories);
+    this.queue = new ArrayBlockingQueue<File>(capacity);
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Starts walking <code>directories</code> with <code>parallelism</code> threads, after handing over
+   * <code>files</code>. At most <code>capacity</code> images wait to be taken.
+   */
+  static FileDiscovery start(List<File> files, List<File> directories, int parallelism, int capacity) {
+    FileDiscovery res = new FileDiscovery(files, directories, parallelism, capacity);
+    res.pool.execute(res.new Walk());
+    return res;
+  }
+
+  /** Returns the next image found, waiting for one if needed, or null once every image has been taken. */
+  public File take() throws InterruptedException {
+    synchronized (this) {
+      if (done || closed) {
+        return null;
+      }
+    }
+    File file = queue.take();
+    if (file == END) {
+      synchronized (this) {
+        done = true;
+      }
+      pool.shutdown();
+      LOG.infof("found %d images in %d directories in %dms, %d unreadable", found.get(), listings.size(),
+          System.currentTimeMillis() - start, unreadable.get());
+      return null;
+    }
+    return file;
+  }
+
+  /**
+   * Waits for the walk to finish, dropping images that weren't taken, and returns every image in the order
+   * {@link FileFinder} finds them.
+   */
+  public List<File> getFiles() throws InterruptedException {
+    while (take() != null) {
+      // Skip to the end.
+    }
+    if (closed) {
+      throw new InterruptedException("discovery was closed");
+    }
+    List<File> res = new ArrayList<File>(files);
+    List<File> q = new LinkedList<File>(directories);
+    while (!q.isEmpty()) {
+      File dir = q.remove(0);
+      List<File> listing = listings.get(dir);
+      if (listing == null) {
+        continue;
+      }
+      for (File f : listing) {
+        (directorySet.contains(f) ? q : res).add(f);
+      }
+    }
+    return res;
+  }
+
+  /** Stops the walk. */
+  @Override
+  public void close() {
+    closed = true;
+    pool.shutdownNow();
+  }
+
+  private void put(File file) {
+    try {
+      queue.put(file);
+      found.incrementAndGet();
+    } catch (InterruptedException e) {
+      // Closed.
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private final class Walk extends RecursiveAction {
+    @Override
+    protected void compute() {
+      try {
+        for (File file : files) {
+          put(file);
+        }
+        List<WalkDirectory> tasks = new ArrayList<WalkDirectory>();
+        for (File dir : directories) {
+          tasks.add(new WalkDirectory(dir));
+        }
+        invokeAll(tasks);
+      } finally {
+        if (!closed) {
+          try {
+            queue.put(END);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+  }
+
+  private final class WalkDirectory extends RecursiveAction {
+    private final File dir;
+
+    WalkDirectory(File dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    protected void compute() {
+      if (closed) {
+        return;
+      }
+      List<File> listing = new ArrayList<File>();
+      List<WalkDirectory> tasks = new ArrayList<WalkDirectory>();
+      try {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath());
+        try {
+          for (Path path : stream) {
+            File f = path.toFile();
+            BasicFileAttributes attributes;
+            try {
+              attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+              // Gone since it was listed, or a broken link.
+              continue;
+            }
+            if (attributes.isDirectory()) {
+              listing.add(f);
+              directorySet.add(f);
+              WalkDirectory task = new WalkDirectory(f);
+              task.fork();
+              tasks.add(task);
+            } else if (FileFinder.isImage(f)) {
+              listing.add(f);
+              put(f);
+            }
+            if (closed) {
+              break;
+            }
+          }
+        } finally {
+          stream.close();
+        }
+      } catch (IOException e) {
+        unreadable.incrementAndGet();
+        LOG.warn("can't list " + dir + ": " + e);
+      }
+      listings.put(dir, listing);
+      for (WalkDirectory task : tasks) {
+        task.join();
+      }
+    }
+  }
+}
@@ -5,7 +5,6 @@ import java.io.FileFilter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -17,6 +16,10 @@ final class FileFinder {
     IMAGE_FILE_NAME_EXTENSIONS.add("png");
   }
 
+  // Listing directories mostly waits on the disk, so it's worth more threads than processors.
+  final static int DEFAULT_PARALLELISM = 8;
+  final static int DEFAULT_CAPACITY = 1024;
+
   private final List<File> files = new ArrayList<File>();
   private final List<File> directories = new ArrayList<File>();
 
@@ -27,24 +30,45 @@ final class FileFinder {
     return (f.isDirectory() ? directories : files).add(f);
   }
 
-  public Collection<File> findFiles() {
-    List<File> foundFiles = new ArrayList<File>(files);
-    List<File> q = new LinkedList<File>(directories);
-    while (!q.isEmpty()) {
-      File dir = q.remove(0);
-      File[] fs = dir.listFiles(new FileFilter() {
-        public boolean accept(File pathname) {
-          return pathname.isDirectory() || isImage(pathname);
-        }
-      });
-      for (File f : fs) {
-        (f.isDirectory() ? q : foundFiles).add(f);
-      }
+  /** Returns the images that were added by themselves. */
+  List<File> getFiles() {
+    return files;
+  }
+
+  /** Returns the directories that were added, to search for images. */
+  List<File> getDirectories() {
+    return directories;
+  }
+
+  /** Returns every image, walking the directories breadth first, each in the order it lists its entries. */
+  public Collection<File> findFiles() throws InterruptedException {
+    FileDiscovery discovery = discover(DEFAULT_PARALLELISM, DEFAULT_CAPACITY);
+    try {
+      return discovery.getFiles();
+    } finally {
+      discovery.close();
     }
-    return foundFiles;
   }
 
-  private boolean isImage(File f) {
+  /**
+   * Starts walking the directories on <code>parallelism</code> threads, handing over images as they're found with
+   * at most <code>capacity</code> waiting.
+   */
+  public FileDiscovery discover(int parallelism, int capacity) {
+    return FileDiscovery.start(files, directories, parallelism, capacity);
+  }
+
+  /** Returns the images and directories in <code>dir</code>, none if it can't be listed. */
+  static File[] list(File dir) {
+    File[] res = dir.listFiles(new FileFilter() {
+      public boolean accept(File pathname) {
+        return pathname.isDirectory() || isImage(pathname);
+      }
+    });
+    return res != null ? res : new File[0];
+  }
+
+  static boolean isImage(File f) {
     String name = f.getName();
     int ilastDot = name.lastIndexOf(".");
     if (ilastDot == -1) {
@@ -20,11 +20,15 @@ final class HtmlOutput implements Output {
     return this;
   }
 
-  public void write(File bufImageFile, int row, int col) throws IOException {
+  public void write(Tile tile, int row, int col) throws IOException {
     if (col == 0) {
       out.println("<br/>");
     }
-    out.println("<img src='" + bufImageFile.getAbsolutePath() + "'/>");
+    out.println("<img src='" + tile.getFile().getAbsolutePath() + "'/>");
+  }
+
+  public boolean supportsConcurrentWrites() {
+    return false;
   }
 
   public void close() throws IOException {
@@ -35,4 +39,9 @@ final class HtmlOutput implements Output {
     out.close();
     Log.getLog().info("Writing to " + outFile + "...");
   }
+
+  public void abort() {
+    out.close();
+    outFile.delete();
+  }
 }
@@ -1,29 +1,34 @@
 package com.jeffpalm.photocollage;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-
-import javax.imageio.ImageIO;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ImageCache {
   private final static String IMAGE_CACHE_DIR = "imageCache";
 
-  public File getResizedImage(ClassifiedImage classifiedImage, int width)
-      throws IOException {
-    File imageCache = new File(IMAGE_CACHE_DIR);
-    if (!imageCache.exists()) {
-      imageCache.mkdirs();
-    }
-    File subDir = new File(imageCache, String.valueOf(width));
-    if (!subDir.exists()) {
-      subDir.mkdirs();
-    }
-    File cachedImageFile = new File(subDir, classifiedImage.getFile().getName());
-    if (!cachedImageFile.exists()) {
-      BufferedImage resizedImage = classifiedImage.resize(width);
-      ImageIO.write(resizedImage, "jpg", cachedImageFile);
+  private final static ThumbnailStore thumbnailStore = new ThumbnailStore(new File(IMAGE_CACHE_DIR),
+      ImageClassifier.getSharedColorCache());
+  private final static Map<String, TileAtlas> tileAtlases = new HashMap<String, TileAtlas>();
+
+  /** Returns the store of thumbnails shared by every cache in this directory. */
+  static ThumbnailStore getThumbnailStore() {
+    return thumbnailStore;
+  }
+
+  /** Returns the atlas of tiles for cells of <code>width</code> by <code>height</code>, opening it if needed. */
+  static synchronized TileAtlas getTileAtlas(int width, int height) throws IOException {
+    String key = width + "x" + height;
+    TileAtlas tileAtlas = tileAtlases.get(key);
+    if (tileAtlas == null) {
+      tileAtlas = new TileAtlas(new File(IMAGE_CACHE_DIR), width, height, thumbnailStore);
+      tileAtlases.put(key, tileAtlas);
     }
-    return cachedImageFile;
+    return tileAtlas;
+  }
+
+  public File getResizedImage(ClassifiedImage classifiedImage, int width, int height) throws IOException {
+    return thumbnailStore.get(classifiedImage.getFile(), width, height);
   }
 }
@@ -2,108 +2,37 @@ package com.jeffpalm.photocollage;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
-import javax.imageio.ImageIO;
-
-@SuppressWarnings("unchecked")
 final class ImageClassifier {
 
-  private static class Cache<T> {
-    private final Map<String, T> cache;
-    private final File file;
-
-    Cache(File file, Map<String, T> cache) {
-      this.file = file;
-      this.cache = cache;
-    }
-
-    public File getFile() {
-      return file;
-    }
-
-    public Map<String, T> getCache() {
-      return cache;
-    }
-
-    public void put(String s, T value) {
-      cache.put(s, value);
-    }
-
-    public T get(String s) {
-      return cache.get(s);
-    }
-  }
-
   private final static Logger LOG = Logger.getLogger(ImageClassifier.class.getName());
   private final static String COLOR_CACHE_NAME = "ImageClassifierCache";
-  private final static Cache<Color> colorCache = getCacheFromFile(COLOR_CACHE_NAME);
-  {
-    System.err.println("colorCache: " + colorCache.getCache().size());
-  }
-
-  private static Cache<Color> getCacheFromFile(String fileName) {
-    File f = new File(fileName);
-    Map<String, Color> map = getCacheMapFromFile(f);
-    return new Cache<Color>(f, map);
+  private final static int UNCLASSIFIED = -1;
+  private final static int NUM_SEGMENTS = ImageSegment.values().length;
+  private final static Metrics.Timer CLASSIFY = Metrics.timer("classify");
+  private final static Metrics.Counter CACHED = Metrics.counter("classify.cached");
+  private final static Metrics.Counter MISSED = Metrics.counter("classify.missed");
+
+  // Segment colors of every image classified in this directory, UNCLASSIFIED for segments not classified yet. Colors
+  // classified with a looser color tolerance than a classifier's are misses to it.
+  private final static ColorCacheStore sharedColorCache = new ColorCacheStore(new File(COLOR_CACHE_NAME));
+
+  /** Returns the color cache of this directory, which classifiers share unless given their own. */
+  static ColorCacheStore getSharedColorCache() {
+    return sharedColorCache;
   }
 
-  private static Map<String, Color> getCacheMapFromFile(File f) {
-    Map<String, Color> res = new HashMap<>();
-    if (!f.exists()) {
-      return res;
-    }
-    try {
-      BufferedReader in = new BufferedReader(new FileReader(f));
-      String line;
-      while ((line = in.readLine()) != null) {
-        if (line.equals("")) {
-          continue;
-        }
-        String[] parts = line.split(":");
-        String key = parts[0];
-        int c = Integer.parseInt(parts[1]);
-        Color color = new Color(c);
-        res.put(key, color);
-      }
-      in.close();
-    } catch (Throwable t) {
-      throw new RuntimeException(t);
-    }
+  private static int[] newSegmentColors() {
+    int[] res = new int[NUM_SEGMENTS];
+    Arrays.fill(res, UNCLASSIFIED);
     return res;
   }
 
-  private static void serialize(Cache<Color> cache) {
-    File file = cache.getFile();
-    Map<String, Color> map = cache.getCache();
-    LOG.infof("serializing %d objects to %s", map.size(), file);
-    serialize(map, file);
-  }
-
-  // Java serialization isn't working...so write to a text file.
-  private static void serialize(Map<String, Color> o, File file) {
-    try {
-      PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-      for (Map.Entry<String, Color> e : o.entrySet()) {
-        String line = String.format("%s:%d", e.getKey(), e.getValue().getRGB());
-        out.println(line);
-      }
-      out.flush();
-      out.close();
-    } catch (Throwable t) {
-      throw new RuntimeException(t);
-    }
-  }
-
   private final Config config;
+  private final ColorCacheStore colorCache;
 
   final static class Config {
     float widthPercentage = 1f;
@@ -111,71 +40,178 @@ final class ImageClassifier {
     int redThreshhold = 0;
     int greenThreshhold = 0;
     int blueThreshhold = 0;
+    // Whether to classify every segment from a single decode of the image.
+    boolean singleDecode = true;
+    // How many levels per channel colors may be off from those of the whole image, so images can be decoded
+    // subsampled or from their embedded thumbnails. 0 decodes every pixel.
+    int colorTolerance = 0;
   }
 
-  ImageClassifier(Config config) {
+  ImageClassifier(Config config, ColorCacheStore colorCache) {
     this.config = config;
+    this.colorCache = colorCache;
+    LOG.info("colorCache: " + colorCache.size());
+  }
+
+  ImageClassifier(Config config) {
+    this(config, sharedColorCache);
   }
 
   ImageClassifier() {
     this(new Config());
   }
 
-  public void flush() {
-    serialize(colorCache);
+  /** Writes the colors classified so far to the color cache. */
+  public void flush() throws IOException {
+    colorCache.flush();
+  }
+
+  /** Returns whether every segment of <code>imageFile</code> is in the color cache. */
+  public boolean isClassified(File imageFile) {
+    int[] colors = colorCache.get(imageFile, config.colorTolerance);
+    if (colors == null) {
+      return false;
+    }
+    for (int color : colors) {
+      if (color == UNCLASSIFIED) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Classifies every segment of <code>imageFile</code> from its already-read <code>contents</code>. */
+  public void classifyAll(File imageFile, byte[] contents) throws IOException {
+    classifyAll(imageFile, ImageDecoder.decodeForColors(imageFile, contents, config.colorTolerance));
+  }
+
+  /** Classifies every segment of <code>imageFile</code> from <code>image</code>, already decoded for its colors. */
+  public void classifyAll(File imageFile, BufferedImage image) throws IOException {
+    colorCache.put(imageFile, doClassifyAll(imageFile, image), config.colorTolerance);
+  }
+
+  /** Returns how many levels per channel colors may be off, for decoding images elsewhere. */
+  public int getColorTolerance() {
+    return config.colorTolerance;
   }
 
   public final Color classify(File imageFile, ImageSegment s) throws IOException {
     long start = System.currentTimeMillis();
     long endClassify = 0;
-    Color result = colorCache.get(imageFile.getAbsolutePath());
-    if (result == null) {
-      result = doClassify(imageFile, s);
+    int[] colors = colorCache.get(imageFile, config.colorTolerance);
+    int result = colors == null ? UNCLASSIFIED : colors[s.ordinal()];
+    if (result == UNCLASSIFIED) {
+      int[] newColors;
+      if (config.singleDecode) {
+        newColors = doClassifyAll(imageFile);
+      } else {
+        newColors = colors == null ? newSegmentColors() : colors.clone();
+        newColors[s.ordinal()] = doClassify(imageFile, s).getRGB() & 0xffffff;
+      }
       endClassify = System.currentTimeMillis();
-      colorCache.put(imageFile.getAbsolutePath(), result);
+      colorCache.put(imageFile, newColors, config.colorTolerance);
+      result = newColors[s.ordinal()];
+      MISSED.increment();
+      LOG.debugf("Classified %s in %dms; total = %dms", imageFile, endClassify - start,
+          System.currentTimeMillis() - start);
     } else {
-      LOG.info("Found cached value");
+      CACHED.increment();
     }
-    LOG.info("Classified " + imageFile + " in " + (endClassify - start) + "ms; total = "
-        + (System.currentTimeMillis() - start) + "ms");
-    return result;
+    return new Color(result);
   }
 
-  private final Color doClassify(File imageFile, ImageSegment s) throws IOException {
-    BufferedImage image = ImageIO.read(imageFile);
+  /* package */ final Color doClassify(File imageFile, ImageSegment s) throws IOException {
+    BufferedImage image = ImageDecoder.decodeForColors(imageFile, config.colorTolerance);
     ColorBox colorBox = ColorBox.getColorBox(image, config, s);
 
     return getColor(image, colorBox);
   }
 
-  private final Color getColor(BufferedImage image, ColorBox colorBox) {
-    int firstRow = colorBox.firstRow;
-    int lastRow = colorBox.lastRow;
-    int firstCol = colorBox.firstCol;
-    int lastCol = colorBox.lastCol;
-
-    long redBucket = 0;
-    long greenBucket = 0;
-    long blueBucket = 0;
-    long pixelCount = 0;
-
-    for (int i = firstRow; i < lastRow; i++) {
-      for (int j = firstCol; j < lastCol; j++) {
-        int c = image.getRGB(j, i);
-        int red = (c >> 16) & 0xff;
-        int green = (c >> 8) & 0xff;
-        int blue = c & 0xff;
-        pixelCount++;
-        redBucket += red;
-        greenBucket += green;
-        blueBucket += blue;
+  /** Decodes the image once and returns the packed RGB color of every segment, indexed by segment ordinal. */
+  /* package */ final int[] doClassifyAll(File imageFile) throws IOException {
+    return doClassifyAll(imageFile, ImageDecoder.decodeForColors(imageFile, config.colorTolerance));
+  }
+
+  private final int[] doClassifyAll(File imageFile, BufferedImage image) throws IOException {
+    if (image == null) {
+      throw new IOException("Can't decode " + imageFile);
+    }
+    long start = CLASSIFY.start();
+    ColorBox[] colorBoxes = new ColorBox[NUM_SEGMENTS];
+    for (ImageSegment s : ImageSegment.values()) {
+      colorBoxes[s.ordinal()] = ColorBox.getColorBox(image, config, s);
+    }
+    int[] res = getColors(image, colorBoxes);
+    CLASSIFY.stop(start);
+    return res;
+  }
+
+  /**
+   * Averages every box from a {@link SummedAreaTable} of the image, so each box costs the same however large it is.
+   * Images too large for one are averaged a row at a time.
+   */
+  private final int[] getColors(BufferedImage image, ColorBox[] colorBoxes) {
+    if (!SummedAreaTable.fits(image.getWidth(), image.getHeight())) {
+      return getColorsByRows(image, colorBoxes);
+    }
+    SummedAreaTable table = SummedAreaTable.of(image);
+    int[] res = new int[colorBoxes.length];
+    for (int b = 0; b < colorBoxes.length; b++) {
+      res[b] = table.getAverage(colorBoxes[b]);
+    }
+    return res;
+  }
+
+  /**
+   * Averages every box in one pass over the image. Each row is turned into running channel sums, so a box adds its
+   * columns of a row in constant time.
+   */
+  private final int[] getColorsByRows(BufferedImage image, ColorBox[] colorBoxes) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int n = colorBoxes.length;
+    long[] redBuckets = new long[n];
+    long[] greenBuckets = new long[n];
+    long[] blueBuckets = new long[n];
+    long[] pixelCounts = new long[n];
+
+    int[] row = new int[width];
+    long[] redSums = new long[width + 1];
+    long[] greenSums = new long[width + 1];
+    long[] blueSums = new long[width + 1];
+    for (int i = 0; i < height; i++) {
+      Pixels.getRow(image, i, row);
+      for (int j = 0; j < width; j++) {
+        int c = row[j];
+        redSums[j + 1] = redSums[j] + ((c >> 16) & 0xff);
+        greenSums[j + 1] = greenSums[j] + ((c >> 8) & 0xff);
+        blueSums[j + 1] = blueSums[j] + (c & 0xff);
+      }
+      for (int b = 0; b < n; b++) {
+        ColorBox colorBox = colorBoxes[b];
+        if (i < colorBox.firstRow || i >= colorBox.lastRow || colorBox.firstCol >= colorBox.lastCol) {
+          continue;
+        }
+        redBuckets[b] += redSums[colorBox.lastCol] - redSums[colorBox.firstCol];
+        greenBuckets[b] += greenSums[colorBox.lastCol] - greenSums[colorBox.firstCol];
+        blueBuckets[b] += blueSums[colorBox.lastCol] - blueSums[colorBox.firstCol];
+        pixelCounts[b] += colorBox.lastCol - colorBox.firstCol;
       }
     }
 
-    int red = (int) (redBucket / pixelCount);
-    int green = (int) (greenBucket / pixelCount);
-    int blue = (int) (blueBucket / pixelCount);
-    return new Color(red, green, blue);
+    int[] res = new int[n];
+    for (int b = 0; b < n; b++) {
+      long pixelCount = Math.max(1, pixelCounts[b]);
+      int red = (int) (redBuckets[b] / pixelCount);
+      int green = (int) (greenBuckets[b] / pixelCount);
+      int blue = (int) (blueBuckets[b] / pixelCount);
+      res[b] = (red << 16) | (green << 8) | blue;
+    }
+    return res;
+  }
+
+  private final Color getColor(BufferedImage image, ColorBox colorBox) {
+    return new Color(getColors(image, new ColorBox[] { colorBox })[0]);
   }
 
 }
@@ -0,0 +1,269 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Decodes images only as large as they're needed. Readers skip source rows and columns with
+ * {@link ImageReadParam#setSourceSubsampling}, so a 24MP photo needed for a 100px thumbnail never exists at full size,
+ * and colors can come from the thumbnail a camera embedded in a JPEG's JFIF or EXIF header.
+ */
+final class ImageDecoder {
+
+  // Subsampled images keep this many times the size they're resized to, so resizing still averages several samples
+  // into each pixel.
+  private final static int OVERSAMPLING = 4;
+
+  // Natural images vary by about this many levels per channel, so the average of n samples is within
+  // 3 * SPREAD / sqrt(n) levels of the average of the whole image nearly always.
+  private final static int SPREAD = 64;
+
+  // The smallest color box, a third of the image, gets a third of the samples.
+  private final static int SMALLEST_BOX = 3;
+
+  // An embedded thumbnail is used only if its aspect ratio is this close to the image's, which rules out the
+  // letterboxed thumbnails some cameras write.
+  private final static double ASPECT_TOLERANCE = 0.02;
+
+  private final static String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+  private final static int APP1 = 0xe1;
+  private final static byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+  private final static int TAG_JPEG_OFFSET = 0x0201;
+  private final static int TAG_JPEG_LENGTH = 0x0202;
+
+  private final static Metrics.Timer DECODE = Metrics.timer("decode");
+  private final static Metrics.Histogram SUBSAMPLING = Metrics.histogram("decode.subsampling");
+  private final static Metrics.Counter EMBEDDED = Metrics.counter("decode.embeddedThumbnails");
+
+  private ImageDecoder() {}
+
+  /**
+   * Decodes <code>file</code> so its shorter side is at least {@link #OVERSAMPLING} times <code>size</code>, for
+   * resizing with {@link Util#resize} to <code>size</code>. A <code>size</code> of 0 or less decodes it whole.
+   */
+  static BufferedImage decode(File file, int size) throws IOException {
+    return read(file, file, size <= 0 ? 0 : (long) OVERSAMPLING * size, 0, false);
+  }
+
+  /**
+   * Decodes <code>file</code> with enough samples that the average color of each {@link ColorBox} is within about
+   * <code>tolerance</code> levels per channel of the average of the whole image, possibly from its embedded thumbnail.
+   * A <code>tolerance</code> of 0 or less decodes it whole.
+   */
+  static BufferedImage decodeForColors(File file, int tolerance) throws IOException {
+    return read(file, file, 0, minSamples(tolerance), tolerance > 0);
+  }
+
+  /** Like {@link #decodeForColors(File, int)} for the already-read <code>contents</code> of <code>file</code>. */
+  static BufferedImage decodeForColors(File file, byte[] contents, int tolerance) throws IOException {
+    return read(new ByteArrayInputStream(contents), file, 0, minSamples(tolerance), tolerance > 0);
+  }
+
+  /**
+   * Decodes the already-read <code>contents</code> of <code>file</code> once for both uses: large enough for
+   * {@link #decode(File, int)} to <code>size</code> if <code>size</code> is positive, and, if <code>forColors</code>,
+   * for {@link #decodeForColors(File, int)} within <code>tolerance</code>. Whichever needs more pixels wins, and
+   * embedded thumbnails are only used for colors alone.
+   */
+  static BufferedImage decode(File file, byte[] contents, int size, boolean forColors, int tolerance)
+      throws IOException {
+    if ((forColors && tolerance <= 0) || (!forColors && size <= 0)) {
+      return read(new ByteArrayInputStream(contents), file, 0, 0, false);
+    }
+    long minSide = size <= 0 ? 0 : (long) OVERSAMPLING * size;
+    long minSamples = forColors ? minSamples(tolerance) : 0;
+    return read(new ByteArrayInputStream(contents), file, minSide, minSamples, forColors && size <= 0);
+  }
+
+  /** Returns how many samples an image needs for averages within <code>tolerance</code>, or 0 for all of them. */
+  static long minSamples(int tolerance) {
+    if (tolerance <= 0) {
+      return 0;
+    }
+    long perBox = (long) Math.ceil(Math.pow(3.0 * SPREAD / tolerance, 2));
+    return SMALLEST_BOX * perBox;
+  }
+
+  /**
+   * Returns the subsampling factor that keeps the shorter side of a <code>width</code> by <code>height</code> image at
+   * least <code>minSide</code> and its pixels at least <code>minSamples</code>, where 0 means no limit.
+   */
+  static int getSubsampling(int width, int height, long minSide, long minSamples) {
+    if (minSide <= 0 && minSamples <= 0) {
+      return 1;
+    }
+    long factor = Math.min(width, height);
+    if (minSide > 0) {
+      factor = Math.min(factor, Math.min(width, height) / minSide);
+    }
+    if (minSamples > 0) {
+      factor = Math.min(factor, (long) Math.sqrt((double) width * height / minSamples));
+    }
+    return (int) Math.max(1, factor);
+  }
+
+  private static BufferedImage read(Object input, File file, long minSide, long minSamples, boolean useThumbnails)
+      throws IOException {
+    long start = DECODE.start();
+    try {
+      return doRead(input, file, minSide, minSamples, useThumbnails);
+    } finally {
+      DECODE.stop(start);
+    }
+  }
+
+  private static BufferedImage doRead(Object input, File file, long minSide, long minSamples, boolean useThumbnails)
+      throws IOException {
+    ImageInputStream in = ImageIO.createImageInputStream(input);
+    if (in == null) {
+      throw new IOException("Can't read " + file);
+    }
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IOException("Can't decode " + file);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, !useThumbnails);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if (useThumbnails) {
+          BufferedImage thumbnail = getThumbnail(reader, width, height, minSamples);
+          if (thumbnail != null) {
+            EMBEDDED.increment();
+            return thumbnail;
+          }
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        int factor = getSubsampling(width, height, minSide, minSamples);
+        SUBSAMPLING.record(factor);
+        if (factor > 1) {
+          param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the JFIF or EXIF thumbnail of the image <code>reader</code> reads if it has at least
+   * <code>minSamples</code> pixels and the shape of the image, otherwise null.
+   */
+  private static BufferedImage getThumbnail(ImageReader reader, int width, int height, long minSamples)
+      throws IOException {
+    BufferedImage res = null;
+    if (reader.hasThumbnails(0)) {
+      res = reader.readThumbnail(0, 0);
+    } else {
+      byte[] exif = getExifThumbnail(reader.getImageMetadata(0));
+      if (exif != null) {
+        try {
+          res = ImageIO.read(new ByteArrayInputStream(exif));
+        } catch (IOException e) {
+          // A broken thumbnail doesn't make the image broken.
+          res = null;
+        }
+      }
+    }
+    if (res == null || (long) res.getWidth() * res.getHeight() < minSamples) {
+      return null;
+    }
+    double aspect = (double) width / height;
+    double thumbnailAspect = (double) res.getWidth() / res.getHeight();
+    if (Math.abs(thumbnailAspect / aspect - 1) > ASPECT_TOLERANCE) {
+      return null;
+    }
+    return res;
+  }
+
+  /** Returns the JPEG thumbnail in the EXIF APP1 segment of JPEG <code>metadata</code>, or null. */
+  static byte[] getExifThumbnail(IIOMetadata metadata) {
+    if (metadata == null || !Arrays.asList(metadata.getMetadataFormatNames()).contains(JPEG_METADATA_FORMAT)) {
+      return null;
+    }
+    Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+    for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (!child.getNodeName().equals("markerSequence")) {
+        continue;
+      }
+      for (Node marker = child.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+        if (!marker.getNodeName().equals("unknown")) {
+          continue;
+        }
+        Node tag = marker.getAttributes().getNamedItem("MarkerTag");
+        Object data = ((IIOMetadataNode) marker).getUserObject();
+        if (tag != null && Integer.parseInt(tag.getNodeValue()) == APP1 && data instanceof byte[]) {
+          byte[] res = parseExifThumbnail((byte[]) data);
+          if (res != null) {
+            return res;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the JPEG that the second image file directory of the EXIF segment <code>app1</code> points to, or null.
+   * Offsets in the segment are from the TIFF header after "Exif\0\0".
+   */
+  static byte[] parseExifThumbnail(byte[] app1) {
+    if (app1.length < EXIF_HEADER.length + 8
+        || !Arrays.equals(EXIF_HEADER, Arrays.copyOf(app1, EXIF_HEADER.length))) {
+      return null;
+    }
+    ByteBuffer tiff = ByteBuffer.wrap(app1, EXIF_HEADER.length, app1.length - EXIF_HEADER.length).slice();
+    try {
+      if (tiff.getShort(0) == 0x4949) { // II
+        tiff.order(ByteOrder.LITTLE_ENDIAN);
+      } else if (tiff.getShort(0) != 0x4d4d) { // MM
+        return null;
+      }
+      int ifd0 = tiff.getInt(4);
+      int ifd1 = tiff.getInt(ifd0 + 2 + 12 * (tiff.getShort(ifd0) & 0xffff));
+      if (ifd1 <= 0) {
+        return null;
+      }
+      int offset = -1, length = -1;
+      for (int i = 0, n = tiff.getShort(ifd1) & 0xffff; i < n; i++) {
+        int entry = ifd1 + 2 + 12 * i;
+        int tag = tiff.getShort(entry) & 0xffff;
+        if (tag == TAG_JPEG_OFFSET) {
+          offset = tiff.getInt(entry + 8);
+        } else if (tag == TAG_JPEG_LENGTH) {
+          length = tiff.getInt(entry + 8);
+        }
+      }
+      if (offset <= 0 || length <= 0 || (long) offset + length > tiff.limit()) {
+        return null;
+      }
+      byte[] res = new byte[length];
+      tiff.position(offset);
+      tiff.get(res);
+      return res;
+    } catch (IndexOutOfBoundsException e) {
+      // Truncated or garbled EXIF.
+      return null;
+    }
+  }
+}
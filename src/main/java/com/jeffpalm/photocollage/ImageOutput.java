@@ -1,7 +1,7 @@
 package com.jeffpalm.photocollage;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 
@@ -9,26 +9,48 @@ import javax.imageio.ImageIO;
 
 final class ImageOutput implements Output {
 
+  private final static Metrics.Timer ENCODE = Metrics.timer("encode");
+
   private File outFile;
-  private Graphics2D g2d;
   private BufferedImage outImage;
+  private int[] outPixels;
+
+  /** Returns whether an image of <code>width</code> by <code>height</code> fits in one int array. */
+  static boolean fits(long width, long height) {
+    // Leave room for the array header, as the VM can't allocate arrays of quite Integer.MAX_VALUE elements.
+    return width * height <= Integer.MAX_VALUE - 8;
+  }
 
-  public Output open(File outFile, int newWidth, int newHeight) {
+  public Output open(File outFile, int newWidth, int newHeight) throws IOException {
+    if (!fits(newWidth, newHeight)) {
+      throw new IOException("Image of " + newWidth + "x" + newHeight + " has too many pixels to hold in memory");
+    }
     this.outFile = outFile;
     Log.getLog().info("Creating new image of size " + newWidth + "x" + newHeight + "...");
     this.outImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-    this.g2d = outImage.createGraphics();
+    this.outPixels = ((DataBufferInt) outImage.getRaster().getDataBuffer()).getData();
     return this;
   }
 
-  public void write(File bufImageFile, int row, int col) throws IOException {
-    BufferedImage bufImage = ImageIO.read(bufImageFile);
-    g2d.drawImage(bufImage, row, col, null);
+  public void write(Tile tile, int row, int col) throws IOException {
+    tile.copyTo(outPixels, outImage.getWidth(), outImage.getHeight(), row, col);
+  }
+
+  public boolean supportsConcurrentWrites() {
+    return true;
   }
 
   public void close() throws IOException {
     Log.getLog().info("Writing to " + outFile + "...");
+    long start = ENCODE.start();
     ImageIO.write(outImage, "png", outFile);
+    ENCODE.stop(start);
     Log.getLog().info("Wrote to " + outFile);
   }
+
+  public void abort() {
+    outImage = null;
+    outPixels = null;
+    outFile.delete();
+  }
 }
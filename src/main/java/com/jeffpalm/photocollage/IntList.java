@@ -0,0 +1,72 @@
+package com.jeffpalm.photocollage;
+
+import java.util.Arrays;
+
+/** A growable list of primitive ints, so hot loops don't box ids. */
+final class IntList {
+
+  private int[] values;
+  private int size;
+
+  IntList() {
+    this(16);
+  }
+
+  IntList(int capacity) {
+    values = new int[Math.max(1, capacity)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int get(int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException(i + " >= " + size);
+    }
+    return values[i];
+  }
+
+  public void set(int i, int value) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException(i + " >= " + size);
+    }
+    values[i] = value;
+  }
+
+  public void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /** Truncates the list to its first <code>newSize</code> values. */
+  public void truncate(int newSize) {
+    if (newSize < size) {
+      size = newSize;
+    }
+  }
+
+  /** Sorts the values from <code>from</code> to the end of the list. */
+  public void sort(int from) {
+    Arrays.sort(values, from, size);
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
@@ -0,0 +1,98 @@
+package com.jeffpalm.photocollage;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the <code>k</code> smallest (distance, id) pairs offered to it in a bounded max-heap. Pairs are packed into
+ * longs so that ordering by the long orders by distance and then by id. A heap is reused between queries with
+ * {@link #reset(int)}, so matching doesn't allocate one per query.
+ */
+final class KNearest {
+
+  private long[] heap;
+  private int k;
+  private int size;
+
+  KNearest(int k) {
+    this.heap = new long[Math.max(k, 1)];
+    reset(k);
+  }
+
+  /** Empties the heap and makes it keep the <code>k</code> smallest pairs, growing it if needed. */
+  public void reset(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    if (k > heap.length) {
+      heap = new long[Math.max(k, 2 * heap.length)];
+    }
+    this.k = k;
+    this.size = 0;
+  }
+
+  public boolean isFull() {
+    return size == k;
+  }
+
+  /** Returns the largest distance kept, only meaningful when {@link #isFull()}. */
+  public int worstDistance() {
+    return (int) (heap[0] >>> 32);
+  }
+
+  public void offer(int distance, int id) {
+    long key = ((long) distance << 32) | id;
+    if (size < k) {
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (heap[parent] >= key) {
+          break;
+        }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = key;
+    } else if (key < heap[0]) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && heap[child + 1] > heap[child]) {
+          child++;
+        }
+        if (heap[child] <= key) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = key;
+    }
+  }
+
+  /**
+   * Completes a query for the <code>k</code> nearest ids plus those within a distance, where the ids within it were
+   * added to <code>out</code> from <code>start</code> and the rest offered to this heap: adds the nearest kept ids
+   * until there are <code>k</code>, sorts <code>out</code> from <code>start</code> by id and empties the heap.
+   */
+  public void drainUnionTo(IntList out, int start) {
+    Arrays.sort(heap, 0, size);
+    int missing = k - (out.size() - start);
+    for (int i = 0; i < size && i < missing; i++) {
+      out.add((int) heap[i]);
+    }
+    size = 0;
+    out.sort(start);
+  }
+
+  /** Adds the kept ids to <code>out</code> nearest first and empties the heap. */
+  public void drainTo(IntList out) {
+    Arrays.sort(heap, 0, size);
+    for (int i = 0; i < size; i++) {
+      out.add((int) heap[i]);
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,276 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * A {@link ColorIndex} backed by a 3-d tree over the red, green and blue channels. The tree is implicit: the points
+ * are permuted so that the median of every range is its node, and ranges of at most {@link #LEAF_SIZE} points are
+ * scanned.
+ */
+final class KdTreeColorIndex implements ColorIndex {
+
+  private final static int LEAF_SIZE = 8;
+
+  private final int[] colors;
+
+  // The points in tree order, one array per channel.
+  private final int[] ids;
+  private final int[][] channels = new int[3][];
+  // The split channel of the node at each median position.
+  private final byte[] axes;
+
+  KdTreeColorIndex(int[] colors) {
+    this.colors = colors.clone();
+    int n = colors.length;
+    ids = new int[n];
+    for (int c = 0; c < 3; c++) {
+      channels[c] = new int[n];
+    }
+    for (int i = 0; i < n; i++) {
+      ids[i] = i;
+      channels[0][i] = (colors[i] >> 16) & 0xff;
+      channels[1][i] = (colors[i] >> 8) & 0xff;
+      channels[2][i] = colors[i] & 0xff;
+    }
+    axes = new byte[n];
+    build(0, n);
+  }
+
+  @Override
+  public int size() {
+    return colors.length;
+  }
+
+  @Override
+  public int getColor(int id) {
+    return colors[id];
+  }
+
+  private void build(int lo, int hi) {
+    if (hi - lo <= LEAF_SIZE) {
+      return;
+    }
+    int axis = widestChannel(lo, hi);
+    int mid = (lo + hi) >>> 1;
+    select(channels[axis], lo, hi - 1, mid);
+    axes[mid] = (byte) axis;
+    build(lo, mid);
+    build(mid + 1, hi);
+  }
+
+  private int widestChannel(int lo, int hi) {
+    int widest = 0;
+    int widestSpread = -1;
+    for (int c = 0; c < 3; c++) {
+      int[] values = channels[c];
+      int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+      for (int i = lo; i < hi; i++) {
+        min = Math.min(min, values[i]);
+        max = Math.max(max, values[i]);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        widest = c;
+      }
+    }
+    return widest;
+  }
+
+  /** Partially sorts [lo, hi] by <code>values</code> so that position <code>k</code> holds its order statistic. */
+  private void select(int[] values, int lo, int hi, int k) {
+    while (hi > lo) {
+      int pivot = values[(lo + hi) >>> 1];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    int t = ids[i];
+    ids[i] = ids[j];
+    ids[j] = t;
+    for (int c = 0; c < 3; c++) {
+      int[] values = channels[c];
+      t = values[i];
+      values[i] = values[j];
+      values[j] = t;
+    }
+  }
+
+  private int distanceSquared(int i, int r, int g, int b) {
+    int dr = channels[0][i] - r;
+    int dg = channels[1][i] - g;
+    int db = channels[2][i] - b;
+    return dr * dr + dg * dg + db * db;
+  }
+
+  private static int channel(int rgb, int axis) {
+    return (rgb >> (16 - 8 * axis)) & 0xff;
+  }
+
+  // Nearest
+
+  @Override
+  public int nearest(int rgb) {
+    long nearest = nearest(0, ids.length, rgb, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, Long.MAX_VALUE);
+    return (int) nearest;
+  }
+
+  /** Returns the smaller of <code>nearest</code> and the point at <code>i</code>, packed as (distance, id). */
+  private long visitNearest(int i, int r, int g, int b, long nearest) {
+    long key = ((long) distanceSquared(i, r, g, b) << 32) | ids[i];
+    return Math.min(key, nearest);
+  }
+
+  private long nearest(int lo, int hi, int rgb, int r, int g, int b, long nearest) {
+    if (hi - lo <= LEAF_SIZE) {
+      for (int i = lo; i < hi; i++) {
+        nearest = visitNearest(i, r, g, b, nearest);
+      }
+      return nearest;
+    }
+    int mid = (lo + hi) >>> 1;
+    int axis = axes[mid];
+    int diff = channel(rgb, axis) - channels[axis][mid];
+    nearest = visitNearest(mid, r, g, b, nearest);
+    // Equal distances can still hold a smaller id, so only prune strictly farther sides.
+    if (diff < 0) {
+      nearest = nearest(lo, mid, rgb, r, g, b, nearest);
+      if (diff * diff <= (nearest >>> 32)) {
+        nearest = nearest(mid + 1, hi, rgb, r, g, b, nearest);
+      }
+    } else {
+      nearest = nearest(mid + 1, hi, rgb, r, g, b, nearest);
+      if (diff * diff <= (nearest >>> 32)) {
+        nearest = nearest(lo, mid, rgb, r, g, b, nearest);
+      }
+    }
+    return nearest;
+  }
+
+  // K nearest
+
+  @Override
+  public void nearest(int rgb, int k, KNearest heap, IntList out) {
+    heap.reset(k);
+    nearest(0, ids.length, rgb, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, heap);
+    heap.drainTo(out);
+  }
+
+  private void nearest(int lo, int hi, int rgb, int r, int g, int b, KNearest heap) {
+    if (hi - lo <= LEAF_SIZE) {
+      for (int i = lo; i < hi; i++) {
+        heap.offer(distanceSquared(i, r, g, b), ids[i]);
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    int axis = axes[mid];
+    int diff = channel(rgb, axis) - channels[axis][mid];
+    heap.offer(distanceSquared(mid, r, g, b), ids[mid]);
+    if (diff < 0) {
+      nearest(lo, mid, rgb, r, g, b, heap);
+      if (!heap.isFull() || diff * diff <= heap.worstDistance()) {
+        nearest(mid + 1, hi, rgb, r, g, b, heap);
+      }
+    } else {
+      nearest(mid + 1, hi, rgb, r, g, b, heap);
+      if (!heap.isFull() || diff * diff <= heap.worstDistance()) {
+        nearest(lo, mid, rgb, r, g, b, heap);
+      }
+    }
+  }
+
+  // K nearest and within distance
+
+  @Override
+  public void nearest(int rgb, int k, int maxDistanceSquared, KNearest heap, IntList out) {
+    int start = out.size();
+    heap.reset(k);
+    nearest(0, ids.length, rgb, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, maxDistanceSquared, heap, out,
+        start + k);
+    heap.drainUnionTo(out, start);
+  }
+
+  private void visitNearest(int i, int r, int g, int b, int maxDistanceSquared, KNearest heap, IntList out) {
+    int dist = distanceSquared(i, r, g, b);
+    if (dist < maxDistanceSquared) {
+      out.add(ids[i]);
+    } else {
+      heap.offer(dist, ids[i]);
+    }
+  }
+
+  /**
+   * Visits the points in [lo, hi] that may be within <code>maxDistanceSquared</code> or among the nearest kept by
+   * <code>heap</code>, which stops mattering once <code>out</code> has <code>fullSize</code> ids.
+   */
+  private void nearest(int lo, int hi, int rgb, int r, int g, int b, int maxDistanceSquared, KNearest heap,
+      IntList out, int fullSize) {
+    if (hi - lo <= LEAF_SIZE) {
+      for (int i = lo; i < hi; i++) {
+        visitNearest(i, r, g, b, maxDistanceSquared, heap, out);
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    int axis = axes[mid];
+    int diff = channel(rgb, axis) - channels[axis][mid];
+    visitNearest(mid, r, g, b, maxDistanceSquared, heap, out);
+    int nearLo = diff < 0 ? lo : mid + 1, nearHi = diff < 0 ? mid : hi;
+    int farLo = diff < 0 ? mid + 1 : lo, farHi = diff < 0 ? hi : mid;
+    nearest(nearLo, nearHi, rgb, r, g, b, maxDistanceSquared, heap, out, fullSize);
+    int farDistance = diff * diff;
+    if (farDistance < maxDistanceSquared
+        || (out.size() < fullSize && (!heap.isFull() || farDistance <= heap.worstDistance()))) {
+      nearest(farLo, farHi, rgb, r, g, b, maxDistanceSquared, heap, out, fullSize);
+    }
+  }
+
+  // Within distance
+
+  @Override
+  public void withinDistance(int rgb, int maxDistanceSquared, IntList out) {
+    int start = out.size();
+    withinDistance(0, ids.length, rgb, (rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff, maxDistanceSquared, out);
+    out.sort(start);
+  }
+
+  private void withinDistance(int lo, int hi, int rgb, int r, int g, int b, int maxDistanceSquared, IntList out) {
+    if (hi - lo <= LEAF_SIZE) {
+      for (int i = lo; i < hi; i++) {
+        if (distanceSquared(i, r, g, b) < maxDistanceSquared) {
+          out.add(ids[i]);
+        }
+      }
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    int axis = axes[mid];
+    int diff = channel(rgb, axis) - channels[axis][mid];
+    if (distanceSquared(mid, r, g, b) < maxDistanceSquared) {
+      out.add(ids[mid]);
+    }
+    if (diff < 0 || diff * diff < maxDistanceSquared) {
+      withinDistance(lo, mid, rgb, r, g, b, maxDistanceSquared, out);
+    }
+    if (diff >= 0 || diff * diff < maxDistanceSquared) {
+      withinDistance(mid + 1, hi, rgb, r, g, b, maxDistanceSquared, out);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * Distance in CIELAB, the color space made so equal distances look about equally different. Colors are converted from
+ * sRGB under D65 through a table of the sRGB transfer curve and rounded to whole units, packed as L, a + 128 and
+ * b + 128, so a difference of one is about the smallest one can see and CIE76, the Euclidean distance, is what a
+ * {@link ColorIndex} measures.
+ *
+ * <p>
+ * CIEDE2000 corrects CIE76 for how differences in lightness, chroma and hue are seen. It isn't Euclidean, so indexes
+ * find candidates by CIE76 and those are measured again. Since CIEDE2000 shrinks the differences of saturated colors,
+ * candidates are taken from within {@link #CIEDE2000_INDEX_FACTOR} times the distance; for very saturated colors a few
+ * close ones can still be missed.
+ */
+final class LabColorMetric implements ColorMetric {
+
+  private final static int CIEDE2000_INDEX_FACTOR = 2;
+
+  // D65 white.
+  private final static double XN = 0.95047;
+  private final static double YN = 1.0;
+  private final static double ZN = 1.08883;
+
+  private final static double EPSILON = 216.0 / 24389;
+  private final static double KAPPA = 24389.0 / 27;
+
+  // Linear light of each 8-bit sRGB level.
+  private final static double[] LINEAR = new double[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      double c = i / 255.0;
+      LINEAR[i] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+    }
+  }
+
+  private final boolean ciede2000;
+
+  LabColorMetric(boolean ciede2000) {
+    this.ciede2000 = ciede2000;
+  }
+
+  @Override
+  public int toPoint(int rgb) {
+    double[] lab = toLab(rgb);
+    int l = clamp((int) Math.round(lab[0]));
+    int a = clamp((int) Math.round(lab[1]) + 128);
+    int b = clamp((int) Math.round(lab[2]) + 128);
+    return (l << 16) | (a << 8) | b;
+  }
+
+  @Override
+  public int toTargetPoint(int rgb) {
+    return toPoint(rgb);
+  }
+
+  private static int clamp(int c) {
+    return Math.max(0, Math.min(255, c));
+  }
+
+  @Override
+  public int distanceSquared(int a, int b) {
+    if (!ciede2000) {
+      return Util.distanceSquared(a, b);
+    }
+    double d = deltaE2000((a >> 16) & 0xff, ((a >> 8) & 0xff) - 128, (a & 0xff) - 128, (b >> 16) & 0xff,
+        ((b >> 8) & 0xff) - 128, (b & 0xff) - 128);
+    return (int) (d * d);
+  }
+
+  @Override
+  public boolean isEuclidean() {
+    return !ciede2000;
+  }
+
+  @Override
+  public int getIndexDistanceSquared(int distanceSquared) {
+    if (!ciede2000) {
+      return distanceSquared;
+    }
+    long res = (long) CIEDE2000_INDEX_FACTOR * CIEDE2000_INDEX_FACTOR * distanceSquared;
+    return (int) Math.min(Integer.MAX_VALUE, res);
+  }
+
+  /** Returns the L*, a* and b* of the packed sRGB color <code>rgb</code>. */
+  static double[] toLab(int rgb) {
+    double r = LINEAR[(rgb >> 16) & 0xff];
+    double g = LINEAR[(rgb >> 8) & 0xff];
+    double b = LINEAR[rgb & 0xff];
+    double x = (0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / XN;
+    double y = (0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / YN;
+    double z = (0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / ZN;
+    double fx = f(x), fy = f(y), fz = f(z);
+    return new double[] { 116 * fy - 16, 500 * (fx - fy), 200 * (fy - fz) };
+  }
+
+  private static double f(double t) {
+    return t > EPSILON ? Math.cbrt(t) : (KAPPA * t + 16) / 116;
+  }
+
+  /** Returns the CIEDE2000 difference between two CIELAB colors, following Sharma, Wu and Dalal (2005). */
+  static double deltaE2000(double l1, double a1, double b1, double l2, double a2, double b2) {
+    double c1 = Math.hypot(a1, b1);
+    double c2 = Math.hypot(a2, b2);
+    double meanC = (c1 + c2) / 2;
+    double meanC7 = Math.pow(meanC, 7);
+    double g = 0.5 * (1 - Math.sqrt(meanC7 / (meanC7 + Math.pow(25, 7))));
+    double a1p = (1 + g) * a1;
+    double a2p = (1 + g) * a2;
+    double c1p = Math.hypot(a1p, b1);
+    double c2p = Math.hypot(a2p, b2);
+    double h1p = hueDegrees(a1p, b1);
+    double h2p = hueDegrees(a2p, b2);
+
+    double dLp = l2 - l1;
+    double dCp = c2p - c1p;
+    double dhp;
+    if (c1p * c2p == 0) {
+      dhp = 0;
+    } else if (Math.abs(h2p - h1p) <= 180) {
+      dhp = h2p - h1p;
+    } else if (h2p - h1p > 180) {
+      dhp = h2p - h1p - 360;
+    } else {
+      dhp = h2p - h1p + 360;
+    }
+    double dHp = 2 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2));
+
+    double meanLp = (l1 + l2) / 2;
+    double meanCp = (c1p + c2p) / 2;
+    double meanHp;
+    if (c1p * c2p == 0) {
+      meanHp = h1p + h2p;
+    } else if (Math.abs(h1p - h2p) <= 180) {
+      meanHp = (h1p + h2p) / 2;
+    } else if (h1p + h2p < 360) {
+      meanHp = (h1p + h2p + 360) / 2;
+    } else {
+      meanHp = (h1p + h2p - 360) / 2;
+    }
+    double t = 1 - 0.17 * Math.cos(Math.toRadians(meanHp - 30)) + 0.24 * Math.cos(Math.toRadians(2 * meanHp))
+        + 0.32 * Math.cos(Math.toRadians(3 * meanHp + 6)) - 0.20 * Math.cos(Math.toRadians(4 * meanHp - 63));
+    double dTheta = 30 * Math.exp(-Math.pow((meanHp - 275) / 25, 2));
+    double meanCp7 = Math.pow(meanCp, 7);
+    double rc = 2 * Math.sqrt(meanCp7 / (meanCp7 + Math.pow(25, 7)));
+    double meanLp50 = (meanLp - 50) * (meanLp - 50);
+    double sl = 1 + 0.015 * meanLp50 / Math.sqrt(20 + meanLp50);
+    double sc = 1 + 0.045 * meanCp;
+    double sh = 1 + 0.015 * meanCp * t;
+    double rt = -Math.sin(Math.toRadians(2 * dTheta)) * rc;
+
+    double l = dLp / sl;
+    double c = dCp / sc;
+    double h = dHp / sh;
+    return Math.sqrt(l * l + c * c + h * h + rt * c * h);
+  }
+
+  private static double hueDegrees(double a, double b) {
+    if (a == 0 && b == 0) {
+      return 0;
+    }
+    double h = Math.toDegrees(Math.atan2(b, a));
+    return h < 0 ? h + 360 : h;
+  }
+}
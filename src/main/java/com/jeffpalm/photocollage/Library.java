@@ -0,0 +1,99 @@
+package com.jeffpalm.photocollage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The classified images a collage is made from. Images are identified by their position in the library, and the
+ * colors of each segment are indexed by that id as the points of the library's {@link ColorMetric}, converted once
+ * when the index is built.
+ */
+final class Library {
+
+  private final static Log log = Log.getLog();
+
+  private final List<ClassifiedImage> images;
+  private final ColorIndex.Type colorIndexType;
+  private final ColorMetric metric;
+  private final int candidateRadius;
+  private final AtomicReferenceArray<ColorIndex> colorIndexes = new AtomicReferenceArray<ColorIndex>(
+      ImageSegment.values().length);
+
+  Library(List<ClassifiedImage> images, ColorIndex.Type colorIndexType) {
+    this(images, colorIndexType, ColorMetric.Type.RGB.newMetric());
+  }
+
+  Library(List<ClassifiedImage> images, ColorIndex.Type colorIndexType, ColorMetric metric) {
+    this(images, colorIndexType, metric, 0);
+  }
+
+  /**
+   * Makes a library whose indexes are wrapped in a {@link CandidateTable} of <code>candidateRadius</code>, unless it's
+   * 0.
+   */
+  Library(List<ClassifiedImage> images, ColorIndex.Type colorIndexType, ColorMetric metric, int candidateRadius) {
+    this.images = new ArrayList<ClassifiedImage>(images);
+    this.colorIndexType = colorIndexType;
+    this.metric = metric;
+    this.candidateRadius = candidateRadius;
+  }
+
+  public int size() {
+    return images.size();
+  }
+
+  public ClassifiedImage get(int id) {
+    return images.get(id);
+  }
+
+  public List<ClassifiedImage> getImages() {
+    return images;
+  }
+
+  public ColorMetric getMetric() {
+    return metric;
+  }
+
+  /**
+   * Returns the index over the <code>s</code> colors of the images. Each index is built the first time its segment
+   * is queried, classifying the images in library order.
+   */
+  public ColorIndex getColorIndex(ImageSegment s) throws IOException {
+    ColorIndex index = colorIndexes.get(s.ordinal());
+    return index != null ? index : buildColorIndex(s);
+  }
+
+  private synchronized ColorIndex buildColorIndex(ImageSegment s) throws IOException {
+    ColorIndex index = colorIndexes.get(s.ordinal());
+    if (index == null) {
+      int[] colors = new int[images.size()];
+      for (int id = 0; id < colors.length; id++) {
+        colors[id] = metric.toPoint(images.get(id).getRGB(s));
+      }
+      long start = System.currentTimeMillis();
+      index = colorIndexType.newIndex(colors);
+      log.info("Built " + colorIndexType + " index of " + colors.length + " " + s + " colors in "
+          + (System.currentTimeMillis() - start) + "ms");
+      if (candidateRadius > 0) {
+        index = new CandidateTable(index, candidateRadius);
+      }
+      colorIndexes.set(s.ordinal(), index);
+    }
+    return index;
+  }
+
+  /** Describes the candidate tables of the indexes built so far. */
+  @Override
+  public String toString() {
+    StringBuilder res = new StringBuilder("Library(/*images=*/").append(images.size());
+    for (ImageSegment s : ImageSegment.values()) {
+      ColorIndex index = colorIndexes.get(s.ordinal());
+      if (index instanceof CandidateTable) {
+        res.append(", /*").append(s).append("=*/").append(index);
+      }
+    }
+    return res.append(")").toString();
+  }
+}
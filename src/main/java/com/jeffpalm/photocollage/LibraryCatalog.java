@@ -0,0 +1,325 @@
+package com.jeffpalm.photocollage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent listing of the library, so a run only lists the directories that changed since the last one and can
+ * tell which files were added, changed or removed.
+ *
+ * <p>
+ * Every directory is stored with its modification time and its children in the order it listed them, and every image
+ * with its size and modification time. A directory whose time hasn't changed isn't listed again; its images are only
+ * checked for new sizes and times. Directories are walked as {@link FileFinder} walks them, so the files come out in
+ * the same order.
+ */
+final class LibraryCatalog {
+
+  private final static Logger LOG = Logger.getLogger(LibraryCatalog.class.getName());
+
+  private final static int MAGIC = 0x50434c31; // PCL1
+
+  // A directory modified this recently may still change within the same tick of its clock, so it is listed again
+  // next time.
+  private final static long RACY_MILLIS = 2000;
+
+  private final static class Entry {
+    final String name;
+    final boolean isDirectory;
+    final long size;
+    final long lastModified;
+
+    Entry(String name, boolean isDirectory, long size, long lastModified) {
+      this.name = name;
+      this.isDirectory = isDirectory;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    static Entry of(File file) {
+      boolean isDirectory = file.isDirectory();
+      return new Entry(file.getName(), isDirectory, isDirectory ? 0 : file.length(), file.lastModified());
+    }
+  }
+
+  private final static class Dir {
+    // 0 if the directory must be listed again.
+    final long lastModified;
+    final List<Entry> entries;
+
+    Dir(long lastModified, List<Entry> entries) {
+      this.lastModified = lastModified;
+      this.entries = entries;
+    }
+  }
+
+  /** What an update found. */
+  final static class Changes {
+    private final List<File> files = new ArrayList<File>();
+    private final List<File> added = new ArrayList<File>();
+    private final List<File> changed = new ArrayList<File>();
+    private final List<File> removed = new ArrayList<File>();
+    private int listed;
+
+    /** Returns every image in the library, in the order {@link FileFinder} finds them. */
+    public List<File> getFiles() {
+      return files;
+    }
+
+    public List<File> getAdded() {
+      return added;
+    }
+
+    public List<File> getChanged() {
+      return changed;
+    }
+
+    public List<File> getRemoved() {
+      return removed;
+    }
+
+    /** Returns the added and changed images, which need classifying. */
+    public List<File> getAddedOrChanged() {
+      List<File> res = new ArrayList<File>(added);
+      res.addAll(changed);
+      return res;
+    }
+
+    public boolean isEmpty() {
+      return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Changes(/*files=*/%d, /*added=*/%d, /*changed=*/%d, /*removed=*/%d, /*listed=*/%d)",
+          files.size(), added.size(), changed.size(), removed.size(), listed);
+    }
+  }
+
+  private final File file;
+  // Directories by path, and the images that were given by themselves by path, named by their paths.
+  private final Map<String, Dir> dirs = new HashMap<String, Dir>();
+  private final Map<String, Entry> files = new HashMap<String, Entry>();
+  private final List<File> directories = new ArrayList<File>();
+  private boolean modified;
+
+  LibraryCatalog(File file) {
+    this.file = file;
+    if (file.exists()) {
+      try {
+        read();
+      } catch (IOException e) {
+        LOG.warn("ignoring unreadable library catalog " + file + ": " + e);
+        dirs.clear();
+        files.clear();
+      }
+    }
+  }
+
+  /** Returns every directory the last update walked. */
+  public synchronized List<File> getDirectories() {
+    return new ArrayList<File>(directories);
+  }
+
+  /** Walks the library of <code>finder</code>, listing only the directories that changed. */
+  public Changes update(FileFinder finder) {
+    return update(finder, null);
+  }
+
+  /**
+   * Walks the library of <code>finder</code>. When <code>dirty</code> is given, only those directories are checked
+   * and everything else is taken as it was, for when something else says what changed.
+   */
+  public synchronized Changes update(FileFinder finder, Set<File> dirty) {
+    long start = System.currentTimeMillis();
+    Changes changes = new Changes();
+    Map<String, Entry> newFiles = new HashMap<String, Entry>();
+    for (File f : finder.getFiles()) {
+      Entry entry = Entry.of(f);
+      newFiles.put(f.getPath(), new Entry(f.getPath(), false, entry.size, entry.lastModified));
+      diff(f, files.get(f.getPath()), entry, changes);
+      changes.files.add(f);
+    }
+    for (String path : files.keySet()) {
+      if (!newFiles.containsKey(path)) {
+        changes.removed.add(new File(path));
+      }
+    }
+    if (!changes.isEmpty()) {
+      files.clear();
+      files.putAll(newFiles);
+      modified = true;
+    }
+
+    directories.clear();
+    List<File> q = new LinkedList<File>(finder.getDirectories());
+    while (!q.isEmpty()) {
+      File dir = q.remove(0);
+      directories.add(dir);
+      for (Entry entry : updateDir(dir, dirty == null || dirty.contains(dir), changes)) {
+        (entry.isDirectory ? q : changes.files).add(new File(dir, entry.name));
+      }
+    }
+    LOG.infof("%s in %dms", changes, System.currentTimeMillis() - start);
+    return changes;
+  }
+
+  /** Returns the children of <code>dir</code>, listing it if it changed and checking its images if asked to. */
+  private List<Entry> updateDir(File dir, boolean check, Changes changes) {
+    String path = dir.getPath();
+    Dir old = dirs.get(path);
+    if (old != null && !check) {
+      return old.entries;
+    }
+    long lastModified = dir.lastModified();
+    boolean list = old == null || old.lastModified == 0 || old.lastModified != lastModified;
+    File[] children;
+    if (list) {
+      changes.listed++;
+      children = FileFinder.list(dir);
+    } else {
+      children = new File[old.entries.size()];
+      for (int i = 0; i < children.length; i++) {
+        children[i] = new File(dir, old.entries.get(i).name);
+      }
+    }
+
+    Map<String, Entry> oldEntries = new HashMap<String, Entry>();
+    if (old != null) {
+      for (Entry entry : old.entries) {
+        oldEntries.put(entry.name, entry);
+      }
+    }
+    List<Entry> entries = new ArrayList<Entry>(children.length);
+    boolean same = old != null && old.entries.size() == children.length;
+    for (File child : children) {
+      Entry entry = Entry.of(child);
+      Entry oldEntry = oldEntries.remove(entry.name);
+      if (oldEntry != null && oldEntry.isDirectory != entry.isDirectory) {
+        remove(child, oldEntry, changes);
+        oldEntry = null;
+      }
+      if (!entry.isDirectory) {
+        diff(child, oldEntry, entry, changes);
+      }
+      // Directories are the same if they're in the same place; their own times are checked when they're walked.
+      same = same && oldEntry != null && old.entries.get(entries.size()).name.equals(entry.name)
+          && oldEntry.size == entry.size && (entry.isDirectory || oldEntry.lastModified == entry.lastModified);
+      entries.add(entry);
+    }
+    for (Entry gone : oldEntries.values()) {
+      remove(new File(dir, gone.name), gone, changes);
+    }
+    if (System.currentTimeMillis() - lastModified < RACY_MILLIS) {
+      lastModified = 0;
+    }
+    if (!same || old.lastModified != lastModified) {
+      dirs.put(path, new Dir(lastModified, entries));
+      modified = true;
+    }
+    return same ? old.entries : entries;
+  }
+
+  private static void diff(File file, Entry old, Entry entry, Changes changes) {
+    if (old == null) {
+      changes.added.add(file);
+    } else if (old.size != entry.size || old.lastModified != entry.lastModified) {
+      changes.changed.add(file);
+    }
+  }
+
+  /** Drops <code>file</code> from the catalog, with everything under it if it was a directory. */
+  private void remove(File file, Entry entry, Changes changes) {
+    if (!entry.isDirectory) {
+      changes.removed.add(file);
+      return;
+    }
+    Dir dir = dirs.remove(file.getPath());
+    if (dir != null) {
+      for (Entry child : dir.entries) {
+        remove(new File(file, child.name), child, changes);
+      }
+    }
+  }
+
+  /** Writes the catalog if it changed, replacing the old one atomically. */
+  public synchronized void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      dir.mkdirs();
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(dirs.size());
+      for (Map.Entry<String, Dir> e : dirs.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeLong(e.getValue().lastModified);
+        writeEntries(out, e.getValue().entries);
+      }
+      writeEntries(out, files.values());
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    modified = false;
+  }
+
+  private static void writeEntries(DataOutputStream out, Collection<Entry> entries) throws IOException {
+    out.writeInt(entries.size());
+    for (Entry entry : entries) {
+      out.writeUTF(entry.name);
+      out.writeBoolean(entry.isDirectory);
+      out.writeLong(entry.size);
+      out.writeLong(entry.lastModified);
+    }
+  }
+
+  private void read() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("bad header");
+      }
+      for (int i = 0, n = in.readInt(); i < n; i++) {
+        String path = in.readUTF();
+        long lastModified = in.readLong();
+        dirs.put(path, new Dir(lastModified, readEntries(in)));
+      }
+      for (Entry entry : readEntries(in)) {
+        files.put(entry.name, entry);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<Entry> readEntries(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    List<Entry> res = new ArrayList<Entry>(Math.min(n, 1 << 16));
+    for (int i = 0; i < n; i++) {
+      res.add(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong()));
+    }
+    return Collections.unmodifiableList(res);
+  }
+}
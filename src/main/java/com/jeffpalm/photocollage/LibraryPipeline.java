@@ -0,0 +1,377 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepares a library in stages that run at once: discover, read, decode, classify and thumbnail. Each stage has its
+ * own threads and hands images to the next through a bounded queue, so a slow stage holds back the ones before it
+ * instead of letting decoded images pile up. Every image is read and decoded once, large enough for its colors and
+ * every thumbnail size it's missing, and images that are classified and have all their thumbnails are only read to
+ * hash them.
+ *
+ * <p>
+ * Each stage counts the images it handled and the time its threads were busy, and the queue in front of it is sampled,
+ * so the report shows which stage is the bottleneck: it's busy all the time and the queue in front of it is full.
+ */
+final class LibraryPipeline {
+
+  private final static Logger LOG = Logger.getLogger(LibraryPipeline.class.getName());
+
+  private final static long SAMPLE_MILLIS = 100;
+  private final static long LOG_MILLIS = 5000;
+
+  /** The work for one image as it moves through the stages. */
+  private final static class Job {
+    final File file;
+    byte[] contents;
+    BufferedImage image;
+    boolean classify;
+    final List<int[]> thumbnailSizes = new ArrayList<int[]>();
+
+    Job(File file) {
+      this.file = file;
+    }
+  }
+
+  // Ends a queue.
+  private final static Job END = new Job(null);
+
+  private final ImageClassifier imageClassifier;
+  private final boolean classify;
+  private final ThumbnailStore thumbnailStore;
+  private final List<int[]> thumbnailSizes = new ArrayList<int[]>();
+  private final int ioParallelism;
+  private final int decodeParallelism;
+
+  /**
+   * @param classify
+   *          whether to classify the images that aren't cached yet
+   * @param thumbnailStore
+   *          where the thumbnails of {@link #addThumbnailSize} go
+   * @param decodeParallelism
+   *          how many images to decode and how many thumbnails to write at once, 0 for the number of processors
+   * @param ioParallelism
+   *          how many files to read at once, 0 for twice <code>decodeParallelism</code>
+   */
+  LibraryPipeline(ImageClassifier imageClassifier, boolean classify, ThumbnailStore thumbnailStore,
+      int decodeParallelism, int ioParallelism) {
+    this.imageClassifier = imageClassifier;
+    this.classify = classify;
+    this.thumbnailStore = thumbnailStore;
+    this.decodeParallelism = decodeParallelism > 0 ? decodeParallelism : Runtime.getRuntime().availableProcessors();
+    this.ioParallelism = ioParallelism > 0 ? ioParallelism : 2 * this.decodeParallelism;
+  }
+
+  /** Also generates the thumbnails of every image for cells of <code>width</code> by <code>height</code>. */
+  public LibraryPipeline addThumbnailSize(int width, int height) {
+    thumbnailSizes.add(new int[] { width, height });
+    return this;
+  }
+
+  /**
+   * Runs every image of <code>files</code> through the pipeline and flushes the color cache.
+   *
+   * @return the images that failed
+   */
+  public List<ParallelClassifier.Failure> run(final Iterable<File> files) throws IOException, InterruptedException {
+    final Iterator<File> it = files.iterator();
+    return run(new Source() {
+      @Override
+      public File next() {
+        return it.hasNext() ? it.next() : null;
+      }
+    });
+  }
+
+  /**
+   * Runs the images <code>discovery</code> finds through the pipeline as they're found, like {@link #run(Iterable)}.
+   *
+   * @return the images that failed
+   */
+  public List<ParallelClassifier.Failure> run(final FileDiscovery discovery)
+      throws IOException, InterruptedException {
+    return run(new Source() {
+      @Override
+      public File next() throws InterruptedException {
+        return discovery.take();
+      }
+    });
+  }
+
+  private interface Source {
+    /** Returns the next file, or null at the end. */
+    File next() throws InterruptedException;
+  }
+
+  private List<ParallelClassifier.Failure> run(final Source source) throws IOException, InterruptedException {
+    final List<ParallelClassifier.Failure> failures =
+        Collections.synchronizedList(new ArrayList<ParallelClassifier.Failure>());
+    List<Stage> stages = new ArrayList<Stage>();
+    stages.add(new Stage("discover", 1, null, newQueue(ioParallelism), failures) {
+      @Override
+      Job next() throws InterruptedException {
+        File file = source.next();
+        return file == null ? END : new Job(file);
+      }
+
+      @Override
+      boolean process(Job job) {
+        return true;
+      }
+    });
+    stages.add(new Stage("read", ioParallelism, last(stages), newQueue(decodeParallelism), failures) {
+      @Override
+      boolean process(Job job) throws IOException {
+        return read(job);
+      }
+    });
+    stages.add(new Stage("decode", decodeParallelism, last(stages), newQueue(1), failures) {
+      @Override
+      boolean process(Job job) throws IOException {
+        int size = 0;
+        for (int[] thumbnailSize : job.thumbnailSizes) {
+          size = Math.max(size, thumbnailSize[0]);
+        }
+        job.image = ImageDecoder.decode(job.file, job.contents, size, job.classify,
+            imageClassifier.getColorTolerance());
+        job.contents = null;
+        return true;
+      }
+    });
+    stages.add(new Stage("classify", 1, last(stages), newQueue(decodeParallelism), failures) {
+      @Override
+      boolean process(Job job) throws IOException {
+        if (job.classify) {
+          imageClassifier.classifyAll(job.file, job.image);
+        }
+        return true;
+      }
+    });
+    stages.add(new Stage("thumbnail", decodeParallelism, last(stages), null, failures) {
+      @Override
+      boolean process(Job job) throws IOException {
+        for (int[] size : job.thumbnailSizes) {
+          thumbnailStore.put(job.file, job.image, size[0], size[1]);
+        }
+        job.image = null;
+        return true;
+      }
+    });
+
+    int threads = 0;
+    for (Stage stage : stages) {
+      threads += stage.threads;
+    }
+    CountDownLatch finished = new CountDownLatch(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (Stage stage : stages) {
+        for (int i = 0; i < stage.threads; i++) {
+          futures.add(executor.submit(stage.newWorker(finished)));
+        }
+      }
+      long lastLog = start;
+      while (!finished.await(SAMPLE_MILLIS, TimeUnit.MILLISECONDS)) {
+        for (Future<?> future : futures) {
+          if (future.isDone()) {
+            // Throws if a stage died, which would otherwise hold up the stages before it forever.
+            future.get();
+          }
+        }
+        for (Stage stage : stages) {
+          stage.sample();
+        }
+        if (System.nanoTime() - lastLog >= TimeUnit.MILLISECONDS.toNanos(LOG_MILLIS)) {
+          lastLog = System.nanoTime();
+          LOG.info(getProgress(stages, failures.size()));
+        }
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    imageClassifier.flush();
+    LOG.info(getReport(stages, System.nanoTime() - start, failures.size()));
+    return failures;
+  }
+
+  /** Sees what <code>job</code> needs and reads its file if it needs anything. */
+  private boolean read(Job job) throws IOException {
+    job.classify = classify && !imageClassifier.isClassified(job.file);
+    if (!job.classify && thumbnailSizes.isEmpty()) {
+      return false;
+    }
+    long lastModified = job.file.lastModified();
+    job.contents = Files.readAllBytes(job.file.toPath());
+    if (!thumbnailSizes.isEmpty()) {
+      thumbnailStore.getContentHash(job.file, lastModified, job.contents);
+      for (int[] size : thumbnailSizes) {
+        if (!thumbnailStore.getThumbnailFile(job.file, size[0], size[1]).isFile()) {
+          job.thumbnailSizes.add(size);
+        }
+      }
+    }
+    if (!job.classify && job.thumbnailSizes.isEmpty()) {
+      job.contents = null;
+      return false;
+    }
+    return true;
+  }
+
+  private static BlockingQueue<Job> newQueue(int consumers) {
+    return new ArrayBlockingQueue<Job>(2 * consumers);
+  }
+
+  private static BlockingQueue<Job> last(List<Stage> stages) {
+    return stages.get(stages.size() - 1).out;
+  }
+
+  private static String getProgress(List<Stage> stages, int failed) {
+    StringBuilder res = new StringBuilder();
+    for (Stage stage : stages) {
+      res.append(stage.name).append('=').append(stage.processed.get());
+      if (stage.in != null) {
+        res.append("(q=").append(stage.in.size()).append(')');
+      }
+      res.append(' ');
+    }
+    return res.append("failed=").append(failed).toString();
+  }
+
+  private static String getReport(List<Stage> stages, long nanos, int failed) {
+    double seconds = Math.max(1, nanos) / 1e9;
+    StringBuilder res = new StringBuilder(String.format("pipeline done in %dms, %d failed", nanos / 1000000, failed));
+    for (Stage stage : stages) {
+      res.append(String.format("%n  %-9s %2d threads %6d in %6d out %8.1f/s %5.1f%% busy", stage.name, stage.threads,
+          stage.processed.get(), stage.passed.get(), stage.processed.get() / seconds,
+          100.0 * stage.busyNanos.get() / stage.threads / nanos));
+      if (stage.in != null) {
+        res.append(String.format(", queue %.1f mean %d max of %d", stage.getMeanDepth(), stage.maxDepth,
+            stage.in.size() + stage.in.remainingCapacity()));
+      }
+    }
+    return res.toString();
+  }
+
+  /** A step of the pipeline, taking jobs from <code>in</code> and putting those it keeps on <code>out</code>. */
+  private abstract class Stage {
+    final String name;
+    final int threads;
+    final BlockingQueue<Job> in;
+    final BlockingQueue<Job> out;
+    final List<ParallelClassifier.Failure> failures;
+    final AtomicInteger processed = new AtomicInteger();
+    final AtomicInteger passed = new AtomicInteger();
+    final AtomicLong busyNanos = new AtomicLong();
+    final AtomicInteger live;
+    // Written by the sampling thread only.
+    long depthSum;
+    int samples;
+    int maxDepth;
+
+    Stage(String name, int threads, BlockingQueue<Job> in, BlockingQueue<Job> out,
+        List<ParallelClassifier.Failure> failures) {
+      this.name = name;
+      this.threads = threads;
+      this.in = in;
+      this.out = out;
+      this.failures = failures;
+      this.live = new AtomicInteger(threads);
+    }
+
+    /** Returns the next job, or {@link #END}. */
+    Job next() throws InterruptedException {
+      Job job = in.take();
+      if (job == END) {
+        // Let the other threads of this stage see it too.
+        in.put(END);
+      }
+      return job;
+    }
+
+    /** Does this stage's work on <code>job</code>, returning whether it goes on to the next stage. */
+    abstract boolean process(Job job) throws IOException;
+
+    void sample() {
+      if (in != null) {
+        int depth = in.size();
+        depthSum += depth;
+        samples++;
+        maxDepth = Math.max(maxDepth, depth);
+      }
+    }
+
+    double getMeanDepth() {
+      return samples == 0 ? 0 : (double) depthSum / samples;
+    }
+
+    Runnable newWorker(final CountDownLatch finished) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          try {
+            work();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            finished.countDown();
+          }
+        }
+      };
+    }
+
+    private void work() throws InterruptedException {
+      boolean ended = false;
+      try {
+        Job job;
+        while ((job = next()) != END) {
+          long start = System.nanoTime();
+          boolean keep;
+          try {
+            keep = process(job);
+          } catch (Exception e) {
+            failures.add(new ParallelClassifier.Failure(new ClassifiedImage(job.file, imageClassifier), e));
+            keep = false;
+          }
+          busyNanos.addAndGet(System.nanoTime() - start);
+          processed.incrementAndGet();
+          if (keep) {
+            passed.incrementAndGet();
+            if (out != null) {
+              out.put(job);
+            }
+          }
+        }
+        ended = true;
+      } finally {
+        // A stage that stopped early leaves the next one waiting; the run is being cancelled anyway.
+        if (live.decrementAndGet() == 0 && out != null && ended) {
+          out.put(END);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.jeffpalm.photocollage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link LibraryCatalog} and the color cache current while files arrive. Every library directory is watched
+ * with a {@link WatchService}; once events stop for {@link #QUIET_MILLIS}, the directories they came from are checked
+ * and the images added or changed in them are classified.
+ */
+final class LibraryWatcher {
+
+  private final static Logger LOG = Logger.getLogger(LibraryWatcher.class.getName());
+
+  // Files are usually copied in bursts, so changes are picked up once events stop for this long.
+  private final static long QUIET_MILLIS = 500;
+
+  private final LibraryCatalog catalog;
+  private final FileFinder finder;
+  private final ImageClassifier imageClassifier;
+  private final ParallelClassifier parallelClassifier;
+  private final Map<WatchKey, File> watched = new HashMap<WatchKey, File>();
+  private final Set<File> watchedDirs = new HashSet<File>();
+
+  LibraryWatcher(LibraryCatalog catalog, FileFinder finder, ImageClassifier imageClassifier,
+      ParallelClassifier parallelClassifier) {
+    this.catalog = catalog;
+    this.finder = finder;
+    this.imageClassifier = imageClassifier;
+    this.parallelClassifier = parallelClassifier;
+  }
+
+  /** Classifies the whole library, then whatever is added or changed in it until the thread is interrupted. */
+  public void run() throws IOException, InterruptedException {
+    WatchService watchService = FileSystems.getDefault().newWatchService();
+    try {
+      LibraryCatalog.Changes changes = catalog.update(finder);
+      classify(changes.getFiles());
+      catalog.save();
+      Set<File> dirty = watchNewDirectories(watchService);
+      while (true) {
+        if (dirty.isEmpty()) {
+          dirty = take(watchService);
+        }
+        // A directory that appeared is walked before it's watched, so check it again once it is.
+        changes = catalog.update(finder, dirty);
+        dirty = watchNewDirectories(watchService);
+        if (!changes.isEmpty()) {
+          LOG.info("library " + changes);
+          classify(changes.getAddedOrChanged());
+          catalog.save();
+        }
+      }
+    } finally {
+      watchService.close();
+    }
+  }
+
+  /**
+   * Waits for events and returns the directories they came from once they stop, or null when events were lost and
+   * everything needs checking.
+   */
+  private Set<File> take(WatchService watchService) throws InterruptedException {
+    Set<File> res = new HashSet<File>();
+    boolean overflow = false;
+    WatchKey key = watchService.take();
+    while (key != null) {
+      File dir = watched.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          overflow = true;
+        }
+      }
+      if (dir != null) {
+        res.add(dir);
+      }
+      if (!key.reset()) {
+        // The directory is gone; its parent's events say so.
+        watched.remove(key);
+        watchedDirs.remove(dir);
+      }
+      key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    return overflow ? null : res;
+  }
+
+  /** Watches the directories the catalog walked that aren't watched yet, and returns them. */
+  private Set<File> watchNewDirectories(WatchService watchService) throws IOException {
+    Set<File> res = new HashSet<File>();
+    for (File dir : catalog.getDirectories()) {
+      if (watchedDirs.contains(dir) || !dir.isDirectory()) {
+        continue;
+      }
+      Path path = dir.toPath();
+      WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      watched.put(key, dir);
+      watchedDirs.add(dir);
+      res.add(dir);
+    }
+    if (!res.isEmpty()) {
+      LOG.infof("watching %d directories", watchedDirs.size());
+    }
+    return res;
+  }
+
+  private void classify(List<File> files) throws IOException, InterruptedException {
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (File file : files) {
+      images.add(new ClassifiedImage(file, imageClassifier));
+    }
+    List<ParallelClassifier.Failure> failures = parallelClassifier.classify(images);
+    for (ParallelClassifier.Failure failure : failures.subList(0, Math.min(10, failures.size()))) {
+      LOG.warn("Can't be classified: " + failure);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.jeffpalm.photocollage;
+
+/** A {@link ColorIndex} that scans every color on every query. */
+final class LinearColorIndex implements ColorIndex {
+
+  private final int[] colors;
+
+  LinearColorIndex(int[] colors) {
+    this.colors = colors.clone();
+  }
+
+  @Override
+  public int size() {
+    return colors.length;
+  }
+
+  @Override
+  public int getColor(int id) {
+    return colors[id];
+  }
+
+  @Override
+  public int nearest(int rgb) {
+    int nearestDistance = Integer.MAX_VALUE;
+    int nearestId = -1;
+    for (int id = 0; id < colors.length; id++) {
+      int dist = Util.distanceSquared(rgb, colors[id]);
+      if (dist < nearestDistance) {
+        nearestDistance = dist;
+        nearestId = id;
+      }
+    }
+    return nearestId;
+  }
+
+  @Override
+  public void nearest(int rgb, int k, KNearest heap, IntList out) {
+    heap.reset(k);
+    for (int id = 0; id < colors.length; id++) {
+      heap.offer(Util.distanceSquared(rgb, colors[id]), id);
+    }
+    heap.drainTo(out);
+  }
+
+  @Override
+  public void nearest(int rgb, int k, int maxDistanceSquared, KNearest heap, IntList out) {
+    int start = out.size();
+    heap.reset(k);
+    for (int id = 0; id < colors.length; id++) {
+      int dist = Util.distanceSquared(rgb, colors[id]);
+      if (dist < maxDistanceSquared) {
+        out.add(id);
+      } else {
+        heap.offer(dist, id);
+      }
+    }
+    heap.drainUnionTo(out, start);
+  }
+
+  @Override
+  public void withinDistance(int rgb, int maxDistanceSquared, IntList out) {
+    for (int id = 0; id < colors.length; id++) {
+      if (Util.distanceSquared(rgb, colors[id]) < maxDistanceSquared) {
+        out.add(id);
+      }
+    }
+  }
+}
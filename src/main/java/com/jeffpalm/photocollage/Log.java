@@ -3,27 +3,59 @@ package com.jeffpalm.photocollage;
 final class Log {
   
   private final static Logger LOG = Logger.getLogger(PhotoCollageCreator.class.getSimpleName());
-  private int height, width;
-  private int row = 0, col = 0;
-  private boolean done = false;
+
+  /** How far the render on one thread is through its grid. */
+  private final static class Progress {
+    int height, width;
+    int row = 0, col = 0;
+    boolean done = false;
+  }
+
+  // Collages may be rendered on several threads at once, each matching its grid on its own thread.
+  private final ThreadLocal<Progress> progress = new ThreadLocal<Progress>() {
+    @Override
+    protected Progress initialValue() {
+      return new Progress();
+    }
+  };
   
   private Log() {}
 
   public void start(int height, int width) {
-    this.height = height;
-    this.width = width;
-    this.row = 0;
-    this.col = 0;
-    this.done = false;
+    Progress p = progress.get();
+    p.height = height;
+    p.width = width;
+    p.row = 0;
+    p.col = 0;
+    p.done = false;
   }
 
   public void done() {
-    done = true;
+    progress.get().done = true;
+  }
+
+  public boolean isDebugEnabled() {
+    return LOG.isEnabled(Logger.Level.DEBUG);
+  }
+
+  /** Logs <code>str</code> with the progress through the grid, if debugging. */
+  public void debug(String str) {
+    if (isDebugEnabled()) {
+      LOG.debug(withProgress(str));
+    }
   }
 
   public void info(String str) {
+    if (LOG.isEnabled(Logger.Level.INFO)) {
+      LOG.info(withProgress(str));
+    }
+  }
+
+  private String withProgress(String str) {
+    Progress p = progress.get();
+    int height = p.height, width = p.width, row = p.row, col = p.col;
     String msg;
-    if (done) {
+    if (p.done) {
       msg = "DONE " + str;
     } else if (height == 0 || width == 0) {
       msg = str;
@@ -34,16 +66,17 @@ final class Log {
           + " %.3f%%", 100.0 * current / total);
       msg = currentString + " " + str;
     }
-    LOG.info(msg);
+    return msg;
   }
 
   public void nextRow() {
-    row++;
-    col = 0;
+    Progress p = progress.get();
+    p.row++;
+    p.col = 0;
   }
 
   public void nextCol() {
-    col++;
+    progress.get().col++;
   }
 
   public static Log getLog() {
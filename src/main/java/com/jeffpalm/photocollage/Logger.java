@@ -1,32 +1,179 @@
 package com.jeffpalm.photocollage;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Leveled logging to stderr. Messages below the level are dropped before they're formatted, so disabled calls cost a
+ * volatile read; the <code>f</code> variants are the ones to use where a message would have to be built. Lines that
+ * are logged go through a bounded queue to a writer thread that prints them in batches, so callers don't wait on
+ * stderr unless it falls far behind.
+ */
 public class Logger {
-  
-  private final static Map<String, Logger> loggerMap = new HashMap<String, Logger>();
-  
+
+  enum Level {
+    DEBUG, INFO, WARN, OFF
+  }
+
+  // Lines that may wait for the writer before callers block.
+  private final static int QUEUE_SIZE = 8192;
+  private final static long SHUTDOWN_FLUSH_MILLIS = 2000;
+
+  private final static ConcurrentHashMap<String, Logger> loggerMap = new ConcurrentHashMap<String, Logger>();
+  private final static BlockingQueue<String> lines = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+  private final static Object writtenLock = new Object();
+
+  private static volatile Level level = Level.INFO;
+  private static long queued;
+  private static long written;
+  private static volatile Thread writer;
+
   private final String name;
-  
+
   private Logger(String name) {
     this.name = name;
   }
-  
+
+  static void setLevel(Level level) {
+    Logger.level = level;
+  }
+
+  static Level getLevel() {
+    return level;
+  }
+
+  public boolean isEnabled(Level level) {
+    return level != Level.OFF && level.compareTo(Logger.level) >= 0;
+  }
+
+  public void debug(String msg) {
+    log(Level.DEBUG, msg);
+  }
+
+  public void debugf(String tmpl, Object... args) {
+    if (isEnabled(Level.DEBUG)) {
+      log(Level.DEBUG, String.format(tmpl, args));
+    }
+  }
+
   public void info(String msg) {
-    System.err.println(name + " " + msg);
+    log(Level.INFO, msg);
   }
 
   public void infof(String tmpl, Object... args) {
-    System.err.println(String.format(name + " " + tmpl, args));
+    if (isEnabled(Level.INFO)) {
+      log(Level.INFO, String.format(tmpl, args));
+    }
   }
 
+  public void warn(String msg) {
+    log(Level.WARN, msg);
+  }
+
+  public void warnf(String tmpl, Object... args) {
+    if (isEnabled(Level.WARN)) {
+      log(Level.WARN, String.format(tmpl, args));
+    }
+  }
+
+  private void log(Level level, String msg) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    String line = name + " " + msg;
+    synchronized (writtenLock) {
+      queued++;
+    }
+    if (writer == null) {
+      startWriter();
+    }
+    try {
+      lines.put(line);
+    } catch (InterruptedException e) {
+      // Print it here rather than lose it.
+      Thread.currentThread().interrupt();
+      print(line + System.lineSeparator(), 1);
+    }
+  }
+
+  /** Waits until every line logged so far has been printed. */
+  public static void flush() {
+    flush(Long.MAX_VALUE);
+  }
+
+  private static void flush(long timeoutMillis) {
+    long deadline = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+    synchronized (writtenLock) {
+      long target = queued;
+      while (written < target) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          return;
+        }
+        try {
+          writtenLock.wait(Math.min(wait, 100));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null) {
+      return;
+    }
+    writer = new Thread("logger") {
+      @Override
+      public void run() {
+        List<String> batch = new ArrayList<String>();
+        StringBuilder out = new StringBuilder();
+        while (true) {
+          try {
+            batch.add(lines.take());
+          } catch (InterruptedException e) {
+            return;
+          }
+          lines.drainTo(batch);
+          for (String line : batch) {
+            out.append(line).append(System.lineSeparator());
+          }
+          print(out.toString(), batch.size());
+          batch.clear();
+          out.setLength(0);
+        }
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        flush(SHUTDOWN_FLUSH_MILLIS);
+      }
+    });
+  }
+
+  private static void print(String text, int count) {
+    System.err.print(text);
+    System.err.flush();
+    synchronized (writtenLock) {
+      written += count;
+      writtenLock.notifyAll();
+    }
+  }
 
   public static Logger getLogger(String name) {
     Logger logger = loggerMap.get(name);
     if (logger == null) {
-      logger = new Logger(name);
-      loggerMap.put(name, logger);
+      Logger existing = loggerMap.putIfAbsent(name, logger = new Logger(name));
+      if (existing != null) {
+        logger = existing;
+      }
     }
     return logger;
   }
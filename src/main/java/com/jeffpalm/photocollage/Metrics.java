@@ -0,0 +1,237 @@
+package com.jeffpalm.photocollage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, timers and histograms of a run by name, dumped as JSON at the end of it. Metrics are off until
+ * {@link #setEnabled} turns them on; until then recording is a volatile read, and timers don't read the clock.
+ */
+final class Metrics {
+
+  private static volatile boolean enabled;
+
+  private final static ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private final static ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+  private final static ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+  private Metrics() {}
+
+  static void setEnabled(boolean enabled) {
+    Metrics.enabled = enabled;
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  static Counter counter(String name) {
+    Counter res = counters.get(name);
+    if (res == null) {
+      Counter existing = counters.putIfAbsent(name, res = new Counter());
+      if (existing != null) {
+        res = existing;
+      }
+    }
+    return res;
+  }
+
+  static Histogram histogram(String name) {
+    Histogram res = histograms.get(name);
+    if (res == null) {
+      Histogram existing = histograms.putIfAbsent(name, res = new Histogram());
+      if (existing != null) {
+        res = existing;
+      }
+    }
+    return res;
+  }
+
+  static Timer timer(String name) {
+    Timer res = timers.get(name);
+    if (res == null) {
+      Timer existing = timers.putIfAbsent(name, res = new Timer());
+      if (existing != null) {
+        res = existing;
+      }
+    }
+    return res;
+  }
+
+  /** Zeroes everything recorded so far. */
+  static void reset() {
+    for (Counter counter : counters.values()) {
+      counter.count.set(0);
+    }
+    for (Histogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+    for (Timer timer : timers.values()) {
+      timer.nanos.reset();
+    }
+  }
+
+  final static class Counter {
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+      if (enabled) {
+        count.incrementAndGet();
+      }
+    }
+
+    public void add(long n) {
+      if (enabled) {
+        count.addAndGet(n);
+      }
+    }
+
+    public long get() {
+      return count.get();
+    }
+  }
+
+  /**
+   * Non-negative values in power-of-two buckets, so recording is a few atomic adds and percentiles are within a factor
+   * of two, reported as the top of their bucket.
+   */
+  final static class Histogram {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    // Bucket b holds values with b significant bits, so bucket 0 holds 0.
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    public void record(long value) {
+      if (enabled) {
+        doRecord(value);
+      }
+    }
+
+    private void doRecord(long value) {
+      value = Math.max(0, value);
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        // Lost a race; try again.
+      }
+    }
+
+    private void reset() {
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+      for (int b = 0; b < buckets.length(); b++) {
+        buckets.set(b, 0);
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /** Returns the top of the bucket that holds the <code>p</code>th percentile, at most the maximum. */
+    public long getPercentile(double p) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(p / 100 * n);
+      long seen = 0;
+      for (int b = 0; b < 64; b++) {
+        seen += buckets.get(b);
+        if (seen >= rank) {
+          return Math.min(max.get(), b == 0 ? 0 : (1L << b) - 1);
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /** A histogram of durations in nanoseconds. */
+  final static class Timer {
+    private final Histogram nanos = new Histogram();
+
+    /** Returns the time to pass to {@link #stop}, or 0 when metrics are off. */
+    public long start() {
+      return enabled ? System.nanoTime() : 0;
+    }
+
+    public void stop(long start) {
+      if (start != 0) {
+        nanos.doRecord(System.nanoTime() - start);
+      }
+    }
+
+    public Histogram getNanos() {
+      return nanos;
+    }
+  }
+
+  /** Returns everything recorded as JSON, with durations in microseconds. */
+  static String toJson() {
+    StringBuilder res = new StringBuilder("{\n  \"counters\": {");
+    String sep = "\n";
+    for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet()) {
+      res.append(sep).append("    ").append(quote(e.getKey())).append(": ").append(e.getValue().get());
+      sep = ",\n";
+    }
+    res.append("\n  },\n  \"timers\": {");
+    sep = "\n";
+    for (Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).entrySet()) {
+      res.append(sep).append("    ").append(quote(e.getKey())).append(": ");
+      appendHistogram(res, e.getValue().getNanos(), 1000);
+      sep = ",\n";
+    }
+    res.append("\n  },\n  \"histograms\": {");
+    sep = "\n";
+    for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()) {
+      res.append(sep).append("    ").append(quote(e.getKey())).append(": ");
+      appendHistogram(res, e.getValue(), 1);
+      sep = ",\n";
+    }
+    return res.append("\n  }\n}\n").toString();
+  }
+
+  private static void appendHistogram(StringBuilder out, Histogram h, double unit) {
+    long n = h.getCount();
+    out.append(String.format(Locale.ROOT, "{\"count\": %d, \"total\": %.1f, \"mean\": %.1f, ", n, h.getSum() / unit,
+        n == 0 ? 0.0 : h.getSum() / unit / n));
+    out.append(String.format(Locale.ROOT, "\"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"max\": %.1f}",
+        h.getPercentile(50) / unit, h.getPercentile(90) / unit, h.getPercentile(99) / unit, h.getMax() / unit));
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /** Writes {@link #toJson} to <code>file</code>. */
+  static void writeJson(File file) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      out.write(toJson());
+    } finally {
+      out.close();
+    }
+  }
+}
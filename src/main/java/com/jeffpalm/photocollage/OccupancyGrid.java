@@ -0,0 +1,65 @@
+package com.jeffpalm.photocollage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The image placed in each cell of a collage so far, so a cell can leave out the images already used within
+ * <code>radius</code> cells of it in any direction. Looking around a cell reads the (2 * radius + 1)<sup>2</sup> cells
+ * near it and marks what they hold in a stamp array by library id, so checking a candidate is one array read however
+ * many candidates there are.
+ *
+ * <p>
+ * Cells may be placed from several threads; a cell placed on another thread at the same moment may not be seen.
+ */
+final class OccupancyGrid {
+
+  private final static int EMPTY = -1;
+
+  private final int width;
+  private final int height;
+  private final int radius;
+  private final AtomicIntegerArray cells;
+
+  OccupancyGrid(int width, int height, int radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius must not be negative: " + radius);
+    }
+    this.width = width;
+    this.height = height;
+    this.radius = radius;
+    this.cells = new AtomicIntegerArray(width * height);
+    for (int i = 0; i < cells.length(); i++) {
+      cells.set(i, EMPTY);
+    }
+  }
+
+  public int getRadius() {
+    return radius;
+  }
+
+  /** Records that cell (x, y) holds image <code>id</code>. */
+  public void place(int x, int y, int id) {
+    cells.set(y * width + x, id);
+  }
+
+  /** Returns the image in cell (x, y), or -1 if none was placed there. */
+  public int get(int x, int y) {
+    return cells.get(y * width + x);
+  }
+
+  /** Sets <code>stamps[id]</code> to <code>stamp</code> for every image placed within the radius of (x, y). */
+  public void markNearby(int x, int y, int[] stamps, int stamp) {
+    int firstRow = Math.max(0, y - radius);
+    int lastRow = Math.min(height - 1, y + radius);
+    int firstCol = Math.max(0, x - radius);
+    int lastCol = Math.min(width - 1, x + radius);
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int col = firstCol, i = row * width + firstCol; col <= lastCol; col++, i++) {
+        int id = cells.get(i);
+        if (id != EMPTY) {
+          stamps[id] = stamp;
+        }
+      }
+    }
+  }
+}
@@ -5,6 +5,12 @@ import java.io.IOException;
 
 interface Output {
   Output open(File outFile, int newWidth, int newHeight) throws IOException;
-  void write(File bufImage, int x, int y) throws IOException;
+  void write(Tile tile, int x, int y) throws IOException;
+
+  /** Returns whether tiles at different positions can be written from several threads at once. */
+  boolean supportsConcurrentWrites();
   void close() throws IOException;
+
+  /** Releases the output without finishing it, after a write or close failed, and deletes what was written. */
+  void abort();
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+package com.jeffpalm.photocollage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies a library up front on a work-stealing pool. Reading files and decoding them are limited separately, so
+ * slow disks can have many reads in flight while decoding stays at the number of cores. Images that fail are
+ * collected and reported together instead of stopping the run.
+ */
+final class ParallelClassifier {
+
+  private final static Logger LOG = Logger.getLogger(ParallelClassifier.class.getName());
+
+  // Images per leaf task; larger ranges are split so idle threads can steal them.
+  private final static int BATCH_SIZE = 16;
+  // How often to log progress when the number of images isn't known.
+  private final static int UNKNOWN_LOG_EVERY = 1000;
+
+  private final ImageClassifier imageClassifier;
+  private final int ioParallelism;
+  private final int decodeParallelism;
+
+  /**
+   * @param decodeParallelism
+   *          how many images to decode at once, 0 for the number of processors
+   * @param ioParallelism
+   *          how many files to read at once, 0 for twice <code>decodeParallelism</code>
+   */
+  ParallelClassifier(ImageClassifier imageClassifier, int decodeParallelism, int ioParallelism) {
+    this.imageClassifier = imageClassifier;
+    this.decodeParallelism = decodeParallelism > 0 ? decodeParallelism : Runtime.getRuntime().availableProcessors();
+    this.ioParallelism = ioParallelism > 0 ? ioParallelism : 2 * this.decodeParallelism;
+  }
+
+  /** The images that couldn't be classified and why. */
+  final static class Failure {
+    final ClassifiedImage image;
+    final Exception exception;
+
+    Failure(ClassifiedImage image, Exception exception) {
+      this.image = image;
+      this.exception = exception;
+    }
+
+    @Override
+    public String toString() {
+      return image.getFile() + ": " + exception;
+    }
+  }
+
+  /**
+   * Classifies every segment of the <code>images</code> that aren't cached yet and flushes the color cache.
+   *
+   * @return the images that failed
+   */
+  public List<Failure> classify(List<ClassifiedImage> images) throws IOException, InterruptedException {
+    Run run = new Run(images.size());
+    ForkJoinPool pool = new ForkJoinPool(ioParallelism + decodeParallelism);
+    try {
+      pool.submit(run.new ClassifyTask(images)).get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return run.finish();
+  }
+
+  /**
+   * Classifies the images <code>discovery</code> finds as they're found, like {@link #classify(List)}.
+   *
+   * @return the images that failed
+   */
+  public List<Failure> classify(FileDiscovery discovery) throws IOException, InterruptedException {
+    Run run = new Run(-1);
+    ForkJoinPool pool = new ForkJoinPool(ioParallelism + decodeParallelism);
+    // Walking can outrun classifying by far, so only a few batches are queued at a time.
+    int maxTasks = 2 * (ioParallelism + decodeParallelism);
+    Semaphore taskPermits = new Semaphore(maxTasks);
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    try {
+      List<ClassifiedImage> batch = new ArrayList<ClassifiedImage>();
+      File file;
+      while ((file = discovery.take()) != null) {
+        batch.add(new ClassifiedImage(file, imageClassifier));
+        if (batch.size() == BATCH_SIZE) {
+          submit(pool, run.new ClassifyTask(batch), taskPermits, errors);
+          batch = new ArrayList<ClassifiedImage>();
+        }
+      }
+      submit(pool, run.new ClassifyTask(batch), taskPermits, errors);
+      taskPermits.acquire(maxTasks);
+    } finally {
+      pool.shutdownNow();
+    }
+    if (!errors.isEmpty()) {
+      throw new IOException(errors.get(0));
+    }
+    return run.finish();
+  }
+
+  /** Runs <code>task</code> on <code>pool</code> once one of <code>taskPermits</code> is free, collecting errors. */
+  private static void submit(ForkJoinPool pool, final ForkJoinTask<?> task, final Semaphore taskPermits,
+      final List<Throwable> errors) throws InterruptedException {
+    taskPermits.acquire();
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.invoke();
+        } catch (Throwable t) {
+          errors.add(t);
+        } finally {
+          taskPermits.release();
+        }
+      }
+    });
+  }
+
+  /** The progress of one call to classify, with <code>n</code> images or -1 if they aren't known up front. */
+  private final class Run {
+    private final Semaphore ioPermits = new Semaphore(ioParallelism);
+    private final Semaphore decodePermits = new Semaphore(decodeParallelism);
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+    private final int n;
+    private final int logEvery;
+    private final long start = System.currentTimeMillis();
+
+    Run(int n) {
+      this.n = n;
+      this.logEvery = n < 0 ? UNKNOWN_LOG_EVERY : Math.max(1, n / 100);
+    }
+
+    private List<Failure> finish() throws IOException {
+      imageClassifier.flush();
+      LOG.infof("classified %d images (%d cached, %d failed) in %dms with %d readers and %d decoders", done.get(),
+          cached.get(), failures.size(), System.currentTimeMillis() - start, ioParallelism, decodeParallelism);
+      return failures;
+    }
+
+    private final class ClassifyTask extends RecursiveAction {
+      private final List<ClassifiedImage> images;
+
+      ClassifyTask(List<ClassifiedImage> images) {
+        this.images = images;
+      }
+
+      @Override
+      protected void compute() {
+        if (images.size() > BATCH_SIZE) {
+          int mid = images.size() / 2;
+          invokeAll(new ClassifyTask(images.subList(0, mid)), new ClassifyTask(images.subList(mid, images.size())));
+          return;
+        }
+        for (ClassifiedImage image : images) {
+          try {
+            if (imageClassifier.isClassified(image.getFile())) {
+              cached.incrementAndGet();
+            } else {
+              classify(image.getFile());
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Exception e) {
+            failures.add(new Failure(image, e));
+          }
+          int count = done.incrementAndGet();
+          if (n < 0 && count % logEvery == 0) {
+            LOG.infof("[%d] classified, %d cached, %d failed", count, cached.get(), failures.size());
+          } else if (n >= 0 && (count % logEvery == 0 || count == n)) {
+            LOG.infof("[%d/%d (%.2f%%)] classified, %d cached, %d failed", count, n, 100f * count / n, cached.get(),
+                failures.size());
+          }
+        }
+      }
+
+      private void classify(File file) throws IOException, InterruptedException {
+        byte[] contents;
+        ioPermits.acquire();
+        try {
+          contents = Files.readAllBytes(file.toPath());
+        } finally {
+          ioPermits.release();
+        }
+        decodePermits.acquire();
+        try {
+          imageClassifier.classifyAll(file, contents);
+        } finally {
+          decodePermits.release();
+        }
+      }
+    }
+  }
+}
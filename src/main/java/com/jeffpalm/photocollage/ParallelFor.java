@@ -0,0 +1,85 @@
+package com.jeffpalm.photocollage;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs a loop over a range of ints as fork-join tasks, splitting it into chunks of at most <code>grain</code>. */
+final class ParallelFor {
+
+  private ParallelFor() {}
+
+  interface Body {
+    void run(int from, int to) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Runs <code>body</code> over [from, to) on <code>pool</code>, or on this thread if <code>pool</code> is null. The
+   * first exception thrown by a chunk is rethrown here, and interrupting this thread stops the pool.
+   */
+  public static void run(ForkJoinPool pool, int from, int to, int grain, final Body body) throws IOException,
+      InterruptedException {
+    if (pool == null || to - from <= grain) {
+      body.run(from, to);
+      return;
+    }
+    try {
+      pool.submit(new Task(from, to, Math.max(1, grain), body)).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof WrappedException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private final static class WrappedException extends RuntimeException {
+    WrappedException(Exception cause) {
+      super(cause);
+    }
+  }
+
+  private final static class Task extends RecursiveAction {
+    private final int from;
+    private final int to;
+    private final int grain;
+    private final Body body;
+
+    Task(int from, int to, int grain, Body body) {
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+      this.body = body;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        try {
+          body.run(from, to);
+        } catch (IOException e) {
+          throw new WrappedException(e);
+        } catch (InterruptedException e) {
+          throw new WrappedException(e);
+        }
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new Task(from, mid, grain, body), new Task(mid, to, grain, body));
+    }
+  }
+}
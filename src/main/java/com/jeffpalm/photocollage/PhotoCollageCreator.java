@@ -1,26 +1,33 @@
 package com.jeffpalm.photocollage;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.jeffpalm.builder.GenericBuilder;
 
 final class PhotoCollageCreator {
 
   private final static Logger LOG = Logger.getLogger(PhotoCollageCreator.class.getName());
+  private final static Metrics.Timer MATCH = Metrics.timer("match");
+  private final static Metrics.Timer TILE = Metrics.timer("tile");
+  // Copying tiles into the output, which includes encoding a band when a streamed write finishes one.
+  private final static Metrics.Timer COMPOSE = Metrics.timer("compose");
+  private final static Metrics.Timer TARGET = Metrics.timer("batch.target");
 
   private int resizedWidth = 200;
   private int numRows = 1;
@@ -28,6 +35,22 @@ final class PhotoCollageCreator {
   private int smallImageWidth = 25;
   private int smallImageHeight = 25;
   private int nearestImageThreshhold = 20;
+  private int nearestImageCount = 8;
+  private int noRepeatRadius = 0;
+  private ColorIndex.Type colorIndexType = ColorIndex.Type.KD_TREE;
+  private ColorMetric.Type colorMetric = ColorMetric.Type.RGB;
+  private boolean useCandidateTable = false;
+  private long tileCacheBytes = 256L << 20;
+  private int parallelism = 0;
+  private int ioParallelism = 0;
+  private int renderParallelism = 0;
+  private boolean deterministic = true;
+  private boolean streamingOutput = false;
+  private boolean prewarmThumbnails = false;
+  private boolean usePipeline = true;
+  private boolean useTileAtlas = true;
+  private Resizer.Method resizeMethod = Resizer.Method.AREA_AVERAGE;
+  private int colorTolerance = 4;
   private File outDir;
 
   public interface Builder extends com.jeffpalm.builder.Builder<PhotoCollageCreator> {
@@ -43,15 +66,118 @@ final class PhotoCollageCreator {
 
     Builder setSmallImageHeight(int smallImageHeight);
 
+    /** Sets the distance within which every image is a candidate for a cell's color. */
     Builder setNearestImageThreshhold(int nearestImageThreshhold);
+
+    /**
+     * Sets how many of the images nearest a cell's color are candidates for it besides those within the threshold, so
+     * colors with few images near them still have a choice.
+     */
+    Builder setNearestImageCount(int nearestImageCount);
+
+    /**
+     * Sets how many cells apart, in any direction, the same image may not appear, where images are left to choose
+     * from. 0 lets neighbors repeat.
+     */
+    Builder setNoRepeatRadius(int noRepeatRadius);
+
+    Builder setColorIndexType(ColorIndex.Type colorIndexType);
+
+    /**
+     * Sets how close colors are measured. CIE76 and CIEDE2000 match by how different colors look; RGB tones down the
+     * reds of the input image. The nearest image threshold is in the metric's units.
+     */
+    Builder setColorMetric(ColorMetric.Type colorMetric);
+
+    /**
+     * Sets whether each color index is wrapped in a {@link CandidateTable}, which keeps the images near each cube of
+     * colors the collage uses so most cells scan a short list instead of querying the index.
+     */
+    Builder setUseCandidateTable(boolean useCandidateTable);
+
+    Builder setTileCacheBytes(long tileCacheBytes);
+
+    /** Sets how many images to classify at once, 0 for the number of processors. */
+    Builder setParallelism(int parallelism);
+
+    /** Sets how many library files to read at once, 0 for twice the parallelism. */
+    Builder setIoParallelism(int ioParallelism);
+
+    /** Sets how many threads render each collage, 0 for the number of processors. */
+    Builder setRenderParallelism(int renderParallelism);
+
+    /**
+     * Sets whether cells are matched in order on one thread, so the same input always gives the same collage. When
+     * false, bands of rows are matched in parallel and which of the equally good images a cell gets depends on how the
+     * threads interleave. Tiles are composed in parallel either way.
+     */
+    Builder setDeterministic(boolean deterministic);
+
+    /**
+     * Sets whether collages are encoded to PNG a row of tiles at a time instead of in one image in memory. Collages
+     * with more pixels than fit in one image are always streamed.
+     */
+    Builder setStreamingOutput(boolean streamingOutput);
+
+    /** Sets whether the thumbnails of the whole library are generated in parallel before rendering. */
+    Builder setPrewarmThumbnails(boolean prewarmThumbnails);
+
+    /**
+     * Sets whether classifying and prewarming thumbnails eagerly run together in a {@link LibraryPipeline}, which
+     * decodes each image once for both, instead of one after the other.
+     */
+    Builder setUsePipeline(boolean usePipeline);
+
+    /**
+     * Sets whether tiles are drawn from a memory-mapped {@link TileAtlas} of raw pixels, which is extended with the
+     * tiles of each collage before it is drawn. Otherwise thumbnails are decoded into a {@link TileCache} of
+     * <code>tileCacheBytes</code> as they are drawn.
+     */
+    Builder setUseTileAtlas(boolean useTileAtlas);
+
+    /** Sets how the input image is resized to <code>resizedWidth</code>. */
+    Builder setResizeMethod(Resizer.Method resizeMethod);
+
+    /**
+     * Sets how many levels per channel the colors of library images may be off, so they can be classified from
+     * subsampled decodes or embedded thumbnails. 0 classifies every pixel.
+     */
+    Builder setColorTolerance(int colorTolerance);
   }
 
   public static Builder newBuilder() {
     return new GenericBuilder<Builder>(new PhotoCollageCreator(), Builder.class).asBuilder();
   }
 
+  /** An input image of a batch and the creator that makes its collages. */
+  static final class Target {
+    final File inputImageFile;
+    final PhotoCollageCreator creator;
+
+    Target(File inputImageFile, PhotoCollageCreator creator) {
+      this.inputImageFile = inputImageFile;
+      this.creator = creator;
+    }
+  }
+
   private final Log log = Log.getLog();
 
+  private ImageClassifier newImageClassifier() {
+    ImageClassifier.Config config = new ImageClassifier.Config();
+    config.colorTolerance = colorTolerance;
+    return new ImageClassifier(config);
+  }
+
+  /**
+   * Classifies the library of <code>finder</code>, then keeps <code>catalog</code> and the color cache current as
+   * images are added or changed, until the thread is interrupted.
+   */
+  public void watchLibrary(LibraryCatalog catalog, FileFinder finder) throws IOException, InterruptedException {
+    ImageClassifier imageClassifier = newImageClassifier();
+    new LibraryWatcher(catalog, finder, imageClassifier,
+        new ParallelClassifier(imageClassifier, parallelism, ioParallelism)).run();
+  }
+
   public void createCollage(File inputImageFile, Iterable<File> imageFiles, boolean getColorEagerly)
       throws IOException, InterruptedException {
 
@@ -59,269 +185,437 @@ final class PhotoCollageCreator {
       throw new IllegalArgumentException(inputImageFile + " must exist");
     }
 
-    ImageClassifier.Config config = new ImageClassifier.Config();
-    ImageClassifier imageClassifier = new ImageClassifier(config);
-    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
-    for (File imageFile : imageFiles) {
-      ClassifiedImage image = new ClassifiedImage(imageFile, imageClassifier);
-      images.add(image);
-    }
-    if (getColorEagerly) {
-      final Vector<ClassifiedImage> q = new Vector<ClassifiedImage>(images);
-      final int[] cnt = { 0 };
-      final int n = images.size();
-      List<Thread> threads = new ArrayList<Thread>();
-      for (int i = 0; i < 300; i++) {
-        Thread t = new Thread(new Runnable() {
+    ImageClassifier imageClassifier = newImageClassifier();
+    createCollage(inputImageFile, imageClassifier, loadImages(imageFiles, imageClassifier, getColorEagerly));
+  }
+
+  /** Returns the library images of <code>imageFiles</code>, classifying them first if asked to. */
+  private List<ClassifiedImage> loadImages(Iterable<File> imageFiles, ImageClassifier imageClassifier,
+      boolean getColorEagerly) throws IOException, InterruptedException {
+    List<ClassifiedImage> images = newImages(imageFiles, imageClassifier);
+    if (usePipeline && (getColorEagerly || prewarmThumbnails)) {
+      leaveOut(images, newPipeline(imageClassifier, getColorEagerly).run(imageFiles), "loaded");
+    } else {
+      if (getColorEagerly) {
+        ParallelClassifier parallelClassifier = new ParallelClassifier(imageClassifier, parallelism, ioParallelism);
+        leaveOut(images, parallelClassifier.classify(images), "classified");
+      }
+      prewarm(images);
+    }
+    return images;
+  }
+
+  /**
+   * Makes a collage of each of <code>targets</code> from one library, classified and indexed once, rendering
+   * <code>batchParallelism</code> of them at once, 0 for the number of processors. The library, its indexes and the
+   * tile caches are made with this creator's settings and shared, as is one pool of this creator's render parallelism
+   * that every target renders on; each target is otherwise matched and drawn with its own creator's settings. Logs
+   * how long each target took and returns how many failed.
+   */
+  public int createCollages(List<Target> targets, Iterable<File> imageFiles, boolean getColorEagerly,
+      int batchParallelism) throws IOException, InterruptedException {
+    Map<File, File> outputs = new HashMap<File, File>();
+    for (Target target : targets) {
+      if (!target.inputImageFile.exists()) {
+        throw new IllegalArgumentException(target.inputImageFile + " must exist");
+      }
+      for (File outFile : target.creator.getOutputFiles(target.inputImageFile)) {
+        File other = outputs.put(outFile.getAbsoluteFile(), target.inputImageFile);
+        if (other != null) {
+          throw new IllegalArgumentException(other + " and " + target.inputImageFile + " would both be written to "
+              + outFile);
+        }
+      }
+    }
+    final Library library = loadLibrary(imageFiles, getColorEagerly);
+    final TileCache tileCache = newSharedTileCache();
+    final ForkJoinPool pool = newRenderPool();
+    int threads = batchParallelism > 0 ? batchParallelism : Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, targets.size())));
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    long start = System.currentTimeMillis();
+    try {
+      for (final Target target : targets) {
+        results.add(executor.submit(new Callable<Long>() {
           @Override
-          public void run() {
-
-            while (!q.isEmpty()) {
-              ClassifiedImage image = q.remove(0);
-              try {
-                LOG.infof("[%d/%d (%.2f%%)] getting color for %s", cnt[0], n, 100 * ((float) cnt[0] / (float) n),
-                    image);
-                cnt[0]++;
-                image.getColor();
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-            }
+          public Long call() throws IOException, InterruptedException {
+            long targetStart = System.currentTimeMillis();
+            long timer = TARGET.start();
+            target.creator.createCollage(target.inputImageFile, library, tileCache, pool, new AtomicBoolean());
+            TARGET.stop(timer);
+            long millis = System.currentTimeMillis() - targetStart;
+            LOG.infof("Made %s in %dms", target.inputImageFile, millis);
+            return millis;
           }
-        });
-        threads.add(t);
-        t.start();
+        }));
       }
-      for (Thread t : threads) {
+      int failed = 0;
+      long totalMillis = 0;
+      for (int i = 0; i < targets.size(); i++) {
         try {
-          t.join();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+          totalMillis += results.get(i).get();
+        } catch (ExecutionException e) {
+          failed++;
+          LOG.warnf("Can't make %s: %s", targets.get(i).inputImageFile, e.getCause());
         }
       }
-      imageClassifier.flush();
-    }
-
-    BufferedImage inputImage = ImageIO.read(inputImageFile);
-    BufferedImage resizedInputImage = Util.resize(inputImage, resizedWidth);
-
-    for (int row = 0; row < numRows; row++) {
-      for (int col = 0; col < numCols; col++) {
-        createCollage(inputImageFile, images, resizedInputImage, row, col);
+      int made = targets.size() - failed;
+      LOG.infof("Made %d of %d collages in %dms, %dms per collage", made, targets.size(),
+          System.currentTimeMillis() - start, made > 0 ? totalMillis / made : 0);
+      return failed;
+    } finally {
+      executor.shutdown();
+      if (pool != null) {
+        pool.shutdown();
+      }
+      if (useCandidateTable) {
+        log.info(library.toString());
+      }
+      if (tileCache != null) {
+        log.info(tileCache.toString());
       }
     }
   }
 
-  private Map<ImageSegment, Comparable<Color>> getComparableSegments(BufferedImage image, int width, int height, int x,
-      int y) {
-    Comparable<Color> top = null, right = null, bottom = null, left = null;
-    if (y > 0) {
-      top = getComparableColor(image, x, y - 1);
-    }
-    if (x < width - 1) {
-      right = getComparableColor(image, x + 1, y);
+  /**
+   * Loads the library of <code>imageFiles</code>, classifying it if it isn't yet, and builds its indexes, so that
+   * collages can be made from it by {@link #createCollage(File, Library, TileCache, ForkJoinPool, AtomicBoolean)}
+   * without waiting.
+   */
+  Library loadLibrary(Iterable<File> imageFiles, boolean getColorEagerly) throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    ImageClassifier imageClassifier = newImageClassifier();
+    List<ClassifiedImage> images = loadImages(imageFiles, imageClassifier, getColorEagerly);
+    if (images.isEmpty()) {
+      throw new IllegalArgumentException("Input files required");
     }
-    if (y < height - 1) {
-      bottom = getComparableColor(image, x, y + 1);
-    }
-    if (x > 0) {
-      left = getComparableColor(image, x - 1, y);
+    Library library = newLibrary(images);
+    // Indexing needs every color, so the classifier has nothing left to cache after this.
+    for (ImageSegment s : ImageSegment.values()) {
+      library.getColorIndex(s);
     }
+    imageClassifier.flush();
+    LOG.infof("Loaded a library of %d images in %dms", images.size(), System.currentTimeMillis() - start);
+    return library;
+  }
 
-    Map<ImageSegment, Comparable<Color>> res = new HashMap<>();
-    res.put(ImageSegment.TOP, top);
-    res.put(ImageSegment.RIGHT, right);
-    res.put(ImageSegment.BOTTOM, bottom);
-    res.put(ImageSegment.LEFT, left);
-    return res;
+  /** Returns a cache of tiles for collages to share, or null when they're drawn from the tile atlas. */
+  TileCache newSharedTileCache() {
+    return useTileAtlas ? null : new TileCache(tileCacheBytes);
   }
 
-  private void createCollage(File inputImageFile, final List<ClassifiedImage> images, final BufferedImage image,
-      int row, int col) throws IOException, InterruptedException {
+  /** Returns a pool of this creator's render parallelism, or null to render on the calling thread. */
+  ForkJoinPool newRenderPool() {
+    int threads = renderParallelism > 0 ? renderParallelism : Runtime.getRuntime().availableProcessors();
+    return threads > 1 ? new ForkJoinPool(threads) : null;
+  }
 
-    final int width = image.getWidth() / numCols;
-    final int height = image.getHeight() / numRows;
+  /**
+   * Makes the collages of <code>inputImageFile</code> from <code>library</code>, drawing tiles from
+   * <code>tileCache</code>, or the tile atlas of this creator's tile size if it's null, and returns the files written.
+   * Renders on <code>pool</code>, which other collages may share, or on this thread if it's null, until
+   * <code>cancelled</code> is set.
+   */
+  List<File> createCollage(File inputImageFile, Library library, TileCache tileCache, ForkJoinPool pool,
+      AtomicBoolean cancelled) throws IOException, InterruptedException {
+    if (!inputImageFile.exists()) {
+      throw new IllegalArgumentException(inputImageFile + " must exist");
+    }
+    TileSource tileSource = tileCache != null ? tileCache : ImageCache.getTileAtlas(smallImageWidth, smallImageHeight);
+    List<File> res = createCollage(inputImageFile, library, tileSource, pool, cancelled);
+    ImageCache.getThumbnailStore().flush();
+    return res;
+  }
 
-    final int newWidth = width * smallImageWidth;
-    final int newHeight = height * smallImageHeight;
+  /**
+   * Makes collages from the images <code>discovery</code> finds. When <code>getColorEagerly</code> is set they're
+   * classified while the library is still being walked.
+   */
+  public void createCollage(File inputImageFile, FileDiscovery discovery, boolean getColorEagerly)
+      throws IOException, InterruptedException {
 
-    File outFile;
-    String name = inputImageFile.getName();
-    int ilastDot = name.lastIndexOf(".");
-    String baseName = name.substring(0, ilastDot);
-    String ext = name.substring(ilastDot + 1);
-    // Create a file in this directory if we're only creating one image.
-    baseName += "-" + resizedWidth + "w" + smallImageWidth + "xh" + smallImageHeight;
-    if (numRows == 1 && numCols == 1) {
-      outFile = new File(baseName + "-out." + ext);
-    } else {
-      File outDir = this.outDir != null ? this.outDir : new File(baseName + "-" + numRows + "x" + numCols + "-out");
-      outDir.mkdirs();
-      outFile = new File(outDir, baseName + "-" + row + "-" + col + "." + ext);
+    if (!inputImageFile.exists()) {
+      throw new IllegalArgumentException(inputImageFile + " must exist");
     }
 
-    final Output output = new ImageOutput().open(outFile, newWidth, newHeight);
-    log.start(width, height);
-    final int rowStart = height * row;
-    final int colStart = width * col;
-    for (int y = rowStart; y < rowStart + height; y++, log.nextRow()) {
-      log.info("Starting row " + y);
-      for (int x = colStart; x < colStart + width; x++, log.nextCol()) {
-        Comparable<Color> comp = getComparableColor(image, x, y);
-        Map<ImageSegment, Comparable<Color>> segmentColors = getComparableSegments(image, width, height, x, y);
-        ClassifiedImage classifiedImage = nearestImageWithNeighbors(comp, images, nearestImageThreshhold,
-            segmentColors.get(ImageSegment.TOP), segmentColors.get(ImageSegment.RIGHT),
-            segmentColors.get(ImageSegment.BOTTOM), segmentColors.get(ImageSegment.LEFT));
-        File bufImageFile = classifiedImage.getResizedImage(smallImageWidth);
-        BufferedImage bufImage = ImageIO.read(bufImageFile);
-        if (bufImage == null) {
-          throw new RuntimeException("bad image");
-        }
-        int nx = smallImageWidth * (x - colStart);
-        int ny = smallImageHeight * (y - rowStart);
-        output.write(bufImageFile, nx, ny);
-      }
+    ImageClassifier imageClassifier = newImageClassifier();
+    boolean pipeline = usePipeline && (getColorEagerly || prewarmThumbnails);
+    List<ParallelClassifier.Failure> failures = new ArrayList<ParallelClassifier.Failure>();
+    if (pipeline) {
+      failures = newPipeline(imageClassifier, getColorEagerly).run(discovery);
+    } else if (getColorEagerly) {
+      failures = new ParallelClassifier(imageClassifier, parallelism, ioParallelism).classify(discovery);
+    }
+    List<ClassifiedImage> images = newImages(discovery.getFiles(), imageClassifier);
+    if (images.isEmpty()) {
+      throw new IllegalArgumentException("Input files required");
     }
+    leaveOut(images, failures, pipeline ? "loaded" : "classified");
+    if (!pipeline) {
+      prewarm(images);
+    }
+    createCollage(inputImageFile, imageClassifier, images);
+  }
 
-    log.done();
-    output.close();
-    log.info("Done");
+  private LibraryPipeline newPipeline(ImageClassifier imageClassifier, boolean getColorEagerly) {
+    LibraryPipeline res = new LibraryPipeline(imageClassifier, getColorEagerly, ImageCache.getThumbnailStore(),
+        parallelism, ioParallelism);
+    if (prewarmThumbnails) {
+      res.addThumbnailSize(smallImageWidth, smallImageHeight);
+    }
+    return res;
   }
 
-  private Comparable<Color> getComparableColor(BufferedImage image, int x, int y) {
-    int pixel = 0;
-    try {
-      pixel = image.getRGB(x, y);
-    } catch (ArrayIndexOutOfBoundsException e) {
-      throw new RuntimeException(
-          String.format("width=%d height=%d x=%d y=%d", image.getWidth(), image.getHeight(), x, y), e);
+  /** Generates the missing thumbnails of <code>images</code> if asked to. */
+  private void prewarm(List<ClassifiedImage> images) throws IOException, InterruptedException {
+    if (prewarmThumbnails) {
+      ThumbnailStore thumbnailStore = ImageCache.getThumbnailStore();
+      leaveOut(images, thumbnailStore.prewarm(images, smallImageWidth, smallImageHeight, parallelism), "resized");
     }
-    int red = (pixel >> 16) & 0xff;
-    int green = (pixel >> 8) & 0xff;
-    int blue = (pixel) & 0xff;
+  }
 
-    // Reduce the red a little. This makes the colors come out more nicely.
-    if (red > 100) {
-      red -= 50;
+  private static List<ClassifiedImage> newImages(Iterable<File> imageFiles, ImageClassifier imageClassifier) {
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (File imageFile : imageFiles) {
+      images.add(new ClassifiedImage(imageFile, imageClassifier));
     }
+    return images;
+  }
 
-    Color color = new Color(red, green, blue);
-    Comparable<Color> comp = new ComparableColor(color);
-    return comp;
+  private Library newLibrary(List<ClassifiedImage> images) {
+    ColorMetric metric = colorMetric.newMetric();
+    int candidateRadius = 0;
+    if (useCandidateTable) {
+      // The distance the matcher queries indexes within for the threshold.
+      int indexDistanceSquared = metric.getIndexDistanceSquared(nearestImageThreshhold * nearestImageThreshhold);
+      candidateRadius = (int) Math.ceil(Math.sqrt(indexDistanceSquared));
+    }
+    return new Library(images, colorIndexType, metric, candidateRadius);
   }
 
-  private final static class ComparableColor implements Comparable<Color> {
-    private final Color color;
+  private void createCollage(File inputImageFile, ImageClassifier imageClassifier, List<ClassifiedImage> images)
+      throws IOException, InterruptedException {
+    Library library = newLibrary(images);
+    TileSource tileSource = useTileAtlas ? ImageCache.getTileAtlas(smallImageWidth, smallImageHeight)
+        : new TileCache(tileCacheBytes);
+    ForkJoinPool pool = newRenderPool();
+    try {
+      createCollage(inputImageFile, library, tileSource, pool, new AtomicBoolean());
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    if (useCandidateTable) {
+      log.info(library.toString());
+    }
+    log.info(tileSource.toString());
+    imageClassifier.flush();
+  }
 
-    ComparableColor(Color color) {
-      this.color = color;
+  /**
+   * Makes the collages of <code>inputImageFile</code> from <code>library</code>, drawing tiles from tileSource on
+   * <code>pool</code>, and returns the files written. Once <code>cancelled</code> is set the render stops between rows
+   * of cells with a {@link CancellationException}, and the collage it was writing is deleted. Nothing is interrupted,
+   * as an interrupt during I/O would close the channels of the shared color cache and tile atlas.
+   */
+  List<File> createCollage(File inputImageFile, Library library, TileSource tileSource, ForkJoinPool pool,
+      AtomicBoolean cancelled) throws IOException, InterruptedException {
+    List<File> res = new ArrayList<File>();
+    BufferedImage inputImage = ImageDecoder.decode(inputImageFile, resizedWidth);
+    Resizer resizer = new Resizer(resizeMethod, pool);
+    BufferedImage resizedInputImage = Util.resize(inputImage, resizedWidth, resizer);
+    int imageWidth = resizedInputImage.getWidth();
+    int imageHeight = resizedInputImage.getHeight();
+    ColorMetric metric = library.getMetric();
+    int[] rgbs = Pixels.get(resizedInputImage);
+    int[] pixels = new int[rgbs.length];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = metric.toTargetPoint(rgbs[i]);
     }
 
-    public int compareTo(Color c) {
-      return (int) Util.distance(color, c);
+    OccupancyGrid grid = noRepeatRadius > 0 ? new OccupancyGrid(imageWidth, imageHeight, noRepeatRadius) : null;
+    TileMatcher matcher = new TileMatcher(library, nearestImageThreshhold, nearestImageCount, grid);
+    for (int row = 0; row < numRows; row++) {
+      for (int col = 0; col < numCols; col++) {
+        res.add(createCollage(inputImageFile, library, matcher, tileSource, pool, cancelled, pixels, imageWidth,
+            imageHeight, row, col));
+      }
     }
+    return res;
   }
 
-  private static <T> Set<T> intersect(Iterable<T> a, Collection<T> b) {
-    Set<T> res = new HashSet<T>();
-    for (T t : a) {
-      if (b.contains(t)) {
-        res.add(t);
+  /** Returns the files the collages of <code>inputImageFile</code> are written to. */
+  List<File> getOutputFiles(File inputImageFile) {
+    List<File> res = new ArrayList<File>();
+    for (int row = 0; row < numRows; row++) {
+      for (int col = 0; col < numCols; col++) {
+        res.add(getOutputFile(inputImageFile, row, col));
       }
     }
     return res;
   }
 
-  private final Map<ClassifiedImage, Integer> lastUsed = new HashMap<ClassifiedImage, Integer>();
-  private int lastUsedCount = 0;
-
-  private ClassifiedImage nearestImageWithNeighbors(Comparable<Color> color, List<ClassifiedImage> images,
-      int threshhold, Comparable<Color> top, Comparable<Color> left, Comparable<Color> bottom, Comparable<Color> right)
-      throws InterruptedException, IOException {
-    List<ClassifiedImage> topImages = nearestImages(top, ImageSegment.TOP, images, threshhold, false);
-    List<ClassifiedImage> rightImages = nearestImages(right, ImageSegment.RIGHT, images, threshhold, false);
-    List<ClassifiedImage> bottomImages = nearestImages(bottom, ImageSegment.BOTTOM, images, threshhold, false);
-    List<ClassifiedImage> leftImages = nearestImages(left, ImageSegment.LEFT, images, threshhold, false);
+  /**
+   * Returns the file of the collage in <code>row</code> and <code>col</code> of the grid of
+   * <code>inputImageFile</code>.
+   */
+  private File getOutputFile(File inputImageFile, int row, int col) {
+    String name = inputImageFile.getName();
+    int ilastDot = name.lastIndexOf(".");
+    String baseName = name.substring(0, ilastDot);
+    String ext = name.substring(ilastDot + 1);
+    // Create a file in this directory if we're only creating one image.
+    baseName += "-" + resizedWidth + "w" + smallImageWidth + "xh" + smallImageHeight;
+    if (numRows == 1 && numCols == 1) {
+      return new File(baseName + "-out." + ext);
+    }
+    File outDir = this.outDir != null ? this.outDir : new File(baseName + "-" + numRows + "x" + numCols + "-out");
+    return new File(outDir, baseName + "-" + row + "-" + col + "." + ext);
+  }
 
-    Set<ClassifiedImage> intersection = new HashSet<>(topImages);
+  private File createCollage(File inputImageFile, final Library library, final TileMatcher matcher,
+      final TileSource tileSource, ForkJoinPool pool, final AtomicBoolean cancelled, final int[] pixels,
+      final int imageWidth, final int imageHeight, int row, int col) throws IOException, InterruptedException {
 
-    intersection = intersect(intersection, rightImages);
-    intersection = intersect(intersection, bottomImages);
-    intersection = intersect(intersection, leftImages);
+    final int width = imageWidth / numCols;
+    final int height = imageHeight / numRows;
 
-    if (!intersection.isEmpty()) {
-      return chooseLeastUsed(intersection);
+    final long newWidth = (long) width * smallImageWidth;
+    final long newHeight = (long) height * smallImageHeight;
+    if (newWidth > Integer.MAX_VALUE || newHeight > Integer.MAX_VALUE) {
+      throw new IOException("Collage of " + newWidth + "x" + newHeight + " is too large");
     }
 
-    List<ClassifiedImage> chosenImages = nearestImages(color, ImageSegment.ALL, images, threshhold, true);
-    return chooseLeastUsed(chosenImages);
-  }
+    File outFile = getOutputFile(inputImageFile, row, col);
+    if (outFile.getParentFile() != null) {
+      outFile.getParentFile().mkdirs();
+    }
 
-  private ClassifiedImage nearestImage(Comparable<Color> color, Iterable<ClassifiedImage> images, int threshhold)
-      throws IOException {
-    List<ClassifiedImage> chosenImages = nearestImages(color, ImageSegment.ALL, images, threshhold, true);
-    return chooseLeastUsed(chosenImages);
-  }
+    final int rowStart = height * row;
+    final int colStart = width * col;
 
-  private List<ClassifiedImage> nearestImages(Comparable<Color> color, ImageSegment s, Iterable<ClassifiedImage> images,
-      int threshhold, boolean recur) throws IOException {
-    if (color == null) {
-      return Collections.emptyList();
-    }
-    final List<ClassifiedImage> chosenImages = new ArrayList<ClassifiedImage>();
-    int nearestDistance = Integer.MAX_VALUE;
-    ClassifiedImage nearestImage = null;
-    for (ClassifiedImage image : images) {
-      int dist = color.compareTo(image.getColor(s.getOpposite()));
-      if (nearestDistance > dist) {
-        nearestDistance = dist;
-        nearestImage = image;
-      }
-      if (dist < threshhold) {
-        chosenImages.add(image);
+    // Match every cell first, then compose the tiles.
+    final int[] cellImages = new int[width * height];
+    log.start(width, height);
+    if (deterministic || pool == null) {
+      for (int y = rowStart; y < rowStart + height; y++, log.nextRow()) {
+        checkCancelled(cancelled);
+        log.debug("Starting row " + y);
+        for (int x = colStart; x < colStart + width; x++, log.nextCol()) {
+          cellImages[(y - rowStart) * width + (x - colStart)] = match(matcher, pixels, imageWidth, imageHeight, width,
+              height, x, y);
+        }
       }
-    }
-    if (chosenImages.isEmpty()) {
-      return nearestImages(color, s, images, threshhold + threshhold / 2, recur);
-    }
-    if (recur) {
-      int newThreshhold = threshhold;
-      while (chosenImages.size() > 50) {
-        newThreshhold /= 2;
-        List<ClassifiedImage> newChosenImages = new ArrayList<ClassifiedImage>();
-        for (ClassifiedImage image : chosenImages) {
-          if (color.compareTo(image.getColor(s.getOpposite())) <= newThreshhold) {
-            newChosenImages.add(image);
+    } else {
+      int bandRows = Math.max(1, height / (4 * pool.getParallelism()));
+      ParallelFor.run(pool, rowStart, rowStart + height, bandRows, new ParallelFor.Body() {
+        @Override
+        public void run(int from, int to) throws IOException {
+          TileMatcher bandMatcher = matcher.fork();
+          for (int y = from; y < to; y++) {
+            checkCancelled(cancelled);
+            for (int x = colStart; x < colStart + width; x++) {
+              cellImages[(y - rowStart) * width + (x - colStart)] = match(bandMatcher, pixels, imageWidth,
+                  imageHeight, width, height, x, y);
+            }
           }
+          log.debug("Matched rows " + from + " to " + (to - 1));
         }
-        chosenImages.clear();
-        chosenImages.addAll(newChosenImages);
-        log.info("reducing threshold to " + newThreshhold + " #images=" + chosenImages.size());
+      });
+    }
+    log.done();
+
+    Set<ClassifiedImage> cellImageSet = new HashSet<ClassifiedImage>();
+    for (int id : cellImages) {
+      cellImageSet.add(library.get(id));
+    }
+    checkCancelled(cancelled);
+    tileSource.prepare(cellImageSet, smallImageWidth, smallImageHeight, pool);
+
+    final Output output = newOutput(newWidth, newHeight).open(outFile, (int) newWidth, (int) newHeight);
+    boolean written = false;
+    try {
+      ForkJoinPool composePool = output.supportsConcurrentWrites() ? pool : null;
+      for (int y = 0; y < height; y++) {
+        checkCancelled(cancelled);
+        final int cellRow = y;
+        ParallelFor.run(composePool, 0, width, 8, new ParallelFor.Body() {
+          @Override
+          public void run(int from, int to) throws IOException {
+            for (int x = from; x < to; x++) {
+              ClassifiedImage classifiedImage = library.get(cellImages[cellRow * width + x]);
+              long start = TILE.start();
+              Tile tile = tileSource.get(classifiedImage, smallImageWidth, smallImageHeight);
+              TILE.stop(start);
+              start = COMPOSE.start();
+              output.write(tile, smallImageWidth * x, smallImageHeight * cellRow);
+              COMPOSE.stop(start);
+            }
+          }
+        });
+      }
+      output.close();
+      written = true;
+    } finally {
+      if (!written) {
+        output.abort();
       }
     }
+    log.info("Done");
+    return outFile;
+  }
+
+  /** Stops a render between rows once <code>cancelled</code> is set. */
+  private static void checkCancelled(AtomicBoolean cancelled) {
+    if (cancelled.get()) {
+      throw new CancellationException("Cancelled");
+    }
+  }
+
+  /** Removes the images of <code>failures</code> from <code>images</code>, logging a few of them. */
+  private void leaveOut(List<ClassifiedImage> images, List<ParallelClassifier.Failure> failures, String what) {
+    if (failures.isEmpty()) {
+      return;
+    }
+    for (ParallelClassifier.Failure failure : failures.subList(0, Math.min(10, failures.size()))) {
+      LOG.warn("Can't be " + what + ": " + failure);
+    }
+    LOG.warn("Leaving out " + failures.size() + " images that can't be " + what);
+    Set<ClassifiedImage> failed = new HashSet<ClassifiedImage>();
+    for (ParallelClassifier.Failure failure : failures) {
+      failed.add(failure.image);
+    }
+    images.removeAll(failed);
+  }
 
-    if (chosenImages.isEmpty()) {
-      chosenImages.add(nearestImage);
+  private Output newOutput(long newWidth, long newHeight) {
+    if (streamingOutput || !ImageOutput.fits(newWidth, newHeight)) {
+      return new StreamingPngOutput(smallImageHeight);
     }
+    return new ImageOutput();
+  }
 
-    return chosenImages;
+  /** Returns the library id of the image for cell (x, y) of a grid tile <code>width</code> by <code>height</code>. */
+  private int match(TileMatcher matcher, int[] pixels, int imageWidth, int imageHeight, int width, int height, int x,
+      int y) throws IOException {
+    long start = MATCH.start();
+    int color = getComparableColor(pixels, imageWidth, imageHeight, x, y);
+    int top = y > 0 ? getComparableColor(pixels, imageWidth, imageHeight, x, y - 1) : TileMatcher.NO_COLOR;
+    int right = x < width - 1 ? getComparableColor(pixels, imageWidth, imageHeight, x + 1, y) : TileMatcher.NO_COLOR;
+    int bottom = y < height - 1 ? getComparableColor(pixels, imageWidth, imageHeight, x, y + 1)
+        : TileMatcher.NO_COLOR;
+    int left = x > 0 ? getComparableColor(pixels, imageWidth, imageHeight, x - 1, y) : TileMatcher.NO_COLOR;
+    int res = matcher.match(x, y, color, top, right, bottom, left);
+    MATCH.stop(start);
+    return res;
   }
 
-  private ClassifiedImage chooseLeastUsed(Iterable<ClassifiedImage> chosenImages) {
-    int minLastUsed = Integer.MAX_VALUE;
-    ClassifiedImage minLastUsedimg = null;
-    for (ClassifiedImage img : chosenImages) {
-      Integer imgLastUsed = lastUsed.get(img);
-      if (imgLastUsed == null) {
-        lastUsed.put(img, lastUsedCount++);
-        return img;
-      }
-      if (imgLastUsed < minLastUsed) {
-        minLastUsed = imgLastUsed;
-        minLastUsedimg = img;
-      }
+  /** Returns the point of pixel (x, y) as it is matched against the library. */
+  private int getComparableColor(int[] pixels, int imageWidth, int imageHeight, int x, int y) {
+    if (x < 0 || x >= imageWidth || y < 0 || y >= imageHeight) {
+      throw new RuntimeException(String.format("width=%d height=%d x=%d y=%d", imageWidth, imageHeight, x, y));
     }
-    lastUsed.put(minLastUsedimg, lastUsedCount++);
-    return minLastUsedimg;
+    return pixels[y * imageWidth + x];
   }
 }
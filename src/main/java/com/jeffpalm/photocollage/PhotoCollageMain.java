@@ -2,14 +2,24 @@ package com.jeffpalm.photocollage;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PhotoCollageMain {
 
+  private final static Logger LOG = Logger.getLogger(PhotoCollageMain.class.getName());
+  private final static String LIBRARY_CATALOG_NAME = "LibraryCatalog";
+
   public static void main(String[] args) {
     try {
-      System.exit(new PhotoCollageMain().realMain(args));
+      int status = new PhotoCollageMain().realMain(args);
+      Logger.flush();
+      System.exit(status);
     } catch (IllegalArgumentException e) {
+      Logger.flush();
       System.err.println(e.getMessage());
       printHelp();
       System.exit(1);
@@ -21,22 +31,37 @@ public class PhotoCollageMain {
     FileFinder finder = new FileFinder();
     File inputImageFile = null;
     boolean getColorEagerly = false;
+    boolean useCatalog = true;
+    boolean watch = false;
+    File metricsFile = null;
+    File batchManifest = null;
+    int batchParallelism = 0;
+    int servePort = -1;
+    int serveParallelism = 1;
+    List<String> creatorArgs = new ArrayList<String>();
     for (int i = 0; i < args.length;) {
       String arg = args[i++];
-      if (isOption(arg, "outdir")) {
-        builder.setOutDir(new File(args[i++]));
-      } else if (isOption(arg, "rows")) {
-        builder.setNumRows(Integer.parseInt(args[i++]));
-      } else if (isOption(arg, "cols")) {
-        builder.setNumCols(Integer.parseInt(args[i++]));
-      } else if (isOption(arg, "width")) {
-        builder.setResizedWidth(Integer.parseInt(args[i++]));
-      } else if (isOption(arg, "smallwidth")) {
-        builder.setSmallImageWidth(Integer.parseInt(args[i++]));
-      } else if (isOption(arg, "smallheight")) {
-        builder.setSmallImageHeight(Integer.parseInt(args[i++]));
-      } else if (isOption(arg, "nearestimagethreshhold")) {
-        builder.setNearestImageThreshhold(Integer.parseInt(args[i++]));
+      int next = applyCreatorOption(builder, arg, args, i);
+      if (next >= 0) {
+        creatorArgs.addAll(Arrays.asList(args).subList(i - 1, next));
+        i = next;
+      } else if (isOption(arg, "batch")) {
+        batchManifest = new File(args[i++]);
+      } else if (isOption(arg, "batchparallelism")) {
+        batchParallelism = Integer.parseInt(args[i++]);
+      } else if (isOption(arg, "serve")) {
+        servePort = Integer.parseInt(args[i++]);
+      } else if (isOption(arg, "serveparallelism")) {
+        serveParallelism = Integer.parseInt(args[i++]);
+      } else if (isOption(arg, "nocatalog")) {
+        useCatalog = false;
+      } else if (isOption(arg, "watch")) {
+        watch = true;
+      } else if (isOption(arg, "loglevel")) {
+        Logger.setLevel(Logger.Level.valueOf(args[i++].toUpperCase()));
+      } else if (isOption(arg, "metrics")) {
+        metricsFile = new File(args[i++]);
+        Metrics.setEnabled(true);
       } else if (isOption(arg, "getcoloreagerly")) {
         getColorEagerly = true;
       } else if (isOption(arg, "help")) {
@@ -53,24 +78,258 @@ public class PhotoCollageMain {
         }
       }
     }
+    if (watch) {
+      // Every path is a library path.
+      if (inputImageFile != null) {
+        finder.addFile(inputImageFile);
+      }
+      try {
+        builder.build().watchLibrary(new LibraryCatalog(new File(LIBRARY_CATALOG_NAME)), finder);
+      } catch (IOException e) {
+        e.printStackTrace();
+        return 1;
+      } catch (InterruptedException e) {
+        return 0;
+      }
+      return 0;
+    }
+    if (servePort >= 0) {
+      // Every path is a library path.
+      if (inputImageFile != null) {
+        finder.addFile(inputImageFile);
+      }
+      return serve(builder.build(), creatorArgs, finder, useCatalog, getColorEagerly, servePort, serveParallelism,
+          metricsFile);
+    }
+    if (batchManifest != null) {
+      // Every path is a library path.
+      if (inputImageFile != null) {
+        finder.addFile(inputImageFile);
+      }
+      return batch(builder.build(), batchManifest, creatorArgs, finder, useCatalog, getColorEagerly, batchParallelism,
+          metricsFile);
+    }
     if (inputImageFile == null) {
       throw new IllegalArgumentException("Source image required");
     }
-    Collection<File> imageFiles = finder.findFiles();
-    if (imageFiles.isEmpty()) {
-      throw new IllegalArgumentException("Input files required");
-    }
     try {
-      builder.build().createCollage(inputImageFile, imageFiles, getColorEagerly);
+      if (useCatalog) {
+        LibraryCatalog catalog = new LibraryCatalog(new File(LIBRARY_CATALOG_NAME));
+        List<File> imageFiles = catalog.update(finder).getFiles();
+        if (imageFiles.isEmpty()) {
+          throw new IllegalArgumentException("Input files required");
+        }
+        builder.build().createCollage(inputImageFile, imageFiles, getColorEagerly);
+        catalog.save();
+      } else {
+        // Walk the library while the first images are classified.
+        FileDiscovery discovery = finder.discover(FileFinder.DEFAULT_PARALLELISM, FileFinder.DEFAULT_CAPACITY);
+        try {
+          builder.build().createCollage(inputImageFile, discovery, getColorEagerly);
+        } finally {
+          discovery.close();
+        }
+      }
     } catch (IOException e) {
       return 1;
     } catch (InterruptedException e) {
       e.printStackTrace();
       return 1;
+    } finally {
+      if (metricsFile != null) {
+        writeMetrics(metricsFile);
+      }
     }
     return 0;
   }
 
+  /**
+   * Makes the collages of the targets in <code>manifest</code> from one library. Each target's creator gets
+   * <code>creatorArgs</code>, then the options on its line.
+   */
+  private int batch(PhotoCollageCreator creator, File manifest, List<String> creatorArgs, FileFinder finder,
+      boolean useCatalog, boolean getColorEagerly, int batchParallelism, File metricsFile) {
+    try {
+      List<PhotoCollageCreator.Target> targets = new ArrayList<PhotoCollageCreator.Target>();
+      for (BatchManifest.Entry entry : BatchManifest.read(manifest)) {
+        PhotoCollageCreator targetCreator = newCreator(creatorArgs, entry.args, entry.target + " in " + manifest);
+        targets.add(new PhotoCollageCreator.Target(entry.target, targetCreator));
+      }
+      if (targets.isEmpty()) {
+        throw new IllegalArgumentException("No targets in " + manifest);
+      }
+      int failed;
+      if (useCatalog) {
+        LibraryCatalog catalog = new LibraryCatalog(new File(LIBRARY_CATALOG_NAME));
+        List<File> imageFiles = catalog.update(finder).getFiles();
+        if (imageFiles.isEmpty()) {
+          throw new IllegalArgumentException("Input files required");
+        }
+        failed = creator.createCollages(targets, imageFiles, getColorEagerly, batchParallelism);
+        catalog.save();
+      } else {
+        FileDiscovery discovery = finder.discover(FileFinder.DEFAULT_PARALLELISM, FileFinder.DEFAULT_CAPACITY);
+        try {
+          // The library is indexed whole before any target starts, so there's nothing to overlap the walk with.
+          failed = creator.createCollages(targets, discovery.getFiles(), getColorEagerly, batchParallelism);
+        } finally {
+          discovery.close();
+        }
+      }
+      return failed == 0 ? 0 : 1;
+    } catch (IOException e) {
+      LOG.warn("Can't make batch " + manifest + ": " + e);
+      return 1;
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      return 1;
+    } finally {
+      if (metricsFile != null) {
+        writeMetrics(metricsFile);
+      }
+    }
+  }
+
+  /**
+   * Loads the library once and serves requests for collages of it on <code>port</code>, making
+   * <code>parallelism</code> at a time, until the process is stopped. Each job's creator gets
+   * <code>creatorArgs</code>, then the options of its request.
+   */
+  private int serve(PhotoCollageCreator creator, final List<String> creatorArgs, FileFinder finder,
+      boolean useCatalog, boolean getColorEagerly, int port, int parallelism, File metricsFile) {
+    try {
+      List<File> imageFiles;
+      LibraryCatalog catalog = null;
+      if (useCatalog) {
+        catalog = new LibraryCatalog(new File(LIBRARY_CATALOG_NAME));
+        imageFiles = catalog.update(finder).getFiles();
+      } else {
+        FileDiscovery discovery = finder.discover(FileFinder.DEFAULT_PARALLELISM, FileFinder.DEFAULT_CAPACITY);
+        try {
+          imageFiles = discovery.getFiles();
+        } finally {
+          discovery.close();
+        }
+      }
+      if (imageFiles.isEmpty()) {
+        throw new IllegalArgumentException("Input files required");
+      }
+      final Library library = creator.loadLibrary(imageFiles, getColorEagerly);
+      if (catalog != null) {
+        catalog.save();
+      }
+      final TileCache tileCache = creator.newSharedTileCache();
+      // Jobs running at once share the render threads rather than each starting its own.
+      final ForkJoinPool pool = creator.newRenderPool();
+      CollageServer server = new CollageServer(new CollageServer.Renderer() {
+        @Override
+        public List<File> render(File target, List<String> args, AtomicBoolean cancelled) throws IOException,
+            InterruptedException {
+          return newCreator(creatorArgs, args, target.toString()).createCollage(target, library, tileCache, pool,
+              cancelled);
+        }
+      }, port, parallelism);
+      try {
+        server.run();
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+      return 0;
+    } catch (IOException e) {
+      LOG.warn("Can't serve: " + e);
+      return 1;
+    } catch (InterruptedException e) {
+      return 0;
+    } finally {
+      if (metricsFile != null) {
+        writeMetrics(metricsFile);
+      }
+    }
+  }
+
+  /** Returns a creator with <code>creatorArgs</code>, then <code>moreArgs</code>, which are the options of what. */
+  private PhotoCollageCreator newCreator(List<String> creatorArgs, List<String> moreArgs, String what) {
+    PhotoCollageCreator.Builder builder = PhotoCollageCreator.newBuilder();
+    List<String> allArgs = new ArrayList<String>(creatorArgs);
+    allArgs.addAll(moreArgs);
+    String[] args = allArgs.toArray(new String[allArgs.size()]);
+    for (int i = 0; i < args.length;) {
+      String arg = args[i++];
+      i = applyCreatorOption(builder, arg, args, i);
+      if (i < 0) {
+        throw new IllegalArgumentException("Unknown option for " + what + ": " + arg);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Applies <code>arg</code> to <code>builder</code> if it's a creator option, reading its value from
+   * <code>args[i]</code>, and returns the index of the next argument, or -1 if it isn't one.
+   */
+  private int applyCreatorOption(PhotoCollageCreator.Builder builder, String arg, String[] args, int i) {
+    if (isOption(arg, "outdir")) {
+      builder.setOutDir(new File(args[i++]));
+    } else if (isOption(arg, "rows")) {
+      builder.setNumRows(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "cols")) {
+      builder.setNumCols(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "width")) {
+      builder.setResizedWidth(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "smallwidth")) {
+      builder.setSmallImageWidth(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "smallheight")) {
+      builder.setSmallImageHeight(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "nearestimagethreshhold")) {
+      builder.setNearestImageThreshhold(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "nearestimagecount")) {
+      builder.setNearestImageCount(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "norepeatradius")) {
+      builder.setNoRepeatRadius(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "colorindex")) {
+      builder.setColorIndexType(ColorIndex.Type.valueOf(args[i++].toUpperCase().replace('-', '_')));
+    } else if (isOption(arg, "candidatetable")) {
+      builder.setUseCandidateTable(true);
+    } else if (isOption(arg, "colormetric")) {
+      builder.setColorMetric(ColorMetric.Type.valueOf(args[i++].toUpperCase()));
+    } else if (isOption(arg, "resize")) {
+      builder.setResizeMethod(Resizer.Method.valueOf(args[i++].toUpperCase().replace('-', '_')));
+    } else if (isOption(arg, "colortolerance")) {
+      builder.setColorTolerance(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "tilecachemb")) {
+      builder.setTileCacheBytes(Long.parseLong(args[i++]) << 20);
+    } else if (isOption(arg, "parallelism")) {
+      builder.setParallelism(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "ioparallelism")) {
+      builder.setIoParallelism(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "renderparallelism")) {
+      builder.setRenderParallelism(Integer.parseInt(args[i++]));
+    } else if (isOption(arg, "nondeterministic")) {
+      builder.setDeterministic(false);
+    } else if (isOption(arg, "streamingoutput")) {
+      builder.setStreamingOutput(true);
+    } else if (isOption(arg, "notileatlas")) {
+      builder.setUseTileAtlas(false);
+    } else if (isOption(arg, "prewarmthumbnails")) {
+      builder.setPrewarmThumbnails(true);
+    } else if (isOption(arg, "nopipeline")) {
+      builder.setUsePipeline(false);
+    } else {
+      return -1;
+    }
+    return i;
+  }
+
+  private static void writeMetrics(File metricsFile) {
+    try {
+      Metrics.writeJson(metricsFile);
+    } catch (IOException e) {
+      LOG.warn("can't write metrics to " + metricsFile + ": " + e);
+    }
+  }
+
   private static void printHelp() {
     System.err.println("java " + PhotoCollageMain.class.getName() + " <options> <sourceImage> <inputImage>+");
     System.err.println("where options include:");
@@ -81,6 +340,41 @@ public class PhotoCollageMain {
     System.err.println("  --width num         Resize the input image to num (Defaults to 200px)");
     System.err.println("  --smallwidth num    Use images of width num for the pixels (Defaults to 50px)");
     System.err.println("  --smallheight num   Use images of height num for the pixels (Defaults to 50px)");
+    System.err.println("  --nearestimagethreshhold num");
+    System.err.println("                      Consider every image within num of a cell's color (Defaults to 20)");
+    System.err.println("  --nearestimagecount num");
+    System.err.println("                      Also consider the num images nearest a cell's color (Defaults to 8)");
+    System.err.println("  --norepeatradius num");
+    System.err.println("                      Keep an image out of the cells within num of it (Defaults to 0)");
+    System.err.println("  --colorindex type   Match colors with a kd-tree, linear or scan index (Defaults to kd-tree)");
+    System.err.println("  --colormetric type  Measure colors by rgb, cie76 or ciede2000 (Defaults to rgb)");
+    System.err.println("  --candidatetable    Keep the images near each cube of colors used in a lookup table");
+    System.err.println("  --resize method     Resize the input by area-average or progressive (Defaults to the first)");
+    System.err.println("  --colortolerance num");
+    System.err.println("                      Let library colors be num levels off to decode less (Defaults to 4)");
+    System.err.println("  --notileatlas       Decode thumbnails while drawing instead of using the mapped tile atlas");
+    System.err.println("  --tilecachemb num   With --notileatlas, cache num MB of decoded tiles (Defaults to 256)");
+    System.err.println("  --nocatalog         Walk the whole library in parallel instead of using the catalog");
+    System.err.println("  --watch             Keep classifying library images as they arrive instead of making a collage");
+    System.err.println("  --getcoloreagerly   Classify the whole library before rendering");
+    System.err.println("  --prewarmthumbnails Generate the thumbnails of the whole library before rendering");
+    System.err.println("  --nopipeline        Classify and generate thumbnails one after the other, decoding twice");
+    System.err.println("  --parallelism num   Classify num images at once (Defaults to the number of processors)");
+    System.err.println("  --ioparallelism num Read num library files at once (Defaults to twice the parallelism)");
+    System.err.println("  --renderparallelism num");
+    System.err.println("                      Render with num threads (Defaults to the number of processors)");
+    System.err.println("  --nondeterministic  Match rows in parallel too; the chosen images can vary between runs");
+    System.err.println("  --loglevel level    Log at debug, info, warn or off (Defaults to info)");
+    System.err.println("  --metrics <file>    Write counters and timings of the run to file as JSON");
+    System.err.println("  --streamingoutput   Encode the output a row of tiles at a time to use less memory");
+    System.err.println("  --batch <file>      Make a collage of each target in file from one library; each line is a");
+    System.err.println("                      target and its options, and every path given is a library path");
+    System.err.println("  --batchparallelism num");
+    System.err.println("                      Make num batch targets at once (Defaults to the number of processors)");
+    System.err.println("  --serve port        Load the library once and make collages on request at");
+    System.err.println("                      http://localhost:port/jobs; every path given is a library path");
+    System.err.println("  --serveparallelism num");
+    System.err.println("                      Make num requested collages at once (Defaults to 1)");
   }
 
   private boolean isOption(String arg, String option) {
@@ -0,0 +1,80 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads images as packed RGB straight from their data buffers. <code>BufferedImage.getRGB</code> converts every pixel
+ * through the image's color model; the rasters JPEGs decode to and the images this program makes are read as plain
+ * arrays instead, and anything else falls back to <code>getRGB</code>.
+ */
+final class Pixels {
+
+  private Pixels() {}
+
+  /**
+   * Returns the pixels of <code>image</code>, row by row. The result may be the image's own buffer, so it mustn't be
+   * written.
+   */
+  static int[] get(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    if (isDirect(image) && image.getType() == BufferedImage.TYPE_INT_RGB) {
+      int[] ints = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      if (ints.length == width * height) {
+        return ints;
+      }
+    }
+    int[] res = new int[width * height];
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      getRow(image, y, row);
+      System.arraycopy(row, 0, res, y * width, width);
+    }
+    return res;
+  }
+
+  /** Reads row <code>y</code> of <code>image</code> into <code>row</code>. */
+  static void getRow(BufferedImage image, int y, int[] row) {
+    int width = image.getWidth();
+    if (isDirect(image)) {
+      switch (image.getType()) {
+      case BufferedImage.TYPE_INT_RGB:
+        System.arraycopy(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), y * width, row, 0, width);
+        return;
+      case BufferedImage.TYPE_3BYTE_BGR:
+        byte[] bytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int x = 0, i = 3 * y * width; x < width; x++, i += 3) {
+          row[x] = ((bytes[i + 2] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i] & 0xff);
+        }
+        return;
+      default:
+        break;
+      }
+    }
+    image.getRGB(0, y, width, 1, row, 0, width);
+  }
+
+  /** Returns whether <code>image</code> has its raster to itself, with rows exactly one image width apart. */
+  private static boolean isDirect(BufferedImage image) {
+    Raster raster = image.getRaster();
+    if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0
+        || raster.getSampleModelTranslateY() != 0 || raster.getDataBuffer().getOffset() != 0) {
+      return false;
+    }
+    int width = image.getWidth();
+    switch (image.getType()) {
+    case BufferedImage.TYPE_INT_RGB:
+      return ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width;
+    case BufferedImage.TYPE_3BYTE_BGR:
+      PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) raster.getSampleModel();
+      return interleaved.getScanlineStride() == interleaved.getPixelStride() * width;
+    default:
+      return false;
+    }
+  }
+}
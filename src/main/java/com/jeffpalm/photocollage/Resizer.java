@@ -0,0 +1,220 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resizes packed RGB rasters. Every destination pixel is the average of the source area it covers, computed as a
+ * horizontal pass over the source rows followed by a vertical pass, in fixed point. Large rasters can be split into
+ * bands of rows resized on a fork-join pool.
+ */
+final class Resizer {
+
+  enum Method {
+    /** Averages the exact source area under each destination pixel, in one step. */
+    AREA_AVERAGE,
+    /** Halves the image with 2x2 boxes while it is at least twice the size, then area-averages the rest. Faster. */
+    PROGRESSIVE,
+  }
+
+  // Filter weights sum to 1 << WEIGHT_BITS; the horizontal pass keeps INTERMEDIATE_BITS of fraction.
+  private final static int WEIGHT_BITS = 14;
+  private final static int INTERMEDIATE_BITS = 8;
+  // Rows per band are chosen so a band has about this many pixels.
+  private final static int BAND_PIXELS = 1 << 16;
+
+  private final Method method;
+  private final ForkJoinPool pool;
+
+  /** @param pool the pool to resize bands of rows on, or null to resize on the calling thread */
+  Resizer(Method method, ForkJoinPool pool) {
+    this.method = method;
+    this.pool = pool;
+  }
+
+  /** Returns <code>image</code> resized to <code>width</code> by <code>height</code>, as a TYPE_INT_RGB image. */
+  public BufferedImage resize(BufferedImage image, int width, int height) throws IOException {
+    int srcWidth = image.getWidth();
+    int srcHeight = image.getHeight();
+    int[] dest = resize(Pixels.get(image), srcWidth, srcHeight, width, height);
+    BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+    System.arraycopy(dest, 0, pixels, 0, dest.length);
+    return res;
+  }
+
+  /** Returns the <code>srcWidth</code> by <code>srcHeight</code> raster <code>src</code> resized. */
+  public int[] resize(int[] src, int srcWidth, int srcHeight, int width, int height) throws IOException {
+    if (width <= 0 || height <= 0 || srcWidth <= 0 || srcHeight <= 0) {
+      throw new IllegalArgumentException("Can't resize " + srcWidth + "x" + srcHeight + " to " + width + "x" + height);
+    }
+    if (method == Method.PROGRESSIVE) {
+      while (srcWidth >= 2 * width && srcHeight >= 2 * height) {
+        src = halve(src, srcWidth, srcHeight);
+        srcWidth /= 2;
+        srcHeight /= 2;
+      }
+    }
+    if (srcWidth == width && srcHeight == height) {
+      return src;
+    }
+    return areaAverage(src, srcWidth, srcHeight, width, height);
+  }
+
+  /** Averages each 2x2 box of <code>src</code>, dropping an odd last row or column. */
+  private int[] halve(final int[] src, final int srcWidth, int srcHeight) throws IOException {
+    final int width = srcWidth / 2;
+    int height = srcHeight / 2;
+    final int[] dest = new int[width * height];
+    run(height, width, new ParallelFor.Body() {
+      @Override
+      public void run(int from, int to) {
+        for (int y = from; y < to; y++) {
+          int top = 2 * y * srcWidth;
+          int bottom = top + srcWidth;
+          int out = y * width;
+          for (int x = 0; x < width; x++) {
+            int a = src[top + 2 * x], b = src[top + 2 * x + 1];
+            int c = src[bottom + 2 * x], d = src[bottom + 2 * x + 1];
+            // Sum two channels at a time; each sum of four bytes fits in 10 bits.
+            int rb = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff) + (d & 0xff00ff) + 0x20002;
+            int g = (a & 0xff00) + (b & 0xff00) + (c & 0xff00) + (d & 0xff00) + 0x200;
+            dest[out + x] = ((rb >> 2) & 0xff00ff) | ((g >> 2) & 0xff00);
+          }
+        }
+      }
+    });
+    return dest;
+  }
+
+  /** The weights of the source pixels under each destination pixel along one axis. */
+  private final static class Filter {
+    // Destination pixel i uses source pixels starts[i] to starts[i] + counts[i] - 1, weighted by the weights from
+    // offsets[i].
+    final int[] starts;
+    final int[] counts;
+    final int[] offsets;
+    final int[] weights;
+
+    Filter(int srcSize, int size) {
+      starts = new int[size];
+      counts = new int[size];
+      offsets = new int[size + 1];
+      double scale = (double) srcSize / size;
+      int[] weights = new int[size * ((int) Math.ceil(scale) + 2)];
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        double start = i * scale;
+        double end = Math.min(srcSize, (i + 1) * scale);
+        int first = (int) start;
+        int last = Math.min(srcSize - 1, (int) Math.ceil(end) - 1);
+        starts[i] = first;
+        counts[i] = last - first + 1;
+        offsets[i] = n;
+        int total = 0;
+        int largest = n;
+        for (int j = first; j <= last; j++) {
+          double overlap = Math.min(j + 1, end) - Math.max(j, start);
+          int weight = (int) Math.round(overlap / (end - start) * (1 << WEIGHT_BITS));
+          weights[n] = weight;
+          total += weight;
+          if (weight > weights[largest]) {
+            largest = n;
+          }
+          n++;
+        }
+        // Make the weights sum to exactly one, so flat areas stay flat.
+        weights[largest] += (1 << WEIGHT_BITS) - total;
+      }
+      offsets[size] = n;
+      this.weights = weights;
+    }
+  }
+
+  private int[] areaAverage(final int[] src, final int srcWidth, final int srcHeight, final int width,
+      final int height) throws IOException {
+    final Filter horizontal = new Filter(srcWidth, width);
+    final Filter vertical = new Filter(srcHeight, height);
+
+    // Each channel of the horizontal pass, with INTERMEDIATE_BITS of fraction.
+    final int[] reds = new int[width * srcHeight];
+    final int[] greens = new int[width * srcHeight];
+    final int[] blues = new int[width * srcHeight];
+    run(srcHeight, Math.max(srcWidth, width), new ParallelFor.Body() {
+      @Override
+      public void run(int from, int to) {
+        int shift = WEIGHT_BITS - INTERMEDIATE_BITS;
+        int round = 1 << (shift - 1);
+        for (int y = from; y < to; y++) {
+          int in = y * srcWidth;
+          int out = y * width;
+          for (int x = 0; x < width; x++) {
+            int r = 0, g = 0, b = 0;
+            int start = in + horizontal.starts[x];
+            int offset = horizontal.offsets[x];
+            for (int k = 0, n = horizontal.counts[x]; k < n; k++) {
+              int c = src[start + k];
+              int w = horizontal.weights[offset + k];
+              r += ((c >> 16) & 0xff) * w;
+              g += ((c >> 8) & 0xff) * w;
+              b += (c & 0xff) * w;
+            }
+            reds[out + x] = (r + round) >> shift;
+            greens[out + x] = (g + round) >> shift;
+            blues[out + x] = (b + round) >> shift;
+          }
+        }
+      }
+    });
+
+    final int[] dest = new int[width * height];
+    run(height, width * 2, new ParallelFor.Body() {
+      @Override
+      public void run(int from, int to) {
+        int shift = WEIGHT_BITS + INTERMEDIATE_BITS;
+        int round = 1 << (shift - 1);
+        int[] r = new int[width];
+        int[] g = new int[width];
+        int[] b = new int[width];
+        for (int y = from; y < to; y++) {
+          Arrays.fill(r, round);
+          Arrays.fill(g, round);
+          Arrays.fill(b, round);
+          int offset = vertical.offsets[y];
+          for (int k = 0, n = vertical.counts[y]; k < n; k++) {
+            int w = vertical.weights[offset + k];
+            int in = (vertical.starts[y] + k) * width;
+            for (int x = 0; x < width; x++) {
+              r[x] += reds[in + x] * w;
+              g[x] += greens[in + x] * w;
+              b[x] += blues[in + x] * w;
+            }
+          }
+          int out = y * width;
+          for (int x = 0; x < width; x++) {
+            dest[out + x] = (clamp(r[x] >> shift) << 16) | (clamp(g[x] >> shift) << 8) | clamp(b[x] >> shift);
+          }
+        }
+      }
+    });
+    return dest;
+  }
+
+  private static int clamp(int c) {
+    return c < 0 ? 0 : c > 255 ? 255 : c;
+  }
+
+  /** Runs <code>body</code> over <code>rows</code> rows of <code>rowPixels</code> each, in bands on the pool. */
+  private void run(int rows, int rowPixels, ParallelFor.Body body) throws IOException {
+    int grain = Math.max(1, BAND_PIXELS / Math.max(1, rowPixels));
+    try {
+      ParallelFor.run(pool, 0, rows, grain, body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
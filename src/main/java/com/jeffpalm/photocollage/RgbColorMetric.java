@@ -0,0 +1,38 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * Euclidean distance between sRGB values as they're stored. The reds of the image being matched are toned down, which
+ * makes the colors come out more nicely.
+ */
+final class RgbColorMetric implements ColorMetric {
+
+  @Override
+  public int toPoint(int rgb) {
+    return rgb & 0xffffff;
+  }
+
+  @Override
+  public int toTargetPoint(int rgb) {
+    int red = (rgb >> 16) & 0xff;
+    // Reduce the red a little.
+    if (red > 100) {
+      red -= 50;
+    }
+    return (red << 16) | (rgb & 0xffff);
+  }
+
+  @Override
+  public int distanceSquared(int a, int b) {
+    return Util.distanceSquared(a, b);
+  }
+
+  @Override
+  public boolean isEuclidean() {
+    return true;
+  }
+
+  @Override
+  public int getIndexDistanceSquared(int distanceSquared) {
+    return distanceSquared;
+  }
+}
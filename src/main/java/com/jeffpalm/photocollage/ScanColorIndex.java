@@ -0,0 +1,140 @@
+package com.jeffpalm.photocollage;
+
+/**
+ * A {@link ColorIndex} that scans every color on every query, like {@link LinearColorIndex}, with the channels kept in
+ * separate int arrays. Each query computes the distances of a block of colors into an array indexed like the channels,
+ * in a loop of plain arithmetic that the JIT compiles to SIMD instructions, and then goes over the block's distances.
+ * That makes it about three times faster than {@link LinearColorIndex} at every size ColorIndexBenchmark tries, and
+ * as fast as walking a tree up to about 300 colors.
+ *
+ * <p>
+ * Queries may come from several threads; each has its own distance array.
+ */
+final class ScanColorIndex implements ColorIndex {
+
+  // Colors whose distances are computed before they're compared, small enough that they stay in cache.
+  private final static int BLOCK = 1024;
+
+  private final static ThreadLocal<int[]> distances = new ThreadLocal<int[]>();
+
+  private final int[] reds;
+  private final int[] greens;
+  private final int[] blues;
+
+  ScanColorIndex(int[] colors) {
+    int n = colors.length;
+    reds = new int[n];
+    greens = new int[n];
+    blues = new int[n];
+    for (int id = 0; id < n; id++) {
+      reds[id] = (colors[id] >> 16) & 0xff;
+      greens[id] = (colors[id] >> 8) & 0xff;
+      blues[id] = colors[id] & 0xff;
+    }
+  }
+
+  @Override
+  public int size() {
+    return reds.length;
+  }
+
+  @Override
+  public int getColor(int id) {
+    return (reds[id] << 16) | (greens[id] << 8) | blues[id];
+  }
+
+  /** Returns this thread's distance array, with room for every color. */
+  private int[] distances() {
+    int[] res = distances.get();
+    if (res == null || res.length < reds.length) {
+      res = new int[reds.length];
+      distances.set(res);
+    }
+    return res;
+  }
+
+  /**
+   * Sets <code>dist[id]</code> to the squared distance from (r, g, b) to color <code>id</code> for the ids in [start,
+   * end). The distances are indexed like the channels, which the JIT needs to vectorize the loop.
+   */
+  private void distances(int r, int g, int b, int start, int end, int[] dist) {
+    int[] reds = this.reds, greens = this.greens, blues = this.blues;
+    for (int id = start; id < end; id++) {
+      int dr = reds[id] - r;
+      int dg = greens[id] - g;
+      int db = blues[id] - b;
+      dist[id] = dr * dr + dg * dg + db * db;
+    }
+  }
+
+  @Override
+  public int nearest(int rgb) {
+    int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+    int[] dist = distances();
+    int nearestDistance = Integer.MAX_VALUE;
+    int nearestId = -1;
+    for (int start = 0; start < reds.length; start += BLOCK) {
+      int end = Math.min(start + BLOCK, reds.length);
+      distances(r, g, b, start, end, dist);
+      for (int id = start; id < end; id++) {
+        if (dist[id] < nearestDistance) {
+          nearestDistance = dist[id];
+          nearestId = id;
+        }
+      }
+    }
+    return nearestId;
+  }
+
+  @Override
+  public void nearest(int rgb, int k, KNearest heap, IntList out) {
+    int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+    int[] dist = distances();
+    heap.reset(k);
+    for (int start = 0; start < reds.length; start += BLOCK) {
+      int end = Math.min(start + BLOCK, reds.length);
+      distances(r, g, b, start, end, dist);
+      for (int id = start; id < end; id++) {
+        if (!heap.isFull() || dist[id] <= heap.worstDistance()) {
+          heap.offer(dist[id], id);
+        }
+      }
+    }
+    heap.drainTo(out);
+  }
+
+  @Override
+  public void nearest(int rgb, int k, int maxDistanceSquared, KNearest heap, IntList out) {
+    int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+    int[] dist = distances();
+    int outStart = out.size();
+    heap.reset(k);
+    for (int start = 0; start < reds.length; start += BLOCK) {
+      int end = Math.min(start + BLOCK, reds.length);
+      distances(r, g, b, start, end, dist);
+      for (int id = start; id < end; id++) {
+        if (dist[id] < maxDistanceSquared) {
+          out.add(id);
+        } else if (!heap.isFull() || dist[id] <= heap.worstDistance()) {
+          heap.offer(dist[id], id);
+        }
+      }
+    }
+    heap.drainUnionTo(out, outStart);
+  }
+
+  @Override
+  public void withinDistance(int rgb, int maxDistanceSquared, IntList out) {
+    int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+    int[] dist = distances();
+    for (int start = 0; start < reds.length; start += BLOCK) {
+      int end = Math.min(start + BLOCK, reds.length);
+      distances(r, g, b, start, end, dist);
+      for (int id = start; id < end; id++) {
+        if (dist[id] < maxDistanceSquared) {
+          out.add(id);
+        }
+      }
+    }
+  }
+}
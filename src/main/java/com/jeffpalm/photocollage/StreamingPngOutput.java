@@ -0,0 +1,298 @@
+package com.jeffpalm.photocollage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An {@link Output} that encodes the collage as a PNG one band of rows at a time, so only a band of tiles is ever in
+ * memory. Tiles must be written in band order: a write to a later band encodes the current one, and tiles written at
+ * the same time must be in the same band.
+ *
+ * <p>
+ * Tiles of one band are copied in concurrently under the read lock. Encoding a band takes the write lock, so no copy
+ * overlaps it and no copy lands in a band that is being cleared for the next rows.
+ */
+final class StreamingPngOutput implements Output {
+
+  private final static byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+  private final static int IDAT_SIZE = 64 * 1024;
+  private final static Metrics.Timer ENCODE = Metrics.timer("encode");
+
+  private final int bandHeight;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private File outFile;
+  private int width;
+  private int height;
+  private DataOutputStream out;
+  private Deflater deflater;
+  private DeflaterOutputStream idat;
+
+  // The pixels of the current band, and the first row of the image it holds.
+  private int[] band;
+  private int bandStart;
+  private int rowsEncoded;
+
+  // Scanline buffers for choosing a filter, with a leading filter type byte.
+  private byte[] previousRow;
+  private byte[] currentRow;
+  private byte[][] filteredRows;
+
+  /** @param bandHeight the number of rows to buffer, usually the height of a tile */
+  StreamingPngOutput(int bandHeight) {
+    this.bandHeight = bandHeight;
+  }
+
+  public Output open(File outFile, int newWidth, int newHeight) throws IOException {
+    if ((long) newWidth * bandHeight > Integer.MAX_VALUE || (long) newWidth * 3 + 1 > Integer.MAX_VALUE) {
+      throw new IOException("Bands of " + newWidth + "x" + bandHeight + " are too large");
+    }
+    this.outFile = outFile;
+    this.width = newWidth;
+    this.height = newHeight;
+    Log.getLog().info("Streaming new image of size " + newWidth + "x" + newHeight + " in bands of " + bandHeight
+        + " rows...");
+    band = new int[width * bandHeight];
+    bandStart = 0;
+    rowsEncoded = 0;
+    int stride = 1 + 3 * width;
+    previousRow = new byte[stride];
+    currentRow = new byte[stride];
+    filteredRows = new byte[5][stride];
+
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), IDAT_SIZE));
+    out.write(SIGNATURE);
+    Chunk ihdr = new Chunk("IHDR");
+    ihdr.data.writeInt(width);
+    ihdr.data.writeInt(height);
+    ihdr.data.writeByte(8); // bit depth
+    ihdr.data.writeByte(2); // truecolor
+    ihdr.data.writeByte(0); // deflate
+    ihdr.data.writeByte(0); // adaptive filtering
+    ihdr.data.writeByte(0); // no interlace
+    ihdr.writeTo(out);
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    idat = new DeflaterOutputStream(new IdatOutputStream(out), deflater, IDAT_SIZE);
+    return this;
+  }
+
+  public void write(Tile tile, int x, int y) throws IOException {
+    while (true) {
+      lock.readLock().lock();
+      try {
+        if (y < bandStart) {
+          throw new IllegalStateException("row " + y + " was already encoded");
+        }
+        if (y < bandStart + bandHeight) {
+          tile.copyTo(band, width, Math.min(bandHeight, height - bandStart), x, y - bandStart);
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      advanceTo(y);
+    }
+  }
+
+  private void advanceTo(int y) throws IOException {
+    lock.writeLock().lock();
+    try {
+      while (y >= bandStart + bandHeight) {
+        encodeBand();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public boolean supportsConcurrentWrites() {
+    return true;
+  }
+
+  public void close() throws IOException {
+    Log.getLog().info("Writing to " + outFile + "...");
+    lock.writeLock().lock();
+    try {
+      while (rowsEncoded < height) {
+        encodeBand();
+      }
+      idat.finish();
+      idat.flush();
+      new Chunk("IEND").writeTo(out);
+      out.close();
+      deflater.end();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    Log.getLog().info("Wrote to " + outFile);
+  }
+
+  public void abort() {
+    lock.writeLock().lock();
+    try {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // The file is deleted anyway.
+      }
+      deflater.end();
+      band = null;
+      outFile.delete();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Encodes the rows of the current band and starts the next one, with the write lock held. */
+  private void encodeBand() throws IOException {
+    long start = ENCODE.start();
+    int rows = Math.min(bandHeight, height - bandStart);
+    for (int row = 0; row < rows; row++) {
+      encodeRow(row * width);
+    }
+    rowsEncoded += rows;
+    Arrays.fill(band, 0);
+    bandStart += bandHeight;
+    ENCODE.stop(start);
+  }
+
+  private void encodeRow(int offset) throws IOException {
+    for (int x = 0, i = 1; x < width; x++) {
+      int pixel = band[offset + x];
+      currentRow[i++] = (byte) (pixel >> 16);
+      currentRow[i++] = (byte) (pixel >> 8);
+      currentRow[i++] = (byte) pixel;
+    }
+    idat.write(filter());
+    byte[] t = previousRow;
+    previousRow = currentRow;
+    currentRow = t;
+  }
+
+  /** Returns the filtered row with the smallest sum of absolute values, the usual PNG heuristic. */
+  private byte[] filter() {
+    byte[] best = null;
+    long bestSum = Long.MAX_VALUE;
+    for (int type = 0; type < filteredRows.length; type++) {
+      byte[] filtered = filteredRows[type];
+      filtered[0] = (byte) type;
+      long sum = 0;
+      for (int i = 1; i < filtered.length; i++) {
+        int raw = currentRow[i] & 0xff;
+        int left = i > 3 ? currentRow[i - 3] & 0xff : 0;
+        int up = previousRow[i] & 0xff;
+        int upLeft = i > 3 ? previousRow[i - 3] & 0xff : 0;
+        int value;
+        switch (type) {
+          case 1:
+            value = raw - left;
+            break;
+          case 2:
+            value = raw - up;
+            break;
+          case 3:
+            value = raw - ((left + up) >> 1);
+            break;
+          case 4:
+            value = raw - paeth(left, up, upLeft);
+            break;
+          default:
+            value = raw;
+        }
+        filtered[i] = (byte) value;
+        sum += Math.abs((int) (byte) value);
+      }
+      if (sum < bestSum) {
+        bestSum = sum;
+        best = filtered;
+      }
+    }
+    return best;
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    return pb <= pc ? b : c;
+  }
+
+  /** A chunk whose data is buffered so its length and CRC can be written before and after it. */
+  private final static class Chunk {
+    private final String type;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream data = new DataOutputStream(bytes);
+
+    Chunk(String type) {
+      this.type = type;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      writeChunk(out, type, bytes.toByteArray(), bytes.size());
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, 0, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /** Collects compressed bytes into IDAT chunks. */
+  private final static class IdatOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte[] buf = new byte[IDAT_SIZE];
+    private int size;
+
+    IdatOutputStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = Math.min(len, buf.length - size);
+        System.arraycopy(b, off, buf, size, n);
+        size += n;
+        off += n;
+        len -= n;
+        if (size == buf.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (size > 0) {
+        writeChunk(out, "IDAT", buf, size);
+        size = 0;
+      }
+    }
+  }
+}
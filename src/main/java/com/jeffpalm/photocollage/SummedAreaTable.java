@@ -0,0 +1,103 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The sums of each channel of an image over every rectangle from its top left corner, so the average color of any
+ * box is four lookups per channel however large the box is. It's built in one pass over the image.
+ *
+ * <p>
+ * Sums are kept in ints and allowed to wrap. The sum of a box comes out right modulo 2<sup>32</sup>, which is exact as
+ * long as the image has at most {@link #MAX_PIXELS} pixels.
+ */
+final class SummedAreaTable {
+
+  /** The most pixels whose channel sum fits in 32 unsigned bits. */
+  final static long MAX_PIXELS = 0xffffffffL / 0xff;
+
+  private final int width;
+  private final int height;
+  // Entry (y, x) at y * (width + 1) + x is the sum over rows [0, y) and columns [0, x).
+  private final int[] reds;
+  private final int[] greens;
+  private final int[] blues;
+
+  private SummedAreaTable(int width, int height) {
+    this.width = width;
+    this.height = height;
+    int size = (width + 1) * (height + 1);
+    this.reds = new int[size];
+    this.greens = new int[size];
+    this.blues = new int[size];
+  }
+
+  /** Returns whether a table of a <code>width</code> by <code>height</code> image sums every box exactly. */
+  static boolean fits(int width, int height) {
+    return (long) width * height <= MAX_PIXELS;
+  }
+
+  static SummedAreaTable of(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    if (!fits(width, height)) {
+      throw new IllegalArgumentException("Image of " + width + "x" + height + " is too large to sum");
+    }
+    SummedAreaTable res = new SummedAreaTable(width, height);
+    int[] row = new int[width];
+    int stride = width + 1;
+    for (int y = 0; y < height; y++) {
+      Pixels.getRow(image, y, row);
+      int above = y * stride + 1;
+      int out = above + stride;
+      int r = 0, g = 0, b = 0;
+      for (int x = 0; x < width; x++) {
+        int c = row[x];
+        r += (c >> 16) & 0xff;
+        g += (c >> 8) & 0xff;
+        b += c & 0xff;
+        res.reds[out + x] = res.reds[above + x] + r;
+        res.greens[out + x] = res.greens[above + x] + g;
+        res.blues[out + x] = res.blues[above + x] + b;
+      }
+    }
+    return res;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the packed RGB average of <code>box</code>, with each channel rounded down, or black if it's empty. */
+  public int getAverage(ColorBox box) {
+    return getAverage(box.firstRow, box.lastRow, box.firstCol, box.lastCol);
+  }
+
+  /** Returns the packed RGB average of rows [firstRow, lastRow) and columns [firstCol, lastCol). */
+  public int getAverage(int firstRow, int lastRow, int firstCol, int lastCol) {
+    firstRow = Math.max(0, firstRow);
+    firstCol = Math.max(0, firstCol);
+    lastRow = Math.min(height, lastRow);
+    lastCol = Math.min(width, lastCol);
+    if (firstRow >= lastRow || firstCol >= lastCol) {
+      return 0;
+    }
+    long pixelCount = (long) (lastRow - firstRow) * (lastCol - firstCol);
+    int stride = width + 1;
+    int topLeft = firstRow * stride + firstCol;
+    int topRight = firstRow * stride + lastCol;
+    int bottomLeft = lastRow * stride + firstCol;
+    int bottomRight = lastRow * stride + lastCol;
+    int red = (int) (sum(reds, topLeft, topRight, bottomLeft, bottomRight) / pixelCount);
+    int green = (int) (sum(greens, topLeft, topRight, bottomLeft, bottomRight) / pixelCount);
+    int blue = (int) (sum(blues, topLeft, topRight, bottomLeft, bottomRight) / pixelCount);
+    return (red << 16) | (green << 8) | blue;
+  }
+
+  private static long sum(int[] sums, int topLeft, int topRight, int bottomLeft, int bottomRight) {
+    return (sums[bottomRight] - sums[bottomLeft] - sums[topRight] + sums[topLeft]) & 0xffffffffL;
+  }
+}
@@ -0,0 +1,280 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Thumbnails of library images, resized and cropped to a cell, stored under the hash of the image's contents so
+ * images with the same name in different directories don't collide and copies of an image share one thumbnail.
+ * Thumbnails of cells of <i>w</i> by <i>h</i> live in <code>root/wxh/ab/cd/abcd....jpg</code>, so no directory
+ * grows too large.
+ *
+ * <p>
+ * Hashes are kept with the colors of their files in a {@link ColorCacheStore}, so a thumbnail that exists is found
+ * without reading its image again in later runs.
+ *
+ * <p>
+ * Threads asking for a thumbnail that is being generated wait for it instead of generating their own, and
+ * thumbnails are written to a temporary file and renamed into place, so other processes never see a partial one.
+ */
+final class ThumbnailStore {
+
+  private final static Logger LOG = Logger.getLogger(ThumbnailStore.class.getName());
+  private final static String FORMAT = "jpg";
+
+  // Images per leaf task of prewarm.
+  private final static int BATCH_SIZE = 16;
+
+  private final static class ContentHash {
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    ContentHash(long size, long lastModified, String hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  private final File root;
+  // Where hashes persist, or null to keep them for this store only.
+  private final ColorCacheStore hashCache;
+  // Hashes of the files seen so far, until they change.
+  private final ConcurrentHashMap<File, ContentHash> hashes = new ConcurrentHashMap<File, ContentHash>();
+  private final ConcurrentHashMap<File, FutureTask<File>> generating = new ConcurrentHashMap<File, FutureTask<File>>();
+
+  ThumbnailStore(File root, ColorCacheStore hashCache) {
+    this.root = root;
+    this.hashCache = hashCache;
+  }
+
+  ThumbnailStore(File root) {
+    this(root, null);
+  }
+
+  /** Returns the thumbnail of <code>source</code> for cells of <code>width</code> by <code>height</code>. */
+  public File get(final File source, final int width, final int height) throws IOException {
+    final File thumbnail = getThumbnailFile(source, width, height);
+    if (thumbnail.isFile()) {
+      return thumbnail;
+    }
+    FutureTask<File> generate = new FutureTask<File>(new Callable<File>() {
+      @Override
+      public File call() throws IOException {
+        if (!thumbnail.isFile()) {
+          generate(source, thumbnail, width, height);
+        }
+        return thumbnail;
+      }
+    });
+    FutureTask<File> existing = generating.putIfAbsent(thumbnail, generate);
+    if (existing != null) {
+      generate = existing;
+    } else {
+      generate.run();
+    }
+    try {
+      return generate.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (existing == null) {
+        generating.remove(thumbnail);
+      }
+    }
+  }
+
+  /** Returns where the thumbnail of <code>source</code> for cells of <code>width</code> by <code>height</code> goes. */
+  public File getThumbnailFile(File source, int width, int height) throws IOException {
+    String hash = getContentHash(source);
+    File dir = new File(new File(new File(root, width + "x" + height), hash.substring(0, 2)), hash.substring(2, 4));
+    return new File(dir, hash + "." + FORMAT);
+  }
+
+  /** Returns the hex SHA-1 of the contents of <code>file</code>. */
+  public String getContentHash(File file) throws IOException {
+    long size = file.length();
+    long lastModified = file.lastModified();
+    String hash = lookupContentHash(file, size, lastModified);
+    if (hash != null) {
+      return hash;
+    }
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        digest.update(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return putContentHash(file, size, lastModified, digest);
+  }
+
+  /**
+   * Returns the hex SHA-1 of the already-read <code>contents</code> of <code>file</code>, and remembers it for
+   * {@link #getThumbnailFile}. <code>lastModified</code> is the time of the file before it was read.
+   */
+  public String getContentHash(File file, long lastModified, byte[] contents) throws IOException {
+    String hash = lookupContentHash(file, contents.length, lastModified);
+    if (hash != null) {
+      return hash;
+    }
+    MessageDigest digest = newDigest();
+    digest.update(contents);
+    return putContentHash(file, contents.length, lastModified, digest);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Returns the hash of <code>file</code> remembered by this store or persisted, or null if it has to be read. */
+  private String lookupContentHash(File file, long size, long lastModified) {
+    ContentHash contentHash = hashes.get(file);
+    if (contentHash != null && contentHash.size == size && contentHash.lastModified == lastModified) {
+      return contentHash.hash;
+    }
+    // The cache checks the file as it is now, which the caller may not have read.
+    if (hashCache == null || file.length() != size || file.lastModified() != lastModified) {
+      return null;
+    }
+    String hash = hashCache.getContentHash(file);
+    if (hash != null) {
+      hashes.put(file, new ContentHash(size, lastModified, hash));
+    }
+    return hash;
+  }
+
+  private String putContentHash(File file, long size, long lastModified, MessageDigest digest) throws IOException {
+    StringBuilder hash = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    hashes.put(file, new ContentHash(size, lastModified, hash.toString()));
+    if (hashCache != null) {
+      hashCache.putContentHash(file, size, lastModified, hash.toString());
+    }
+    return hash.toString();
+  }
+
+  /** Writes the hashes found so far where they persist. */
+  public void flush() throws IOException {
+    if (hashCache != null) {
+      hashCache.flush();
+    }
+  }
+
+  /**
+   * Writes the thumbnail of <code>source</code> for cells of <code>width</code> by <code>height</code> from
+   * <code>image</code>, already decoded with {@link ImageDecoder} for at least <code>width</code>, unless it exists.
+   */
+  public void put(File source, BufferedImage image, int width, int height) throws IOException {
+    File thumbnail = getThumbnailFile(source, width, height);
+    if (!thumbnail.isFile()) {
+      write(source, image, thumbnail, width, height);
+    }
+  }
+
+  private void generate(File source, File thumbnail, int width, int height) throws IOException {
+    write(source, ImageDecoder.decode(source, width), thumbnail, width, height);
+  }
+
+  private static void write(File source, BufferedImage image, File thumbnail, int width, int height)
+      throws IOException {
+    BufferedImage resized = Util.resize(image, width);
+    int croppedWidth = Math.min(width, resized.getWidth());
+    int croppedHeight = Math.min(height, resized.getHeight());
+    BufferedImage cropped = new BufferedImage(croppedWidth, croppedHeight, BufferedImage.TYPE_INT_RGB);
+    cropped.setRGB(0, 0, croppedWidth, croppedHeight,
+        resized.getRGB(0, 0, croppedWidth, croppedHeight, null, 0, croppedWidth), 0, croppedWidth);
+
+    File dir = thumbnail.getParentFile();
+    dir.mkdirs();
+    File tmp = File.createTempFile(thumbnail.getName(), ".tmp", dir);
+    try {
+      if (!ImageIO.write(cropped, FORMAT, tmp)) {
+        throw new IOException("No " + FORMAT + " writer for " + source);
+      }
+      Files.move(tmp.toPath(), thumbnail.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Generates the thumbnails of all <code>images</code> for cells of <code>width</code> by <code>height</code> that
+   * don't exist yet, <code>parallelism</code> at a time (0 for the number of processors).
+   *
+   * @return the images that failed
+   */
+  public List<ParallelClassifier.Failure> prewarm(final List<ClassifiedImage> images, final int width,
+      final int height, int parallelism) throws IOException, InterruptedException {
+    final List<ParallelClassifier.Failure> failures =
+        Collections.synchronizedList(new ArrayList<ParallelClassifier.Failure>());
+    final AtomicInteger done = new AtomicInteger();
+    final int n = images.size();
+    final int logEvery = Math.max(1, n / 100);
+    long start = System.currentTimeMillis();
+    int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    try {
+      ParallelFor.run(pool, 0, n, BATCH_SIZE, new ParallelFor.Body() {
+        @Override
+        public void run(int from, int to) {
+          for (int i = from; i < to; i++) {
+            ClassifiedImage image = images.get(i);
+            try {
+              get(image.getFile(), width, height);
+            } catch (Exception e) {
+              failures.add(new ParallelClassifier.Failure(image, e));
+            }
+            int count = done.incrementAndGet();
+            if (count % logEvery == 0 || count == n) {
+              LOG.infof("[%d/%d (%.2f%%)] thumbnails, %d failed", count, n, 100f * count / n, failures.size());
+            }
+          }
+        }
+      });
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+    LOG.infof("prewarmed %d %dx%d thumbnails (%d failed) in %dms with %d threads", n, width, height,
+        failures.size(), System.currentTimeMillis() - start, threads);
+    return failures;
+  }
+}
@@ -0,0 +1,88 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.IntBuffer;
+
+/**
+ * A decoded library image, resized and cropped to the cell it's drawn in. Pixels are packed RGB values in row order
+ * and must not be modified. They are either on the heap or in a mapped {@link TileAtlas}.
+ */
+final class Tile {
+
+  private final File file;
+  private final int width;
+  private final int height;
+  private final int[] pixels;
+  // The mapped pixels starting at offset, when pixels is null.
+  private final IntBuffer mapped;
+  private final int offset;
+
+  Tile(File file, int width, int height, int[] pixels) {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.pixels = pixels;
+    this.mapped = null;
+    this.offset = 0;
+  }
+
+  Tile(File file, int width, int height, IntBuffer mapped, int offset) {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.pixels = null;
+    this.mapped = mapped;
+    this.offset = offset;
+  }
+
+  /**
+   * Returns the top-left <code>maxWidth</code> by <code>maxHeight</code> pixels of <code>image</code> as a tile. This
+   * is all of the image that shows when it is drawn in a cell of that size before the cells to its right and below.
+   */
+  static Tile crop(File file, BufferedImage image, int maxWidth, int maxHeight) {
+    int width = Math.min(maxWidth, image.getWidth());
+    int height = Math.min(maxHeight, image.getHeight());
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+    return new Tile(file, width, height, pixels);
+  }
+
+  /** Returns the file the tile was decoded from, the thumbnail for tiles from an atlas. */
+  public File getFile() {
+    return file;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the approximate number of bytes the tile takes on the heap. */
+  public long getByteSize() {
+    return pixels != null ? 64 + 4L * pixels.length : 64;
+  }
+
+  /**
+   * Copies the tile into <code>dest</code>, a row-ordered raster <code>destWidth</code> by <code>destHeight</code>
+   * pixels, with its top-left corner at (x, y). Pixels outside the raster are clipped.
+   */
+  public void copyTo(int[] dest, int destWidth, int destHeight, int x, int y) {
+    int w = Math.min(width, destWidth - x);
+    int h = Math.min(height, destHeight - y);
+    if (pixels != null) {
+      for (int row = 0; row < h; row++) {
+        System.arraycopy(pixels, row * width, dest, (y + row) * destWidth + x, w);
+      }
+      return;
+    }
+    // A view of our own, since the buffer's position is shared.
+    IntBuffer src = mapped.duplicate();
+    for (int row = 0; row < h; row++) {
+      src.position(offset + row * width);
+      src.get(dest, (y + row) * destWidth + x, w);
+    }
+  }
+}
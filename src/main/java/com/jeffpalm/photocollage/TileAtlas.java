@@ -0,0 +1,281 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The tiles of one cell size in a memory-mapped file, so drawing a tile copies its pixels straight from the mapping
+ * instead of decoding a JPEG.
+ *
+ * <p>
+ * Each size has two files next to its thumbnails:
+ * <ul>
+ * <li><code>wxh.atlas</code> holds the tile in slot <i>i</i> as packed RGB ints, row by row, at byte
+ * <i>i</i>&nbsp;*&nbsp;w&nbsp;*&nbsp;h&nbsp;*&nbsp;4.
+ * <li><code>wxh.index</code> lists the content hash, width and height of the tile in each slot, in slot order.
+ * </ul>
+ * A tile is added from its {@link ThumbnailStore} thumbnail the first time it's needed. Its pixels are written
+ * before its index record, both under a lock on the index, so several processes can share and extend one atlas.
+ */
+final class TileAtlas implements TileSource, Closeable {
+
+  private final static Logger LOG = Logger.getLogger(TileAtlas.class.getName());
+
+  private final static int INDEX_MAGIC = 0x50434131; // PCA1
+  private final static int INDEX_HEADER_SIZE = 4 + 4 + 4;
+  private final static int HASH_SIZE = 20;
+  private final static int RECORD_SIZE = HASH_SIZE + 2 + 2;
+  private final static long CHUNK_SIZE = 64 << 20;
+  // Images per leaf task of prepare.
+  private final static int BATCH_SIZE = 16;
+
+  private final ThumbnailStore thumbnails;
+  private final int tileWidth;
+  private final int tileHeight;
+  private final int slotInts;
+  private final int slotsPerChunk;
+  private final File indexFile;
+  private final RandomAccessFile atlas;
+  private final RandomAccessFile index;
+
+  // The mapped chunks of slotsPerChunk slots each, and the slots read from the index so far.
+  private final List<IntBuffer> chunks = new ArrayList<IntBuffer>();
+  private final Map<String, Integer> slotsByHash = new HashMap<String, Integer>();
+  private final IntList slotSizes = new IntList();
+  private long indexPosition;
+  private int added;
+
+  // Tiles resolved by this process, by library file.
+  private final ConcurrentHashMap<File, Tile> tiles = new ConcurrentHashMap<File, Tile>();
+
+  TileAtlas(File dir, int tileWidth, int tileHeight, ThumbnailStore thumbnails) throws IOException {
+    if (tileWidth <= 0 || tileHeight <= 0 || tileWidth > 0xffff || tileHeight > 0xffff
+        || 4L * tileWidth * tileHeight > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bad tile size " + tileWidth + "x" + tileHeight);
+    }
+    this.thumbnails = thumbnails;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.slotInts = tileWidth * tileHeight;
+    this.slotsPerChunk = (int) Math.max(1, CHUNK_SIZE / (4L * slotInts));
+    dir.mkdirs();
+    File atlasFile = new File(dir, tileWidth + "x" + tileHeight + ".atlas");
+    this.indexFile = new File(dir, tileWidth + "x" + tileHeight + ".index");
+    this.atlas = new RandomAccessFile(atlasFile, "rw");
+    this.index = new RandomAccessFile(indexFile, "rw");
+    FileLock lock = index.getChannel().lock();
+    try {
+      readIndex();
+    } finally {
+      lock.release();
+    }
+    LOG.infof("opened %s with %d %dx%d tiles", atlasFile, slotSizes.size(), tileWidth, tileHeight);
+  }
+
+  @Override
+  public Tile get(ClassifiedImage image, int width, int height) throws IOException {
+    if (width != tileWidth || height != tileHeight) {
+      throw new IllegalArgumentException("Atlas of " + tileWidth + "x" + tileHeight + " tiles can't draw " + width + "x"
+          + height + " cells");
+    }
+    File file = image.getFile();
+    Tile tile = tiles.get(file);
+    if (tile == null) {
+      tile = add(file);
+      tiles.put(file, tile);
+    }
+    return tile;
+  }
+
+  /** Adds the tiles of <code>images</code> that aren't in the atlas yet, so drawing them doesn't decode anything. */
+  @Override
+  public void prepare(Collection<ClassifiedImage> images, final int width, final int height, ForkJoinPool pool)
+      throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    int before = getAdded();
+    final List<ClassifiedImage> list = new ArrayList<ClassifiedImage>(images);
+    ParallelFor.run(pool, 0, list.size(), BATCH_SIZE, new ParallelFor.Body() {
+      @Override
+      public void run(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+          get(list.get(i), width, height);
+        }
+      }
+    });
+    LOG.infof("prepared %d tiles, %d of them new, in %dms", list.size(), getAdded() - before,
+        System.currentTimeMillis() - start);
+  }
+
+  /** Returns the tile of <code>source</code>, adding it to the atlas if it isn't there. */
+  private Tile add(File source) throws IOException {
+    String hash = thumbnails.getContentHash(source);
+    File thumbnail = thumbnails.getThumbnailFile(source, tileWidth, tileHeight);
+    synchronized (this) {
+      Integer slot = slotsByHash.get(hash);
+      if (slot != null) {
+        return newTile(thumbnail, slot);
+      }
+    }
+
+    // Decode outside the lock, so other tiles can be added meanwhile.
+    thumbnail = thumbnails.get(source, tileWidth, tileHeight);
+    BufferedImage image = ImageIO.read(thumbnail);
+    if (image == null) {
+      throw new IOException("Can't decode " + thumbnail);
+    }
+    int width = Math.min(tileWidth, image.getWidth());
+    int height = Math.min(tileHeight, image.getHeight());
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+    synchronized (this) {
+      FileLock lock = index.getChannel().lock();
+      try {
+        readIndex();
+        Integer slot = slotsByHash.get(hash);
+        if (slot == null) {
+          slot = slotSizes.size();
+          IntBuffer chunk = chunk(slot / slotsPerChunk).duplicate();
+          chunk.position((slot % slotsPerChunk) * slotInts);
+          chunk.put(pixels);
+          appendRecord(hash, width, height);
+          added++;
+        }
+        return newTile(thumbnail, slot);
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private Tile newTile(File thumbnail, int slot) throws IOException {
+    int size = slotSizes.get(slot);
+    return new Tile(thumbnail, size >>> 16, size & 0xffff, chunk(slot / slotsPerChunk),
+        (slot % slotsPerChunk) * slotInts);
+  }
+
+  private IntBuffer chunk(int c) throws IOException {
+    while (chunks.size() <= c) {
+      long chunkSize = 4L * slotInts * slotsPerChunk;
+      chunks.add(atlas.getChannel().map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkSize, chunkSize)
+          .asIntBuffer());
+    }
+    return chunks.get(c);
+  }
+
+  // Index
+
+  /**
+   * Reads the records other processes appended to the index, writing a missing header and truncating a torn record
+   * at the end. The caller holds the lock on the index.
+   */
+  private void readIndex() throws IOException {
+    FileChannel channel = index.getChannel();
+    long size = channel.size();
+    if (indexPosition == 0) {
+      if (size < INDEX_HEADER_SIZE) {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        header.putInt(INDEX_MAGIC).putInt(tileWidth).putInt(tileHeight).flip();
+        channel.truncate(0);
+        writeFully(channel, header, 0);
+        indexPosition = INDEX_HEADER_SIZE;
+        return;
+      }
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != tileWidth || header.getInt(8) != tileHeight) {
+        throw new IOException("Bad tile atlas index " + indexFile);
+      }
+      indexPosition = INDEX_HEADER_SIZE;
+    }
+    long records = (size - indexPosition) / RECORD_SIZE;
+    if (records > 0) {
+      ByteBuffer buf = ByteBuffer.allocate((int) (records * RECORD_SIZE));
+      readFully(channel, buf, indexPosition);
+      buf.flip();
+      byte[] hash = new byte[HASH_SIZE];
+      for (long i = 0; i < records; i++) {
+        buf.get(hash);
+        int width = buf.getShort() & 0xffff;
+        int height = buf.getShort() & 0xffff;
+        slotsByHash.put(toHex(hash), slotSizes.size());
+        slotSizes.add((width << 16) | height);
+      }
+      indexPosition += records * RECORD_SIZE;
+    }
+    if (indexPosition < size) {
+      LOG.warn("truncating torn record at " + indexPosition + " in " + indexFile);
+      channel.truncate(indexPosition);
+    }
+  }
+
+  private void appendRecord(String hash, int width, int height) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    for (int i = 0; i < HASH_SIZE; i++) {
+      record.put((byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16));
+    }
+    record.putShort((short) width).putShort((short) height).flip();
+    writeFully(index.getChannel(), record, indexPosition);
+    slotsByHash.put(hash, slotSizes.size());
+    slotSizes.add((width << 16) | height);
+    indexPosition += RECORD_SIZE;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder res = new StringBuilder();
+    for (byte b : bytes) {
+      res.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return res.toString();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected end of tile atlas index");
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf, position + buf.position());
+    }
+  }
+
+  public synchronized int size() {
+    return slotSizes.size();
+  }
+
+  /** Returns the number of tiles this process added. */
+  public synchronized int getAdded() {
+    return added;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    atlas.close();
+    index.close();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("TileAtlas(/*tileWidth=*/%d, /*tileHeight=*/%d, /*tiles=*/%d, /*resolved=*/%d, "
+        + "/*added=*/%d)", tileWidth, tileHeight, slotSizes.size(), tiles.size(), added);
+  }
+}
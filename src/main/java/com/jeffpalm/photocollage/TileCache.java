@@ -0,0 +1,170 @@
+package com.jeffpalm.photocollage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A least-recently-used cache of decoded tiles keyed by image and cell size. The cache holds at most
+ * <code>maxBytes</code> of pixels, so a tile placed many times is only decoded again after it has been evicted.
+ * Threads asking for a tile that is being loaded wait for that load instead of starting their own.
+ */
+final class TileCache implements TileSource {
+
+  private final static class Key {
+    final File file;
+    final int width;
+    final int height;
+
+    Key(File file, int width, int height) {
+      this.file = file;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return this.file.equals(that.file) && this.width == that.width && this.height == that.height;
+    }
+
+    @Override
+    public int hashCode() {
+      return (file.hashCode() * 31 + width) * 31 + height;
+    }
+  }
+
+  private final long maxBytes;
+  private final ThumbnailStore thumbnails;
+  private final Map<Key, Tile> tiles = new LinkedHashMap<Key, Tile>(16, 0.75f, true);
+  private final ConcurrentHashMap<Key, FutureTask<Tile>> loading = new ConcurrentHashMap<Key, FutureTask<Tile>>();
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  TileCache(long maxBytes) {
+    this(maxBytes, ImageCache.getThumbnailStore());
+  }
+
+  /** Makes a cache that decodes tiles from the thumbnails in <code>thumbnails</code>. */
+  TileCache(long maxBytes, ThumbnailStore thumbnails) {
+    this.maxBytes = maxBytes;
+    this.thumbnails = thumbnails;
+  }
+
+  @Override
+  public Tile get(final ClassifiedImage image, final int width, final int height) throws IOException {
+    Key key = new Key(image.getFile(), width, height);
+    synchronized (this) {
+      Tile tile = tiles.get(key);
+      if (tile != null) {
+        hits++;
+        return tile;
+      }
+      misses++;
+    }
+    FutureTask<Tile> load = new FutureTask<Tile>(new Callable<Tile>() {
+      @Override
+      public Tile call() throws IOException {
+        return load(image, width, height);
+      }
+    });
+    FutureTask<Tile> existingLoad = loading.putIfAbsent(key, load);
+    if (existingLoad != null) {
+      load = existingLoad;
+    } else {
+      // Another thread's load may have finished, and stopped being one, since this missed.
+      Tile loaded;
+      synchronized (this) {
+        loaded = tiles.get(key);
+      }
+      if (loaded != null) {
+        loading.remove(key);
+        return loaded;
+      }
+      load.run();
+    }
+    try {
+      Tile tile = load.get();
+      synchronized (this) {
+        if (existingLoad == null) {
+          Tile replaced = tiles.put(key, tile);
+          bytes += tile.getByteSize() - (replaced != null ? replaced.getByteSize() : 0);
+          evict();
+        }
+      }
+      return tile;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (existingLoad == null) {
+        loading.remove(key);
+      }
+    }
+  }
+
+  /** Does nothing; tiles are loaded as they're drawn, since they might not all fit. */
+  @Override
+  public void prepare(Collection<ClassifiedImage> images, int width, int height, ForkJoinPool pool) {}
+
+  private Tile load(ClassifiedImage image, int width, int height) throws IOException {
+    File resizedImageFile = thumbnails.get(image.getFile(), width, height);
+    BufferedImage resizedImage = ImageIO.read(resizedImageFile);
+    if (resizedImage == null) {
+      throw new IOException("bad image " + resizedImageFile);
+    }
+    return Tile.crop(resizedImageFile, resizedImage, width, height);
+  }
+
+  private void evict() {
+    Iterator<Tile> it = tiles.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().getByteSize();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("TileCache(/*tiles=*/%d, /*bytes=*/%d, /*maxBytes=*/%d, /*hits=*/%d, /*misses=*/%d, "
+        + "/*evictions=*/%d)", tiles.size(), bytes, maxBytes, hits, misses, evictions);
+  }
+}
@@ -0,0 +1,198 @@
+package com.jeffpalm.photocollage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Chooses the library image for each cell of a collage. Colors are points of the library's {@link ColorMetric}, with
+ * {@link #NO_COLOR} for neighbors outside the image, and images are library ids. The candidate lists are reused between
+ * cells, as is the heap of the nearest images, so matching a cell doesn't allocate once they've grown to the library's
+ * working size.
+ *
+ * <p>
+ * A matcher is used by one thread at a time. Matchers made with {@link #fork()} share when each image was last
+ * chosen, so several threads can match different cells of one collage. Which images they choose then depends on how
+ * the threads interleave.
+ *
+ * <p>
+ * Candidates for a color are the <code>nearestImageCount</code> nearest images plus every image within the threshold
+ * of it, found in one query of the index; neighbors' colors take the nearest image plus those within the threshold.
+ *
+ * <p>
+ * Given an {@link OccupancyGrid}, a cell leaves out the images already placed within the grid's radius of it. If every
+ * image near its colors is taken, it looks further afield, and only reuses a nearby image if nothing else is left.
+ */
+final class TileMatcher {
+
+  final static int NO_COLOR = -1;
+
+  private final static Metrics.Counter WIDENED = Metrics.counter("match.widenedForRadius");
+  private final static Metrics.Counter REPEATED = Metrics.counter("match.repeatedWithinRadius");
+
+  private final Library library;
+  private final ColorMetric metric;
+  private final int threshhold;
+  private final int nearestImageCount;
+
+  private final UsageTracker usage;
+  private final OccupancyGrid grid;
+  // excluded[id] == stamp for the images near the cell being matched.
+  private final int[] excluded;
+  private int stamp;
+
+  private final IntList topImages = new IntList();
+  private final IntList rightImages = new IntList();
+  private final IntList bottomImages = new IntList();
+  private final IntList leftImages = new IntList();
+  private final IntList chosenImages = new IntList();
+  private final KNearest heap;
+
+  TileMatcher(Library library, int threshhold, int nearestImageCount) {
+    this(library, threshhold, nearestImageCount, null);
+  }
+
+  /** Makes a matcher that keeps images out of the cells within the radius of <code>grid</code> of each other. */
+  TileMatcher(Library library, int threshhold, int nearestImageCount, OccupancyGrid grid) {
+    this(library, threshhold, nearestImageCount, new UsageTracker(library.size()), grid);
+  }
+
+  private TileMatcher(Library library, int threshhold, int nearestImageCount, UsageTracker usage,
+      OccupancyGrid grid) {
+    if (nearestImageCount <= 0) {
+      throw new IllegalArgumentException("nearestImageCount must be positive: " + nearestImageCount);
+    }
+    this.library = library;
+    this.metric = library.getMetric();
+    this.threshhold = threshhold;
+    this.nearestImageCount = nearestImageCount;
+    this.usage = usage;
+    this.grid = grid;
+    this.excluded = grid != null && grid.getRadius() > 0 ? new int[library.size()] : null;
+    this.heap = new KNearest(nearestImageCount);
+  }
+
+  /** Returns a matcher for another thread that shares when images were last chosen, and the grid, with this one. */
+  public TileMatcher fork() {
+    return new TileMatcher(library, threshhold, nearestImageCount, usage, grid);
+  }
+
+  /**
+   * Returns the id of the image for a cell of <code>color</code>. Prefers the images that match all four neighbors
+   * and falls back to the images nearest <code>color</code>, choosing the least recently used one.
+   */
+  public int match(int color, int top, int right, int bottom, int left) throws IOException {
+    return match(color, top, right, bottom, left, false);
+  }
+
+  /** Like {@link #match(int, int, int, int, int)} for cell (x, y) of the grid, placing the image there. */
+  public int match(int x, int y, int color, int top, int right, int bottom, int left) throws IOException {
+    boolean constrained = excluded != null;
+    if (constrained) {
+      if (++stamp == Integer.MAX_VALUE) {
+        Arrays.fill(excluded, 0);
+        stamp = 1;
+      }
+      grid.markNearby(x, y, excluded, stamp);
+    }
+    int res = match(color, top, right, bottom, left, constrained);
+    if (grid != null) {
+      grid.place(x, y, res);
+    }
+    return res;
+  }
+
+  private int match(int color, int top, int right, int bottom, int left, boolean constrained) throws IOException {
+    nearestImages(top, ImageSegment.TOP, 1, topImages);
+    nearestImages(left, ImageSegment.RIGHT, 1, rightImages);
+    nearestImages(bottom, ImageSegment.BOTTOM, 1, bottomImages);
+    nearestImages(right, ImageSegment.LEFT, 1, leftImages);
+
+    intersect(topImages, rightImages);
+    intersect(topImages, bottomImages);
+    intersect(topImages, leftImages);
+
+    if (!topImages.isEmpty()) {
+      int res = chooseLeastUsed(topImages, constrained);
+      if (res != UsageTracker.NONE) {
+        return res;
+      }
+    }
+
+    nearestImages(color, ImageSegment.ALL, nearestImageCount, chosenImages);
+    int res = chooseLeastUsed(chosenImages, constrained);
+    if (res == UsageTracker.NONE) {
+      // Everything near the color is nearby already; at most every cell within the radius holds one of the nearest.
+      WIDENED.increment();
+      int side = 2 * grid.getRadius() + 1;
+      nearestImages(color, ImageSegment.ALL, nearestImageCount + side * side, chosenImages);
+      res = chooseLeastUsed(chosenImages, constrained);
+    }
+    if (res == UsageTracker.NONE) {
+      REPEATED.increment();
+      res = chooseLeastUsed(chosenImages, false);
+    }
+    return res;
+  }
+
+  /** Removes the ids from <code>a</code> that aren't in <code>b</code>. Both lists are in increasing id order. */
+  private static void intersect(IntList a, IntList b) {
+    int size = 0;
+    for (int i = 0, j = 0; i < a.size() && j < b.size();) {
+      int x = a.get(i), y = b.get(j);
+      if (x < y) {
+        i++;
+      } else if (x > y) {
+        j++;
+      } else {
+        a.set(size++, x);
+        i++;
+        j++;
+      }
+    }
+    a.truncate(size);
+  }
+
+  /**
+   * Sets <code>out</code> to the <code>count</code> images nearest <code>color</code> and every image within the
+   * threshold of it, in library order.
+   */
+  private void nearestImages(int color, ImageSegment s, int count, IntList out) throws IOException {
+    out.clear();
+    if (color == NO_COLOR || library.size() == 0) {
+      return;
+    }
+    ColorIndex index = library.getColorIndex(s.getOpposite());
+    int maxDistanceSquared = threshhold * threshhold;
+    if (metric.isEuclidean()) {
+      index.nearest(color, count, maxDistanceSquared, heap, out);
+      return;
+    }
+    // Candidates by the index's distance, then the nearest and those within the threshold by the metric.
+    index.nearest(color, count, metric.getIndexDistanceSquared(maxDistanceSquared), heap, out);
+    heap.reset(count);
+    int size = 0;
+    for (int i = 0; i < out.size(); i++) {
+      int id = out.get(i);
+      int distance = metric.distanceSquared(color, index.getColor(id));
+      if (distance < maxDistanceSquared) {
+        out.set(size++, id);
+      } else {
+        heap.offer(distance, id);
+      }
+    }
+    out.truncate(size);
+    heap.drainUnionTo(out, 0);
+  }
+
+  /**
+   * Returns the first image that has never been chosen, or else the least recently chosen one, leaving out the images
+   * near the cell if <code>constrained</code>, or {@link UsageTracker#NONE} if that leaves none.
+   */
+  private int chooseLeastUsed(IntList ids, boolean constrained) {
+    int res = usage.leastRecentlyUsed(ids, constrained ? excluded : null, stamp);
+    if (res != UsageTracker.NONE) {
+      usage.use(res);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,19 @@
+package com.jeffpalm.photocollage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/** Where the renderer gets the tiles it draws. */
+interface TileSource {
+
+  /** Returns the tile of <code>image</code> for cells of <code>width</code> by <code>height</code> pixels. */
+  Tile get(ClassifiedImage image, int width, int height) throws IOException;
+
+  /**
+   * Readies the tiles of <code>images</code> before they're drawn, on <code>pool</code> or on this thread if it's
+   * null.
+   */
+  void prepare(Collection<ClassifiedImage> images, int width, int height, ForkJoinPool pool) throws IOException,
+      InterruptedException;
+}
@@ -0,0 +1,73 @@
+package com.jeffpalm.photocollage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * When each library image was last chosen, in an array indexed by library id, so choosing among candidates is one
+ * array read per candidate. Candidates come from the color index as lists it has already built in time linear in
+ * their length, so a pass over them finds the least recently chosen one at no extra order of cost; a heap ordered by
+ * use would still have to be searched for the first image that is a candidate.
+ *
+ * <p>
+ * A {@link TileMatcher} passes at most <code>nearestImageCount</code> images plus those within the threshold of the
+ * cell's color, and <code>(2 * radius + 1)^2</code> more when it looks past the images placed within the radius of an
+ * {@link OccupancyGrid}. Those are the images the index query visited to build the list, so the pass costs no more
+ * than the query did even with 10k+ candidates.
+ *
+ * <p>
+ * A tracker may be shared by the matchers of several threads.
+ */
+final class UsageTracker {
+
+  /** Returned when every candidate is excluded. */
+  final static int NONE = -1;
+
+  private final static int NEVER = -1;
+
+  // When each image was last chosen, or NEVER.
+  private final AtomicIntegerArray lastUsed;
+  private final AtomicInteger clock = new AtomicInteger();
+
+  UsageTracker(int size) {
+    lastUsed = new AtomicIntegerArray(size);
+    for (int i = 0; i < size; i++) {
+      lastUsed.set(i, NEVER);
+    }
+  }
+
+  /** Returns when <code>id</code> was last chosen, -1 if it never was. */
+  public int getLastUsed(int id) {
+    return lastUsed.get(id);
+  }
+
+  /**
+   * Returns the first of <code>ids</code> that has never been chosen, or else the least recently chosen one, leaving
+   * out those with <code>excluded[id] == stamp</code> if <code>excluded</code> is given. Returns {@link #NONE} if
+   * every id is left out.
+   */
+  public int leastRecentlyUsed(IntList ids, int[] excluded, int stamp) {
+    int minLastUsed = Integer.MAX_VALUE;
+    int minLastUsedId = NONE;
+    for (int i = 0; i < ids.size(); i++) {
+      int id = ids.get(i);
+      if (excluded != null && excluded[id] == stamp) {
+        continue;
+      }
+      int imgLastUsed = lastUsed.get(id);
+      if (imgLastUsed == NEVER) {
+        return id;
+      }
+      if (imgLastUsed < minLastUsed) {
+        minLastUsed = imgLastUsed;
+        minLastUsedId = id;
+      }
+    }
+    return minLastUsedId;
+  }
+
+  /** Records that <code>id</code> was chosen now. */
+  public void use(int id) {
+    lastUsed.set(id, clock.getAndIncrement());
+  }
+}
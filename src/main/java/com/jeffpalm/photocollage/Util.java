@@ -1,9 +1,7 @@
 package com.jeffpalm.photocollage;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
@@ -12,6 +10,8 @@ final class Util {
   
   private Util() {}
 
+  private final static Resizer resizer = new Resizer(Resizer.Method.AREA_AVERAGE, null);
+
   /**
    * Resizes the smaller side to <code>size</code>.
    * 
@@ -23,6 +23,11 @@ final class Util {
    * @throws IOException
    */
   public static BufferedImage resize(BufferedImage img, int size) throws IOException {
+    return resize(img, size, resizer);
+  }
+
+  /** Resizes the smaller side to <code>size</code> with <code>resizer</code>. */
+  public static BufferedImage resize(BufferedImage img, int size, Resizer resizer) throws IOException {
     int width = img.getWidth();
     int height = img.getHeight();
     int newWidth, newHeight;
@@ -33,17 +38,7 @@ final class Util {
       newWidth = (int) (width * (1.0 * size / height));
       newHeight = size;
     }
-    BufferedImage dimg = new BufferedImage(newWidth, newHeight, img.getType());
-    Graphics2D g = dimg.createGraphics();
-    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-    g.drawImage(img, 0, 0, newWidth, newHeight, 0, 0, width, height, null);
-    g.dispose();
-    g.setComposite(AlphaComposite.Src);
-    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-    g.setRenderingHint(RenderingHints.KEY_RENDERING,RenderingHints.VALUE_RENDER_QUALITY);
-    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
-    return dimg;
+    return resizer.resize(img, newWidth, newHeight);
   }
 
   public static boolean hasWhiteBorder(BufferedImage src) {
@@ -87,7 +82,14 @@ final class Util {
   }
 
   public static double distance(Color a, Color b) {
-    return Math.sqrt(Math.pow(b.getRed() - a.getRed(), 2)
-        + Math.pow(b.getGreen() - a.getGreen(), 2) + Math.pow(b.getBlue() - a.getBlue(), 2));
+    return Math.sqrt(distanceSquared(a.getRGB(), b.getRGB()));
+  }
+
+  /** Returns the squared Euclidean distance between two packed RGB colors. */
+  public static int distanceSquared(int a, int b) {
+    int dr = ((a >> 16) & 0xff) - ((b >> 16) & 0xff);
+    int dg = ((a >> 8) & 0xff) - ((b >> 8) & 0xff);
+    int db = (a & 0xff) - (b & 0xff);
+    return dr * dr + dg * dg + db * db;
   }
 }
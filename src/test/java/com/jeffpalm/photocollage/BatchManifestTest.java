@@ -0,0 +1,46 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchManifestTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void readsTargetsAndOptions() throws IOException {
+    File manifest = new File(tmp.getRoot(), "batch.txt");
+    File absolute = new File(tmp.getRoot(), "elsewhere/c.jpg").getAbsoluteFile();
+    FileOutputStream out = new FileOutputStream(manifest);
+    try {
+      out.write(("# targets\n" //
+          + "a.jpg\n" //
+          + "\n" //
+          + "  sub/b.jpg   --width 100\t--outdir out  \n" //
+          + absolute + " --nondeterministic\n").getBytes(StandardCharsets.UTF_8));
+    } finally {
+      out.close();
+    }
+
+    List<BatchManifest.Entry> entries = BatchManifest.read(manifest);
+    assertEquals(3, entries.size());
+    assertEquals(new File(tmp.getRoot(), "a.jpg"), entries.get(0).target);
+    assertEquals(Collections.emptyList(), entries.get(0).args);
+    assertEquals(new File(tmp.getRoot(), "sub/b.jpg"), entries.get(1).target);
+    assertEquals(Arrays.asList("--width", "100", "--outdir", "out"), entries.get(1).args);
+    assertEquals(absolute, entries.get(2).target);
+    assertEquals(Arrays.asList("--nondeterministic"), entries.get(2).args);
+  }
+}
@@ -0,0 +1,53 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CandidateTableTest {
+
+  @Test
+  public void matchesWrappedIndex() {
+    Random random = new Random(3);
+    for (int n : new int[] { 1, 50, 3000 }) {
+      int[] colors = new int[n];
+      for (int i = 0; i < n; i++) {
+        colors[i] = i > 0 && random.nextInt(5) == 0 ? colors[random.nextInt(i)] : random.nextInt(0x1000000);
+      }
+      ColorIndex linear = new LinearColorIndex(colors);
+      KNearest heap = new KNearest(1);
+      ColorIndex table = new CandidateTable(new KdTreeColorIndex(colors), 20);
+      for (int q = 0; q < 500; q++) {
+        // Queries near a few colors, so cubes are reused.
+        int rgb = q % 3 == 0 ? random.nextInt(0x1000000) : colors[random.nextInt(Math.min(n, 10))] ^ random.nextInt(8);
+        assertEquals(linear.nearest(rgb), table.nearest(rgb));
+
+        int maxDistanceSquared = random.nextInt(30) * random.nextInt(30);
+        IntList want = new IntList(), got = new IntList();
+        linear.withinDistance(rgb, maxDistanceSquared, want);
+        table.withinDistance(rgb, maxDistanceSquared, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+
+        int k = 1 + random.nextInt(10);
+        want.clear();
+        got.clear();
+        linear.nearest(rgb, k, maxDistanceSquared, heap, want);
+        table.nearest(rgb, k, maxDistanceSquared, heap, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+      }
+    }
+  }
+
+  @Test
+  public void describesBins() {
+    ColorIndex table = new CandidateTable(new LinearColorIndex(new int[] { 0x000000, 0x010101, 0xffffff }), 10);
+    IntList out = new IntList();
+    table.withinDistance(0x020202, 100, out);
+    assertEquals(2, out.size());
+    assertTrue(table.toString(), table.toString().contains("/*bins=*/1, /*ids=*/2,"));
+  }
+}
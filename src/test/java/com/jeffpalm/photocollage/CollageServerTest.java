@@ -0,0 +1,288 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CollageServerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final AtomicInteger renders = new AtomicInteger();
+  private CollageServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    // Renders of "block" wait to be released, so the next jobs queue up behind them.
+    server = new CollageServer(new CollageServer.Renderer() {
+      @Override
+      public List<File> render(File target, List<String> args, AtomicBoolean cancelled) throws IOException,
+          InterruptedException {
+        renders.incrementAndGet();
+        if (target.getName().equals("block")) {
+          started.countDown();
+          while (!release.await(10, TimeUnit.MILLISECONDS)) {
+            if (cancelled.get()) {
+              throw new CancellationException();
+            }
+          }
+        }
+        if (target.getName().equals("bad")) {
+          throw new IllegalArgumentException("Unknown option for bad: " + args.get(0));
+        }
+        return Collections.singletonList(new File(target.getName() + "-out.png"));
+      }
+    }, 0, 1);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void runsQueuedJobs() throws Exception {
+    String res = request("POST", "/jobs", "block --width 100");
+    assertTrue(res, res.startsWith("201 {\"id\": 1, \"target\": "));
+    assertTrue(res, res.contains("\"args\": [\"--width\", \"100\"]"));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    request("POST", "/jobs", "a");
+    request("POST", "/jobs", "bad --frob");
+    assertTrue(request("GET", "/jobs/1", null).contains("\"state\": \"running\""));
+    assertTrue(request("GET", "/jobs/2", null).contains("\"state\": \"queued\""));
+
+    release.countDown();
+    await(3, CollageServer.State.FAILED);
+    await(2, CollageServer.State.DONE);
+    res = request("GET", "/jobs/2", null);
+    assertTrue(res, res.contains("\"outputs\": [\"a-out.png\"]"));
+    res = request("GET", "/jobs", null);
+    assertTrue(res, res.startsWith("200 [\n  {\"id\": 1,"));
+    assertTrue(res, res.contains("\"error\": \"java.lang.IllegalArgumentException: Unknown option for bad: --frob\""));
+    assertEquals(3, renders.get());
+  }
+
+  @Test
+  public void cancelsJobs() throws Exception {
+    request("POST", "/jobs", "block");
+    request("POST", "/jobs", "a");
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    assertTrue(request("DELETE", "/jobs/2", null).contains("\"state\": \"cancelled\""));
+    // Stopped while it waits.
+    assertTrue(request("DELETE", "/jobs/1", null).contains("\"state\": \"cancelled\""));
+    await(1, CollageServer.State.CANCELLED);
+    assertFalse(server.getJob(1).cancel());
+
+    request("POST", "/jobs", "b");
+    await(3, CollageServer.State.DONE);
+    assertEquals(CollageServer.State.CANCELLED, server.getJob(2).getState());
+    assertEquals(2, renders.get());
+  }
+
+  @Test
+  public void cancelsRendersWithoutBreakingTheTileAtlas() throws Exception {
+    ImageClassifier classifier = new ImageClassifier(new ImageClassifier.Config(),
+        new ColorCacheStore(new File(tmp.getRoot(), "colors")));
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < 2; i++) {
+      images.add(new ClassifiedImage(TestUtils.getTestImageFiles()[i], classifier));
+    }
+    final Library library = new Library(images, ColorIndex.Type.KD_TREE);
+    final TileAtlas atlas = new TileAtlas(tmp.newFolder("atlas"), 6, 4, new ThumbnailStore(tmp.newFolder("thumbs")));
+    // The first tile drawn waits until its job is cancelled.
+    final CountDownLatch drawing = new CountDownLatch(1);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final AtomicBoolean first = new AtomicBoolean(true);
+    final TileSource tiles = new TileSource() {
+      @Override
+      public Tile get(ClassifiedImage image, int width, int height) throws IOException {
+        if (first.compareAndSet(true, false)) {
+          drawing.countDown();
+          try {
+            cancelled.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        return atlas.get(image, width, height);
+      }
+
+      @Override
+      public void prepare(Collection<ClassifiedImage> images, int width, int height, ForkJoinPool pool)
+          throws IOException, InterruptedException {
+        atlas.prepare(images, width, height, pool);
+      }
+    };
+    final PhotoCollageCreator creator = PhotoCollageCreator.newBuilder().setResizedWidth(8).setNumCols(2)
+        .setSmallImageWidth(6).setSmallImageHeight(4).setStreamingOutput(true).setOutDir(tmp.newFolder("out"))
+        .build();
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    CollageServer realServer = new CollageServer(new CollageServer.Renderer() {
+      @Override
+      public List<File> render(File target, List<String> args, AtomicBoolean cancelled) throws IOException,
+          InterruptedException {
+        return creator.createCollage(target, library, tiles, pool, cancelled);
+      }
+    }, 0, 1);
+    try {
+      File a = new File(tmp.getRoot(), "a.jpg");
+      File b = new File(tmp.getRoot(), "b.jpg");
+      Files.copy(TestUtils.getTestImageFiles()[0].toPath(), a.toPath());
+      Files.copy(TestUtils.getTestImageFiles()[0].toPath(), b.toPath());
+      CollageServer.Job job = realServer.submit(a, Collections.<String> emptyList());
+      assertTrue(drawing.await(10, TimeUnit.SECONDS));
+      assertTrue(job.cancel());
+      cancelled.countDown();
+
+      // The next job draws from the same atlas once the cancelled one has stopped.
+      CollageServer.Job next = realServer.submit(b, Collections.<String> emptyList());
+      for (int i = 0; i < 1000 && next.getState() != CollageServer.State.DONE; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(next.toJson(), CollageServer.State.DONE, next.getState());
+      assertEquals(CollageServer.State.CANCELLED, job.getState());
+      for (File outFile : creator.getOutputFiles(a)) {
+        assertFalse(outFile + " is left", outFile.exists());
+      }
+      for (File outFile : creator.getOutputFiles(b)) {
+        assertEquals(4 * 6, ImageIO.read(outFile).getWidth());
+      }
+    } finally {
+      realServer.stop();
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void rejectsBadRequests() throws Exception {
+    assertTrue(request("GET", "/jobs/7", null).startsWith("404 "));
+    assertTrue(request("GET", "/jobs/x", null).startsWith("404 "));
+    assertTrue(request("POST", "/jobs", " \n").startsWith("400 "));
+    assertTrue(request("PUT", "/jobs", "a").startsWith("405 "));
+  }
+
+  @Test
+  public void refusesRequestsFromWebPages() throws Exception {
+    assertTrue(send("POST", "/jobs", "a --outdir /").startsWith("403 "));
+    assertTrue(send("DELETE", "/jobs/1", null).startsWith("403 "));
+    assertTrue(send("POST", "/jobs", "a", "X-Requested-With: XMLHttpRequest", "Origin: http://example.com")
+        .startsWith("403 "));
+    assertTrue(send("GET", "/jobs", null, "Origin: http://example.com").startsWith("403 "));
+    assertEquals(null, server.getJob(1));
+    assertEquals(0, renders.get());
+  }
+
+  @Test
+  public void forgetsTheOldestEndedJobs() throws Exception {
+    for (int i = 0; i < CollageServer.RETAINED_JOBS + 5; i++) {
+      server.submit(new File("a"), Collections.<String> emptyList());
+    }
+    await(CollageServer.RETAINED_JOBS + 5, CollageServer.State.DONE);
+    server.submit(new File("a"), Collections.<String> emptyList());
+    assertEquals(null, server.getJob(5));
+    assertEquals(CollageServer.State.DONE, server.getJob(6).getState());
+    assertTrue(request("GET", "/jobs", null).startsWith("200 [\n  {\"id\": 6,"));
+  }
+
+  @Test
+  public void quotesControlCharacters() {
+    assertEquals("\"a\\\"b\\\\c\\n\\r\\t\\u0000\\u001b\u00e9\"", CollageServer.quote("a\"b\\c\n\r\t\0\u001b\u00e9"));
+  }
+
+  /** Waits for the job to end, which it should in the state given. */
+  private void await(int id, CollageServer.State state) throws InterruptedException {
+    CollageServer.Job job = server.getJob(id);
+    for (int i = 0; i < 1000 && job.getState() != state; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(state, job.getState());
+  }
+
+  /** Returns the status and body of a request, as made by a client that isn't a web page. */
+  private String request(String method, String path, String body) throws IOException {
+    URL url = new URL("http://localhost:" + server.getPort() + path);
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod(method);
+    conn.setRequestProperty("X-Requested-With", "CollageServerTest");
+    if (body != null) {
+      conn.setDoOutput(true);
+      OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      } finally {
+        out.close();
+      }
+    }
+    int status = conn.getResponseCode();
+    InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0;) {
+      res.write(buf, 0, n);
+    }
+    in.close();
+    return status + " " + new String(res.toByteArray(), StandardCharsets.UTF_8).trim();
+  }
+
+  /**
+   * Returns the status line of a request with only the headers given, over a socket since {@link HttpURLConnection}
+   * won't send an <code>Origin</code>.
+   */
+  private String send(String method, String path, String body, String... headers) throws IOException {
+    byte[] content = (body != null ? body : "").getBytes(StandardCharsets.UTF_8);
+    StringBuilder req = new StringBuilder();
+    req.append(method).append(" ").append(path).append(" HTTP/1.1\r\nHost: localhost\r\n");
+    for (String header : headers) {
+      req.append(header).append("\r\n");
+    }
+    req.append("Content-Length: ").append(content.length).append("\r\nConnection: close\r\n\r\n");
+    Socket socket = new Socket("localhost", server.getPort());
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(req.toString().getBytes(StandardCharsets.UTF_8));
+      out.write(content);
+      out.flush();
+      String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+          .readLine();
+      return statusLine.substring("HTTP/1.1 ".length());
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ColorCacheStoreTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File base;
+  private File image;
+
+  @Before
+  public void setUp() throws IOException {
+    base = new File(tmp.getRoot(), "cache");
+    image = newImage("a.jpg", 10);
+  }
+
+  private File newImage(String name, int size) throws IOException {
+    File f = new File(tmp.getRoot(), name);
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(new byte[size]);
+    out.close();
+    return f;
+  }
+
+  private static int[] colors(int c) {
+    return new int[] { c, c + 1, c + 2, c + 3, c + 4 };
+  }
+
+  @Test
+  public void persistsAcrossStores() throws IOException {
+    ColorCacheStore store = new ColorCacheStore(base);
+    assertNull(store.get(image));
+    store.put(image, colors(1));
+    assertArrayEquals(colors(1), store.get(image));
+    store.close();
+
+    ColorCacheStore reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(1), reopened.get(image));
+    reopened.close();
+  }
+
+  @Test
+  public void ignoresChangedFiles() throws IOException {
+    ColorCacheStore store = new ColorCacheStore(base);
+    store.put(image, colors(1));
+    store.flush();
+    newImage("a.jpg", 20);
+    assertNull(store.get(image));
+    store.close();
+  }
+
+  @Test
+  public void missesColorsClassifiedWithLooserTolerance() throws IOException {
+    ColorCacheStore store = new ColorCacheStore(base);
+    store.put(image, colors(1), 4);
+    store.putContentHash(image, image.length(), image.lastModified(), "0123456789abcdef0123456789abcdef01234567");
+    store.close();
+
+    ColorCacheStore reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(1), reopened.get(image, 4));
+    assertArrayEquals(colors(1), reopened.get(image, 8));
+    assertNull(reopened.get(image, 0));
+    reopened.put(image, colors(2), 0);
+    assertArrayEquals(colors(2), reopened.get(image, 0));
+    assertEquals("0123456789abcdef0123456789abcdef01234567", reopened.getContentHash(image));
+    reopened.close();
+  }
+
+  @Test
+  public void sharesEntriesBetweenStores() throws IOException {
+    File other = newImage("b.jpg", 10);
+    ColorCacheStore a = new ColorCacheStore(base, 0);
+    ColorCacheStore b = new ColorCacheStore(base, 0);
+    a.put(image, colors(1));
+    a.flush();
+    b.put(other, colors(2));
+    b.flush();
+    assertArrayEquals(colors(2), a.get(other));
+    assertArrayEquals(colors(1), b.get(image));
+
+    a.compact();
+    b.put(image, colors(3));
+    b.flush();
+    assertArrayEquals(colors(3), a.get(image));
+    assertArrayEquals(colors(2), a.get(other));
+    a.close();
+    b.close();
+
+    ColorCacheStore reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(3), reopened.get(image));
+    assertArrayEquals(colors(2), reopened.get(other));
+    reopened.close();
+  }
+
+  @Test
+  public void noticesCompactionsThatKeepTheJournalLength() throws IOException {
+    ColorCacheStore a = new ColorCacheStore(base, 0);
+    ColorCacheStore b = new ColorCacheStore(base, 0);
+    a.put(image, colors(1));
+    a.flush();
+    assertArrayEquals(colors(1), b.get(image));
+    long length = new File(base.getPath() + ".journal").length();
+
+    // The journal is emptied, then gets a record of the same size.
+    a.compact();
+    a.put(image, colors(3));
+    a.flush();
+    assertEquals(length, new File(base.getPath() + ".journal").length());
+    assertArrayEquals(colors(3), b.get(image));
+    a.close();
+    b.close();
+  }
+
+  @Test
+  public void checksForReplacedEntriesOncePerInterval() throws IOException {
+    ColorCacheStore a = new ColorCacheStore(base, 0);
+    ColorCacheStore b = new ColorCacheStore(base, 3600 * 1000);
+    a.put(image, colors(1));
+    a.flush();
+    // A miss always checks.
+    assertArrayEquals(colors(1), b.get(image));
+    a.put(image, colors(3));
+    a.flush();
+    assertArrayEquals(colors(1), b.get(image));
+    a.close();
+    b.close();
+  }
+
+  @Test
+  public void dropsTornRecords() throws IOException {
+    ColorCacheStore store = new ColorCacheStore(base);
+    store.put(image, colors(1));
+    store.close();
+    RandomAccessFile journal = new RandomAccessFile(new File(base.getPath() + ".journal"), "rw");
+    journal.seek(journal.length());
+    journal.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+    journal.close();
+
+    File other = newImage("b.jpg", 10);
+    ColorCacheStore reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(1), reopened.get(image));
+    reopened.put(other, colors(2));
+    reopened.close();
+
+    reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(1), reopened.get(image));
+    assertArrayEquals(colors(2), reopened.get(other));
+    reopened.close();
+  }
+
+  @Test
+  public void replacesUnreadableSnapshots() throws IOException {
+    // An older format, and garbage.
+    for (byte[] contents : new byte[][] { { 'P', 'C', 'C', '2', 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 16 },
+        { 1, 2, 3 } }) {
+      writeFile(new File(base.getPath() + ".db"), contents);
+      writeFile(new File(base.getPath() + ".journal"), new byte[] { 'P', 'C', 'J', '2', 0, 0, 0, 0, 0, 0, 0, 1 });
+      ColorCacheStore store = new ColorCacheStore(base);
+      assertNull(store.get(image));
+      store.put(image, colors(1));
+      store.flush();
+      store.compact();
+      store.close();
+
+      ColorCacheStore reopened = new ColorCacheStore(base);
+      assertArrayEquals(colors(1), reopened.get(image));
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void keepsTheJournalOfAMissingSnapshot() throws IOException {
+    ColorCacheStore store = new ColorCacheStore(base);
+    store.put(image, colors(1));
+    store.compact();
+    store.put(newImage("b.jpg", 10), colors(2));
+    store.close();
+    assertTrue(new File(base.getPath() + ".db").delete());
+
+    ColorCacheStore reopened = new ColorCacheStore(base);
+    assertNull(reopened.get(image));
+    File other = newImage("c.jpg", 10);
+    reopened.put(other, colors(3));
+    reopened.close();
+
+    reopened = new ColorCacheStore(base);
+    assertArrayEquals(colors(2), reopened.get(new File(tmp.getRoot(), "b.jpg")));
+    assertArrayEquals(colors(3), reopened.get(other));
+    reopened.close();
+  }
+
+  private static void writeFile(File file, byte[] contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileDiscoveryTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File library;
+
+  @Before
+  public void setUp() throws IOException {
+    library = tmp.newFolder("library");
+    for (int i = 0; i < 6; i++) {
+      File dir = new File(library, "d" + i);
+      for (int j = 0; j < 4; j++) {
+        File sub = new File(dir, "s" + j);
+        sub.mkdirs();
+        for (int k = 0; k < 5; k++) {
+          new File(sub, k + ".jpg").createNewFile();
+        }
+        new File(sub, "notes.txt").createNewFile();
+      }
+      new File(dir, "top.png").createNewFile();
+    }
+  }
+
+  /** The breadth-first walk FileFinder used to do. */
+  private static List<File> walk(File root) {
+    List<File> res = new ArrayList<File>();
+    List<File> q = new LinkedList<File>(Collections.singletonList(root));
+    while (!q.isEmpty()) {
+      for (File f : q.remove(0).listFiles()) {
+        if (f.isDirectory()) {
+          q.add(f);
+        } else if (FileFinder.isImage(f)) {
+          res.add(f);
+        }
+      }
+    }
+    return res;
+  }
+
+  private FileDiscovery discover(int parallelism, int capacity) {
+    return FileDiscovery.start(Collections.<File> emptyList(), Collections.singletonList(library), parallelism,
+        capacity);
+  }
+
+  @Test
+  public void streamsEveryImage() throws Exception {
+    // A queue much smaller than the library makes the walk wait for the consumer.
+    FileDiscovery discovery = discover(4, 3);
+    Set<File> taken = new HashSet<File>();
+    File file;
+    while ((file = discovery.take()) != null) {
+      assertTrue(taken.add(file));
+    }
+    assertEquals(6 * (4 * 5 + 1), taken.size());
+    assertEquals(new HashSet<File>(walk(library)), taken);
+    assertNull(discovery.take());
+    discovery.close();
+  }
+
+  @Test
+  public void ordersLikeFileFinder() throws Exception {
+    FileDiscovery discovery = discover(4, 8);
+    assertEquals(walk(library), discovery.getFiles());
+    discovery.close();
+  }
+
+  @Test
+  public void stopsWhenClosed() throws Exception {
+    FileDiscovery discovery = discover(2, 1);
+    assertNotNull(discovery.take());
+    discovery.close();
+    assertNull(discovery.take());
+  }
+}
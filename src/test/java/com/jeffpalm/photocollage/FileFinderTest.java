@@ -12,13 +12,13 @@ import org.junit.Test;
 public class FileFinderTest {
 
   @Test
-  public void testEmpty() {
+  public void testEmpty() throws InterruptedException {
     FileFinder finder = new FileFinder();
     assertFalse(finder.findFiles().iterator().hasNext());
   }
 
   @Test
-  public void testFindFiles() {
+  public void testFindFiles() throws InterruptedException {
     File[] paths = TestUtils.getTestImageFiles();
     
     FileFinder finder = new FileFinder();
@@ -24,4 +24,31 @@ public class ImageClassifierTest {
 
     assertEquals(new Color(154, 128, 122), c.classify(f, ImageSegment.ALL));
   }
+
+  @Test
+  public void doClassifyAll() throws IOException {
+    for (File f : new File[] { TestUtils.getTestImageFiles()[0], TestUtils.getTestImageFiles()[1] }) {
+      int[] colors = c.doClassifyAll(f);
+      for (ImageSegment s : ImageSegment.values()) {
+        assertEquals(f + " " + s, c.doClassify(f, s).getRGB() & 0xffffff, colors[s.ordinal()]);
+      }
+    }
+  }
+
+  @Test
+  public void colorsWithinTolerance() throws IOException {
+    ImageClassifier.Config config = new ImageClassifier.Config();
+    config.colorTolerance = 4;
+    ImageClassifier tolerant = new ImageClassifier(config);
+    for (File f : new File[] { TestUtils.getTestImageFiles()[0], TestUtils.getTestImageFiles()[1] }) {
+      int[] expected = c.doClassifyAll(f);
+      int[] colors = tolerant.doClassifyAll(f);
+      for (ImageSegment s : ImageSegment.values()) {
+        for (int shift = 0; shift < 24; shift += 8) {
+          int difference = ((expected[s.ordinal()] >> shift) & 0xff) - ((colors[s.ordinal()] >> shift) & 0xff);
+          assertTrue(f + " " + s, Math.abs(difference) <= config.colorTolerance);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,50 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageDecoderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void subsamplesToSize() throws Exception {
+    File file = tmp.newFile("big.jpg");
+    ImageIO.write(new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB), "jpg", file);
+    BufferedImage image = ImageDecoder.decode(file, 25);
+    // Every 9th pixel keeps at least 4 * 25 rows.
+    assertEquals(134, image.getWidth());
+    assertEquals(100, image.getHeight());
+    assertEquals(1200, ImageDecoder.decode(file, 0).getWidth());
+    assertEquals(1200, ImageDecoder.decode(file, 1000).getWidth());
+  }
+
+  @Test
+  public void usesExifThumbnails() throws Exception {
+    File file = TestUtils.getTestImageFiles()[0];
+    assertEquals(612, ImageDecoder.decodeForColors(file, 0).getWidth());
+    assertEquals(160, ImageDecoder.decodeForColors(file, 4).getWidth());
+    // The 160x160 thumbnail has too few pixels for 2 levels, so the image is subsampled instead.
+    assertEquals(204, ImageDecoder.decodeForColors(file, 2).getWidth());
+  }
+
+  @Test
+  public void ignoresBrokenExif() throws Exception {
+    assertNull(ImageDecoder.parseExifThumbnail(new byte[0]));
+    assertNull(ImageDecoder.parseExifThumbnail("Exif\0\0MM\0*\0\0\0\u0008".getBytes("ISO-8859-1")));
+    byte[] garbage = new byte[64];
+    Arrays.fill(garbage, (byte) 0x7f);
+    System.arraycopy("Exif\0\0II".getBytes("ISO-8859-1"), 0, garbage, 0, 8);
+    assertNull(ImageDecoder.parseExifThumbnail(garbage));
+  }
+}
@@ -0,0 +1,87 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class KdTreeColorIndexTest {
+
+  private static int[] randomColors(Random random, int n) {
+    int[] colors = new int[n];
+    for (int i = 0; i < n; i++) {
+      // Repeat some colors so ties on distance are exercised.
+      colors[i] = i > 0 && random.nextInt(5) == 0 ? colors[random.nextInt(i)] : random.nextInt(0x1000000);
+    }
+    return colors;
+  }
+
+  @Test
+  public void matchesLinearIndex() {
+    Random random = new Random(1);
+    for (int n : new int[] { 1, 7, 100, 2000 }) {
+      int[] colors = randomColors(random, n);
+      ColorIndex linear = new LinearColorIndex(colors);
+      KNearest heap = new KNearest(1);
+      ColorIndex kdTree = new KdTreeColorIndex(colors);
+      for (int q = 0; q < 200; q++) {
+        int rgb = q % 2 == 0 ? random.nextInt(0x1000000) : colors[random.nextInt(n)];
+        assertEquals(linear.nearest(rgb), kdTree.nearest(rgb));
+
+        int maxDistanceSquared = random.nextInt(100) * random.nextInt(100);
+        IntList want = new IntList(), got = new IntList();
+        linear.withinDistance(rgb, maxDistanceSquared, want);
+        kdTree.withinDistance(rgb, maxDistanceSquared, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+
+        int k = 1 + random.nextInt(20);
+        want.clear();
+        got.clear();
+        linear.nearest(rgb, k, heap, want);
+        kdTree.nearest(rgb, k, heap, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+
+        want.clear();
+        got.clear();
+        linear.nearest(rgb, k, maxDistanceSquared, heap, want);
+        kdTree.nearest(rgb, k, maxDistanceSquared, heap, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+      }
+    }
+  }
+
+  @Test
+  public void nearestAndWithinDistanceIsTheUnion() {
+    Random random = new Random(4);
+    int[] colors = randomColors(random, 500);
+    ColorIndex linear = new LinearColorIndex(colors);
+    KNearest heap = new KNearest(1);
+    for (int q = 0; q < 200; q++) {
+      int rgb = random.nextInt(0x1000000);
+      int k = 1 + random.nextInt(20);
+      int maxDistanceSquared = random.nextInt(100) * random.nextInt(100);
+      IntList nearest = new IntList(), within = new IntList(), got = new IntList();
+      linear.nearest(rgb, k, heap, nearest);
+      linear.withinDistance(rgb, maxDistanceSquared, within);
+      SortedSet<Integer> want = new TreeSet<Integer>();
+      for (int id : nearest.toArray()) {
+        want.add(id);
+      }
+      for (int id : within.toArray()) {
+        want.add(id);
+      }
+      linear.nearest(rgb, k, maxDistanceSquared, heap, got);
+      assertEquals(want.toString(), Arrays.toString(got.toArray()));
+    }
+  }
+
+  @Test
+  public void empty() {
+    assertEquals(-1, new KdTreeColorIndex(new int[0]).nearest(0));
+  }
+}
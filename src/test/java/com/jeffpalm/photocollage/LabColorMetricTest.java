@@ -0,0 +1,70 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LabColorMetricTest {
+
+  private static void assertLab(double l, double a, double b, int rgb) {
+    double[] lab = LabColorMetric.toLab(rgb);
+    assertEquals(l, lab[0], 0.05);
+    assertEquals(a, lab[1], 0.05);
+    assertEquals(b, lab[2], 0.05);
+  }
+
+  @Test
+  public void convertsSrgbToLab() {
+    assertLab(100, 0, 0, 0xffffff);
+    assertLab(0, 0, 0, 0x000000);
+    assertLab(53.24, 80.09, 67.20, 0xff0000);
+    assertLab(87.73, -86.18, 83.18, 0x00ff00);
+    assertLab(32.30, 79.19, -107.86, 0x0000ff);
+  }
+
+  @Test
+  public void packsRoundedLab() {
+    ColorMetric metric = new LabColorMetric(false);
+    assertEquals((100 << 16) | (128 << 8) | 128, metric.toPoint(0xffffff));
+    assertEquals((53 << 16) | (208 << 8) | 195, metric.toPoint(0xff0000));
+    assertEquals(metric.toPoint(0x123456), metric.toTargetPoint(0x123456));
+  }
+
+  @Test
+  public void cie76IsEuclideanInLab() {
+    ColorMetric metric = ColorMetric.Type.CIE76.newMetric();
+    assertTrue(metric.isEuclidean());
+    int red = metric.toPoint(0xff0000);
+    int white = metric.toPoint(0xffffff);
+    assertEquals(47 * 47 + 80 * 80 + 67 * 67, metric.distanceSquared(red, white));
+  }
+
+  @Test
+  public void deltaE2000MatchesSharmaData() {
+    assertEquals(2.0425, LabColorMetric.deltaE2000(50, 2.6772, -79.7751, 50, 0, -82.7485), 1e-4);
+    assertEquals(2.3669, LabColorMetric.deltaE2000(50, 0, 0, 50, -1, 2), 1e-4);
+    assertEquals(27.1492, LabColorMetric.deltaE2000(50, 2.5, 0, 73, 25, -18), 1e-4);
+    assertEquals(7.1792, LabColorMetric.deltaE2000(50, 2.49, -0.001, 50, -2.49, 0.0009), 1e-4);
+    assertEquals(0, LabColorMetric.deltaE2000(50, 10, 10, 50, 10, 10), 1e-9);
+  }
+
+  @Test
+  public void ciede2000IsFoundWithinIndexDistance() {
+    ColorMetric metric = ColorMetric.Type.CIEDE2000.newMetric();
+    assertFalse(metric.isEuclidean());
+    int a = metric.toPoint(0x808080);
+    int b = metric.toPoint(0x8a7a80);
+    int d = metric.distanceSquared(a, b);
+    assertTrue(d > 0);
+    assertTrue(Util.distanceSquared(a, b) < metric.getIndexDistanceSquared(d + 1));
+  }
+
+  @Test
+  public void rgbTonesDownTargetReds() {
+    ColorMetric metric = ColorMetric.Type.RGB.newMetric();
+    assertEquals(0xff0000, metric.toPoint(0xffff0000));
+    assertEquals(0xcd1020, metric.toTargetPoint(0xff1020));
+    assertEquals(0x641020, metric.toTargetPoint(0x641020));
+    assertEquals(3 * 255 * 255, metric.distanceSquared(0x000000, 0xffffff));
+  }
+}
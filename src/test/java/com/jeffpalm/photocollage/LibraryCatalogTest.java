@@ -0,0 +1,112 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LibraryCatalogTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File library;
+  private File catalogFile;
+  private FileFinder finder;
+
+  @Before
+  public void setUp() throws IOException {
+    library = tmp.newFolder("library");
+    catalogFile = new File(tmp.getRoot(), "catalog");
+    write(new File(library, "a.jpg"), 10);
+    write(new File(library, "notes.txt"), 10);
+    write(new File(library, "2024/b.jpg"), 20);
+    write(new File(library, "2024/c.png"), 30);
+    write(new File(library, "2024/06/d.jpg"), 40);
+    finder = new FileFinder();
+    finder.addFile(library);
+  }
+
+  private static void write(File file, int size) throws IOException {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static List<File> sorted(List<File> files) {
+    List<File> res = new ArrayList<File>(files);
+    Collections.sort(res);
+    return res;
+  }
+
+  private LibraryCatalog.Changes reopen() throws IOException {
+    return new LibraryCatalog(catalogFile).update(finder);
+  }
+
+  @Test
+  public void findsWhatFileFinderFinds() throws Exception {
+    LibraryCatalog catalog = new LibraryCatalog(catalogFile);
+    LibraryCatalog.Changes changes = catalog.update(finder);
+    assertEquals(new ArrayList<File>(finder.findFiles()), changes.getFiles());
+    assertEquals(4, changes.getAdded().size());
+    catalog.save();
+
+    changes = reopen();
+    assertEquals(new ArrayList<File>(finder.findFiles()), changes.getFiles());
+    assertTrue(changes.toString(), changes.isEmpty());
+  }
+
+  @Test
+  public void findsChanges() throws Exception {
+    LibraryCatalog catalog = new LibraryCatalog(catalogFile);
+    catalog.update(finder);
+    catalog.save();
+
+    write(new File(library, "2024/b.jpg"), 21);
+    write(new File(library, "2024/06/e.jpg"), 50);
+    assertTrue(new File(library, "a.jpg").delete());
+    LibraryCatalog.Changes changes = reopen();
+    assertEquals(Arrays.asList(new File(library, "2024/06/e.jpg")), changes.getAdded());
+    assertEquals(Arrays.asList(new File(library, "2024/b.jpg")), changes.getChanged());
+    assertEquals(Arrays.asList(new File(library, "a.jpg")), changes.getRemoved());
+    assertEquals(sorted(new ArrayList<File>(finder.findFiles())), sorted(changes.getFiles()));
+  }
+
+  @Test
+  public void removesDeletedDirectories() throws Exception {
+    LibraryCatalog catalog = new LibraryCatalog(catalogFile);
+    catalog.update(finder);
+    TestUtils.deleteRecursively(new File(library, "2024"));
+    LibraryCatalog.Changes changes = catalog.update(finder);
+    assertEquals(Arrays.asList(new File(library, "a.jpg")), changes.getFiles());
+    assertEquals(sorted(Arrays.asList(new File(library, "2024/b.jpg"), new File(library, "2024/c.png"),
+        new File(library, "2024/06/d.jpg"))), sorted(changes.getRemoved()));
+  }
+
+  @Test
+  public void checksOnlyDirtyDirectories() throws Exception {
+    LibraryCatalog catalog = new LibraryCatalog(catalogFile);
+    catalog.update(finder);
+    write(new File(library, "2024/b.jpg"), 21);
+    write(new File(library, "2024/06/e.jpg"), 50);
+    LibraryCatalog.Changes changes = catalog.update(finder,
+        Collections.singleton(new File(library, "2024/06")));
+    assertEquals(Arrays.asList(new File(library, "2024/06/e.jpg")), changes.getAdded());
+    assertTrue(changes.getChanged().isEmpty());
+    assertEquals(Arrays.asList(new File(library, "2024/b.jpg")), catalog.update(finder).getChanged());
+  }
+}
@@ -0,0 +1,91 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LibraryPipelineTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ImageClassifier classifier;
+  private ThumbnailStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    ColorCacheStore colorCache = new ColorCacheStore(new File(tmp.getRoot(), "colors"));
+    classifier = new ImageClassifier(new ImageClassifier.Config(), colorCache);
+    store = new ThumbnailStore(tmp.newFolder("thumbnails"));
+  }
+
+  private File newImage(String name, int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, rgb);
+      }
+    }
+    File file = new File(tmp.getRoot(), name);
+    ImageIO.write(image, "png", file);
+    return file;
+  }
+
+  @Test
+  public void classifiesAndMakesEveryThumbnailSize() throws Exception {
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; i < 30; i++) {
+      files.add(newImage(i + ".png", i * 0x080808));
+    }
+    File broken = tmp.newFile("broken.png");
+    files.add(broken);
+
+    LibraryPipeline pipeline = new LibraryPipeline(classifier, true, store, 2, 3).addThumbnailSize(6, 6)
+        .addThumbnailSize(10, 8);
+    List<ParallelClassifier.Failure> failures = pipeline.run(files);
+    assertEquals(1, failures.size());
+    assertEquals(broken, failures.get(0).image.getFile());
+    for (int i = 0; i < 30; i++) {
+      File file = files.get(i);
+      assertTrue(classifier.isClassified(file));
+      assertEquals(i * 0x080808, classifier.classify(file, ImageSegment.TOP).getRGB() & 0xffffff);
+      assertTrue(store.getThumbnailFile(file, 6, 6).isFile());
+      BufferedImage thumbnail = ImageIO.read(store.getThumbnailFile(file, 10, 8));
+      assertEquals(10, thumbnail.getWidth());
+      assertEquals(8, thumbnail.getHeight());
+    }
+  }
+
+  @Test
+  public void onlyDoesWhatsMissing() throws Exception {
+    File a = newImage("a.png", 0x102030);
+    File b = newImage("b.png", 0x405060);
+    new LibraryPipeline(classifier, true, store, 1, 1).run(Collections.singletonList(a));
+    File thumbnail = store.getThumbnailFile(a, 6, 6);
+    assertFalse(thumbnail.exists());
+
+    new LibraryPipeline(classifier, true, store, 1, 1).addThumbnailSize(6, 6).run(Collections.singletonList(a));
+    assertTrue(thumbnail.isFile());
+    thumbnail.setLastModified(0);
+
+    List<File> both = new ArrayList<File>();
+    both.add(a);
+    both.add(b);
+    new LibraryPipeline(classifier, true, store, 1, 1).addThumbnailSize(6, 6).run(both);
+    assertEquals(0, thumbnail.lastModified());
+    assertTrue(classifier.isClassified(b));
+    assertTrue(store.getThumbnailFile(b, 6, 6).isFile());
+  }
+}
@@ -0,0 +1,62 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+
+  @Before
+  public void setUp() {
+    Metrics.reset();
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.setEnabled(false);
+    Metrics.reset();
+  }
+
+  @Test
+  public void recordsNothingWhenDisabled() {
+    Metrics.setEnabled(false);
+    Metrics.counter("c").increment();
+    Metrics.histogram("h").record(5);
+    Metrics.Timer timer = Metrics.timer("t");
+    long start = timer.start();
+    assertEquals(0, start);
+    timer.stop(start);
+    assertEquals(0, Metrics.counter("c").get());
+    assertEquals(0, Metrics.histogram("h").getCount());
+    assertEquals(0, timer.getNanos().getCount());
+  }
+
+  @Test
+  public void histogramPercentilesAreBucketTops() {
+    Metrics.setEnabled(true);
+    Metrics.Histogram h = Metrics.histogram("h");
+    for (int i = 1; i <= 100; i++) {
+      h.record(i);
+    }
+    assertEquals(100, h.getCount());
+    assertEquals(5050, h.getSum());
+    assertEquals(100, h.getMax());
+    // The 50th value is 50, in the bucket [32, 64).
+    assertEquals(63, h.getPercentile(50));
+    assertEquals(100, h.getPercentile(99));
+    assertSame(h, Metrics.histogram("h"));
+  }
+
+  @Test
+  public void dumpsJson() {
+    Metrics.setEnabled(true);
+    Metrics.counter("classify.cached").add(3);
+    Metrics.timer("match").getNanos().record(2000);
+    String json = Metrics.toJson();
+    assertTrue(json, json.contains("\"classify.cached\": 3"));
+    assertTrue(json, json.contains("\"match\": {\"count\": 1, \"total\": 2.0,"));
+    assertTrue(json, json.startsWith("{\n  \"counters\": {"));
+  }
+}
@@ -0,0 +1,35 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class OccupancyGridTest {
+
+  @Test
+  public void marksImagesWithinRadius() {
+    OccupancyGrid grid = new OccupancyGrid(6, 5, 1);
+    grid.place(0, 0, 1);
+    grid.place(2, 2, 2);
+    grid.place(3, 3, 3);
+    grid.place(5, 4, 4);
+    assertEquals(2, grid.get(2, 2));
+    assertEquals(-1, grid.get(1, 1));
+
+    int[] stamps = new int[5];
+    grid.markNearby(1, 1, stamps, 9);
+    assertArrayEquals(new int[] { 0, 9, 9, 0, 0 }, stamps);
+    grid.markNearby(4, 4, stamps, 10);
+    assertArrayEquals(new int[] { 0, 9, 9, 10, 10 }, stamps);
+  }
+
+  @Test
+  public void radiusZeroMarksOnlyTheCell() {
+    OccupancyGrid grid = new OccupancyGrid(3, 3, 0);
+    grid.place(1, 1, 0);
+    grid.place(1, 0, 1);
+    int[] stamps = new int[2];
+    grid.markNearby(1, 1, stamps, 1);
+    assertArrayEquals(new int[] { 1, 0 }, stamps);
+  }
+}
@@ -0,0 +1,90 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PhotoCollageCreatorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ThumbnailStore thumbnails;
+  private Library library;
+  private File target;
+  private int renders;
+
+  @Before
+  public void setUp() throws IOException {
+    thumbnails = new ThumbnailStore(tmp.newFolder("imageCache"));
+    ImageClassifier classifier = new ImageClassifier(new ImageClassifier.Config(),
+        new ColorCacheStore(new File(tmp.getRoot(), "colors")));
+    Random random = new Random(7);
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < 12; i++) {
+      // A color of its own with some noise, so cells match different images.
+      int color = random.nextInt(0x1000000);
+      BufferedImage image = new BufferedImage(24, 16, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < image.getHeight(); y++) {
+        for (int x = 0; x < image.getWidth(); x++) {
+          image.setRGB(x, y, color ^ random.nextInt(0x101010));
+        }
+      }
+      File file = new File(tmp.getRoot(), i + ".png");
+      ImageIO.write(image, "png", file);
+      images.add(new ClassifiedImage(file, classifier));
+    }
+    library = new Library(images, ColorIndex.Type.KD_TREE);
+    target = new File(tmp.getRoot(), "target.jpg");
+    Files.copy(TestUtils.getTestImageFiles()[0].toPath(), target.toPath());
+  }
+
+  /** Renders the collages of the target on <code>pool</code>, and returns their pixels. */
+  private List<int[]> render(boolean streamingOutput, ForkJoinPool pool) throws Exception {
+    // More than one collage, so they're written to the output directory.
+    PhotoCollageCreator creator = PhotoCollageCreator.newBuilder().setResizedWidth(40).setNumCols(2)
+        .setSmallImageWidth(6).setSmallImageHeight(4).setNoRepeatRadius(1).setStreamingOutput(streamingOutput)
+        .setOutDir(tmp.newFolder("out" + renders++)).build();
+    TileSource tiles = new TileCache(Long.MAX_VALUE, thumbnails);
+    List<int[]> res = new ArrayList<int[]>();
+    for (File outFile : creator.createCollage(target, library, tiles, pool, new AtomicBoolean())) {
+      BufferedImage image = ImageIO.read(outFile);
+      res.add(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()));
+    }
+    return res;
+  }
+
+  @Test
+  public void rendersTheSameOnAPool() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (boolean streamingOutput : new boolean[] { false, true }) {
+        List<int[]> serial = render(streamingOutput, null);
+        for (int i = 0; i < 3; i++) {
+          List<int[]> parallel = render(streamingOutput, pool);
+          assertEquals(serial.size(), parallel.size());
+          for (int j = 0; j < serial.size(); j++) {
+            assertArrayEquals("collage " + j + " streaming " + streamingOutput, serial.get(j), parallel.get(j));
+          }
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
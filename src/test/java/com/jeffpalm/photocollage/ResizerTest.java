@@ -0,0 +1,117 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ResizerTest {
+
+  private final static Resizer AREA_AVERAGE = new Resizer(Resizer.Method.AREA_AVERAGE, null);
+  private final static Resizer PROGRESSIVE = new Resizer(Resizer.Method.PROGRESSIVE, null);
+
+  private static int[] random(int n, long seed) {
+    Random random = new Random(seed);
+    int[] res = new int[n];
+    for (int i = 0; i < n; i++) {
+      res[i] = random.nextInt(0x1000000);
+    }
+    return res;
+  }
+
+  private static int maxChannelDifference(int[] a, int[] b) {
+    assertEquals(a.length, b.length);
+    int max = 0;
+    for (int i = 0; i < a.length; i++) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        max = Math.max(max, Math.abs(((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff)));
+      }
+    }
+    return max;
+  }
+
+  @Test
+  public void keepsFlatAreasFlat() throws Exception {
+    int[] src = new int[97 * 61];
+    Arrays.fill(src, 0x8040c0);
+    for (Resizer resizer : new Resizer[] { AREA_AVERAGE, PROGRESSIVE }) {
+      for (int[] size : new int[][] { { 13, 8 }, { 50, 31 }, { 200, 130 } }) {
+        for (int pixel : resizer.resize(src, 97, 61, size[0], size[1])) {
+          assertEquals(0x8040c0, pixel);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void averagesAreas() throws Exception {
+    // Columns alternate black and white, so the average of any box is known.
+    int[] src = new int[6 * 2];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = i % 2 == 0 ? 0 : 0xffffff;
+    }
+    assertArrayEquals(new int[] { 0x808080, 0x808080, 0x808080 }, AREA_AVERAGE.resize(src, 6, 2, 3, 1));
+    // Each of 4 columns covers 1.5 source columns: a whole one and half of the next.
+    int[] quarters = AREA_AVERAGE.resize(src, 6, 2, 4, 2);
+    assertEquals(0x555555, quarters[0]);
+    assertEquals(0x555555, quarters[1]);
+    assertEquals(0xaaaaaa, quarters[2]);
+    assertEquals(0xaaaaaa, quarters[3]);
+  }
+
+  @Test
+  public void progressiveIsCloseToAreaAverage() throws Exception {
+    int width = 640, height = 480;
+    int[] src = new int[width * height];
+    // A smooth gradient, where both methods should agree.
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        src[y * width + x] = ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | ((x + y) * 255 / (width + height));
+      }
+    }
+    assertTrue(maxChannelDifference(AREA_AVERAGE.resize(src, width, height, 40, 30),
+        PROGRESSIVE.resize(src, width, height, 40, 30)) <= 2);
+  }
+
+  @Test
+  public void parallelBandsMatch() throws Exception {
+    int[] src = random(733 * 511, 1);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (Resizer.Method method : Resizer.Method.values()) {
+        int[] expected = new Resizer(method, null).resize(src, 733, 511, 97, 67);
+        assertArrayEquals(expected, new Resizer(method, pool).resize(src, 733, 511, 97, 67));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void resizesCustomImages() throws Exception {
+    // Interleaved RGB bytes without alpha have no predefined type.
+    ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false,
+        false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    WritableRaster raster = colorModel.createCompatibleWritableRaster(60, 40);
+    BufferedImage image = new BufferedImage(colorModel, raster, false, null);
+    assertEquals(BufferedImage.TYPE_CUSTOM, image.getType());
+    for (int y = 0; y < 40; y++) {
+      for (int x = 0; x < 60; x++) {
+        image.setRGB(x, y, 0x336699);
+      }
+    }
+    BufferedImage resized = Util.resize(image, 20);
+    assertEquals(30, resized.getWidth());
+    assertEquals(20, resized.getHeight());
+    assertEquals(0x336699, resized.getRGB(10, 10) & 0xffffff);
+  }
+}
@@ -0,0 +1,61 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ScanColorIndexTest {
+
+  @Test
+  public void matchesLinearIndex() {
+    Random random = new Random(2);
+    // Sizes on both sides of a block.
+    for (int n : new int[] { 1, 7, 1024, 2500 }) {
+      int[] colors = new int[n];
+      for (int i = 0; i < n; i++) {
+        colors[i] = i > 0 && random.nextInt(5) == 0 ? colors[random.nextInt(i)] : random.nextInt(0x1000000);
+      }
+      ColorIndex linear = new LinearColorIndex(colors);
+      KNearest heap = new KNearest(1);
+      ColorIndex scan = new ScanColorIndex(colors);
+      for (int id = 0; id < n; id++) {
+        assertEquals(colors[id], scan.getColor(id));
+      }
+      for (int q = 0; q < 200; q++) {
+        int rgb = q % 2 == 0 ? random.nextInt(0x1000000) : colors[random.nextInt(n)];
+        assertEquals(linear.nearest(rgb), scan.nearest(rgb));
+
+        int maxDistanceSquared = random.nextInt(100) * random.nextInt(100);
+        IntList want = new IntList(), got = new IntList();
+        linear.withinDistance(rgb, maxDistanceSquared, want);
+        scan.withinDistance(rgb, maxDistanceSquared, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+
+        int k = 1 + random.nextInt(20);
+        want.clear();
+        got.clear();
+        linear.nearest(rgb, k, heap, want);
+        scan.nearest(rgb, k, heap, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+
+        want.clear();
+        got.clear();
+        linear.nearest(rgb, k, maxDistanceSquared, heap, want);
+        scan.nearest(rgb, k, maxDistanceSquared, heap, got);
+        assertArrayEquals(want.toArray(), got.toArray());
+      }
+    }
+  }
+
+  @Test
+  public void empty() {
+    ColorIndex scan = new ScanColorIndex(new int[0]);
+    assertEquals(-1, scan.nearest(0));
+    IntList out = new IntList();
+    scan.withinDistance(0, 100, out);
+    assertEquals(0, out.size());
+  }
+}
@@ -0,0 +1,128 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingPngOutputTest {
+
+  private final static int TILE_WIDTH = 7;
+  private final static int TILE_HEIGHT = 5;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static Tile newTile(Random random, boolean noisy) {
+    int[] pixels = new int[TILE_WIDTH * TILE_HEIGHT];
+    int base = random.nextInt(0x1000000);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = noisy ? random.nextInt(0x1000000) : (base + i * 0x010203) & 0xffffff;
+    }
+    return new Tile(null, TILE_WIDTH, TILE_HEIGHT, pixels);
+  }
+
+  private static void writeAll(Output output, Tile[][] tiles) throws IOException {
+    for (int y = 0; y < tiles.length; y++) {
+      for (int x = 0; x < tiles[y].length; x++) {
+        if (tiles[y][x] != null) {
+          output.write(tiles[y][x], x * TILE_WIDTH, y * TILE_HEIGHT);
+        }
+      }
+    }
+    output.close();
+  }
+
+  /** Writes each row of <code>tiles</code> a tile at a time on <code>pool</code>, as collages are composed. */
+  private static void writeAll(final Output output, final Tile[][] tiles, ForkJoinPool pool) throws IOException,
+      InterruptedException {
+    for (int y = 0; y < tiles.length; y++) {
+      final int row = y;
+      ParallelFor.run(pool, 0, tiles[y].length, 1, new ParallelFor.Body() {
+        @Override
+        public void run(int from, int to) throws IOException {
+          for (int x = from; x < to; x++) {
+            if (tiles[row][x] != null) {
+              output.write(tiles[row][x], x * TILE_WIDTH, row * TILE_HEIGHT);
+            }
+          }
+        }
+      });
+    }
+    output.close();
+  }
+
+  private static Tile[][] newTiles(Random random, int rows, int cols) {
+    Tile[][] tiles = new Tile[rows][cols];
+    for (int y = 0; y < rows; y++) {
+      for (int x = 0; x < cols; x++) {
+        // Leave a few cells empty to check that they come out black.
+        if (random.nextInt(10) > 0) {
+          tiles[y][x] = newTile(random, random.nextBoolean());
+        }
+      }
+    }
+    return tiles;
+  }
+
+  private static void assertSameImage(File expectedFile, File actualFile, int width, int height) throws IOException {
+    BufferedImage expected = ImageIO.read(expectedFile);
+    BufferedImage actual = ImageIO.read(actualFile);
+    assertEquals(width, actual.getWidth());
+    assertEquals(height, actual.getHeight());
+    assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+        actual.getRGB(0, 0, width, height, null, 0, width));
+  }
+
+  @Test
+  public void sameAsImageOutput() throws IOException {
+    int cols = 9, rows = 6;
+    Tile[][] tiles = newTiles(new Random(7), rows, cols);
+    // A last band that is only partly inside the image.
+    int width = cols * TILE_WIDTH, height = rows * TILE_HEIGHT - 2;
+
+    File expectedFile = tmp.newFile("expected.png");
+    File actualFile = tmp.newFile("actual.png");
+    writeAll(new ImageOutput().open(expectedFile, width, height), tiles);
+    writeAll(new StreamingPngOutput(TILE_HEIGHT).open(actualFile, width, height), tiles);
+    assertSameImage(expectedFile, actualFile, width, height);
+  }
+
+  @Test
+  public void concurrentWritesSameAsImageOutput() throws IOException, InterruptedException {
+    int cols = 64, rows = 40;
+    Tile[][] tiles = newTiles(new Random(11), rows, cols);
+    int width = cols * TILE_WIDTH, height = rows * TILE_HEIGHT;
+    File expectedFile = tmp.newFile("expected.png");
+    writeAll(new ImageOutput().open(expectedFile, width, height), tiles);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      // Every row's first write encodes the band before while the others in the row are copying theirs in.
+      for (int i = 0; i < 20; i++) {
+        File actualFile = tmp.newFile("actual" + i + ".png");
+        writeAll(new StreamingPngOutput(TILE_HEIGHT).open(actualFile, width, height), tiles, pool);
+        assertSameImage(expectedFile, actualFile, width, height);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void writeToEncodedBand() throws IOException {
+    Random random = new Random(7);
+    Output output = new StreamingPngOutput(TILE_HEIGHT).open(tmp.newFile("out.png"), TILE_WIDTH, 3 * TILE_HEIGHT);
+    output.write(newTile(random, false), 0, 2 * TILE_HEIGHT);
+    output.write(newTile(random, false), 0, 0);
+  }
+}
@@ -0,0 +1,85 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SummedAreaTableTest {
+
+  private static BufferedImage random(int width, int height, int type, long seed) {
+    Random random = new Random(seed);
+    BufferedImage res = new BufferedImage(width, height, type);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        res.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    return res;
+  }
+
+  private static int average(BufferedImage image, int firstRow, int lastRow, int firstCol, int lastCol) {
+    long red = 0, green = 0, blue = 0, count = 0;
+    for (int y = firstRow; y < lastRow; y++) {
+      for (int x = firstCol; x < lastCol; x++) {
+        int c = image.getRGB(x, y);
+        red += (c >> 16) & 0xff;
+        green += (c >> 8) & 0xff;
+        blue += c & 0xff;
+        count++;
+      }
+    }
+    if (count == 0) {
+      return 0;
+    }
+    return (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count);
+  }
+
+  @Test
+  public void averagesBoxes() throws Exception {
+    Random random = new Random(1);
+    for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_INT_ARGB }) {
+      BufferedImage image = random(37, 23, type, type);
+      SummedAreaTable table = SummedAreaTable.of(image);
+      assertEquals(average(image, 0, 23, 0, 37), table.getAverage(0, 23, 0, 37));
+      for (int i = 0; i < 200; i++) {
+        int firstRow = random.nextInt(23), lastRow = firstRow + random.nextInt(24 - firstRow);
+        int firstCol = random.nextInt(37), lastCol = firstCol + random.nextInt(38 - firstCol);
+        assertEquals(type + " " + firstRow + " " + lastRow + " " + firstCol + " " + lastCol,
+            average(image, firstRow, lastRow, firstCol, lastCol),
+            table.getAverage(firstRow, lastRow, firstCol, lastCol));
+      }
+    }
+  }
+
+  @Test
+  public void sumsWhiteImages() throws Exception {
+    // Every sum of a white image past 16M pixels wraps, but each box still comes out right.
+    BufferedImage image = new BufferedImage(4096, 4096, BufferedImage.TYPE_INT_RGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    Arrays.fill(pixels, 0xffffff);
+    SummedAreaTable table = SummedAreaTable.of(image);
+    assertEquals(0xffffff, table.getAverage(0, 4096, 0, 4096));
+    assertEquals(0xffffff, table.getAverage(1000, 4000, 17, 4095));
+    assertTrue(SummedAreaTable.fits(4096, 4112));
+    assertFalse(SummedAreaTable.fits(4096, 4113));
+  }
+
+  @Test
+  public void readsSubimages() throws Exception {
+    for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+      BufferedImage image = random(40, 30, type, 2).getSubimage(5, 7, 20, 10);
+      int[] row = new int[20];
+      for (int y = 0; y < 10; y++) {
+        Pixels.getRow(image, y, row);
+        assertArrayEquals(image.getRGB(0, y, 20, 1, null, 0, 20), row);
+      }
+      assertArrayEquals(image.getRGB(0, 0, 20, 10, null, 0, 20), Pixels.get(image));
+    }
+  }
+}
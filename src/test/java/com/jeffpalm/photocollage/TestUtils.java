@@ -22,4 +22,14 @@ final class TestUtils {
   static File getDataDir() {
     return new File(getDataDirName());
   }
+
+  static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
 }
@@ -0,0 +1,156 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumbnailStoreTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ThumbnailStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    store = new ThumbnailStore(tmp.newFolder("thumbnails"));
+  }
+
+  private File newImage(String dir, String name, int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, rgb);
+      }
+    }
+    File parent = new File(tmp.getRoot(), dir);
+    parent.mkdirs();
+    File file = new File(parent, name);
+    ImageIO.write(image, "jpg", file);
+    return file;
+  }
+
+  @Test
+  public void keysByContents() throws IOException {
+    File red = newImage("a", "IMG_0001.jpg", 0xff0000);
+    File blue = newImage("b", "IMG_0001.jpg", 0x0000ff);
+    File redCopy = newImage("c", "copy.jpg", 0xff0000);
+
+    File redThumbnail = store.get(red, 10, 8);
+    File blueThumbnail = store.get(blue, 10, 8);
+    assertFalse(redThumbnail.equals(blueThumbnail));
+    assertEquals(redThumbnail, store.get(redCopy, 10, 8));
+    assertFalse(redThumbnail.equals(store.get(red, 10, 10)));
+
+    String hash = store.getContentHash(red);
+    assertEquals(40, hash.length());
+    assertEquals(hash + ".jpg", redThumbnail.getName());
+    assertEquals(hash.substring(2, 4), redThumbnail.getParentFile().getName());
+    assertEquals(hash.substring(0, 2), redThumbnail.getParentFile().getParentFile().getName());
+    assertEquals("10x8", redThumbnail.getParentFile().getParentFile().getParentFile().getName());
+
+    BufferedImage thumbnail = ImageIO.read(redThumbnail);
+    assertEquals(10, thumbnail.getWidth());
+    assertEquals(8, thumbnail.getHeight());
+    int rgb = thumbnail.getRGB(5, 4);
+    assertTrue(((rgb >> 16) & 0xff) > 200 && (rgb & 0xff) < 50);
+  }
+
+  @Test
+  public void rehashesChangedFiles() throws IOException {
+    File file = newImage("a", "a.jpg", 0xff0000);
+    String hash = store.getContentHash(file);
+    newImage("a", "a.jpg", 0x00ff00);
+    file.setLastModified(file.lastModified() + 2000);
+    assertFalse(hash.equals(store.getContentHash(file)));
+  }
+
+  @Test
+  public void persistsHashesWithColors() throws IOException {
+    File file = newImage("a", "a.jpg", 0xff0000);
+    File base = new File(tmp.getRoot(), "cache");
+    ColorCacheStore cache = new ColorCacheStore(base);
+    int[] colors = { 1, 2, 3, 4, 5 };
+    cache.put(file, colors);
+    String hash = new ThumbnailStore(tmp.newFolder("t1"), cache).getContentHash(file);
+    cache.close();
+
+    cache = new ColorCacheStore(base);
+    assertEquals(hash, cache.getContentHash(file));
+    assertArrayEquals(colors, cache.get(file));
+    assertEquals(hash, new ThumbnailStore(tmp.newFolder("t2"), cache).getContentHash(file));
+    cache.put(file, new int[] { 6, 7, 8, 9, 10 });
+    assertEquals(hash, cache.getContentHash(file));
+
+    newImage("a", "a.jpg", 0x00ff00);
+    file.setLastModified(file.lastModified() + 2000);
+    assertNull(cache.getContentHash(file));
+    assertFalse(hash.equals(new ThumbnailStore(tmp.newFolder("t3"), cache).getContentHash(file)));
+    cache.close();
+  }
+
+  @Test
+  public void generatesOnceForConcurrentCallers() throws Exception {
+    final File file = newImage("a", "a.jpg", 0x123456);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<File> results = Collections.synchronizedList(new ArrayList<File>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            results.add(store.get(file, 12, 12));
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(8, results.size());
+    File thumbnail = results.get(0);
+    for (File result : results) {
+      assertEquals(thumbnail, result);
+    }
+    assertArrayEquals(new String[] { thumbnail.getName() }, thumbnail.getParentFile().list());
+  }
+
+  @Test
+  public void prewarm() throws Exception {
+    ImageClassifier classifier = new ImageClassifier();
+    List<ClassifiedImage> images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < 20; i++) {
+      images.add(new ClassifiedImage(newImage("lib", i + ".jpg", i * 0x0a0b0c), classifier));
+    }
+    File broken = new File(tmp.getRoot(), "broken.jpg");
+    broken.createNewFile();
+    images.add(new ClassifiedImage(broken, classifier));
+
+    List<ParallelClassifier.Failure> failures = store.prewarm(images, 6, 6, 4);
+    assertEquals(1, failures.size());
+    assertEquals(broken, failures.get(0).image.getFile());
+    for (ClassifiedImage image : images.subList(0, 20)) {
+      assertTrue(store.getThumbnailFile(image.getFile(), 6, 6).isFile());
+    }
+  }
+}
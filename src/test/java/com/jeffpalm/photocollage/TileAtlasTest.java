@@ -0,0 +1,130 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileAtlasTest {
+
+  private final static int WIDTH = 9;
+  private final static int HEIGHT = 6;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File dir;
+  private ThumbnailStore thumbnails;
+  private List<ClassifiedImage> images;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = tmp.newFolder("imageCache");
+    thumbnails = new ThumbnailStore(dir);
+    ImageClassifier classifier = new ImageClassifier();
+    Random random = new Random(3);
+    images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < 5; i++) {
+      // Wide, tall and small images, so some tiles are smaller than a cell.
+      int width = 10 + random.nextInt(30);
+      int height = 10 + random.nextInt(30);
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          image.setRGB(x, y, random.nextInt(0x1000000));
+        }
+      }
+      File file = new File(tmp.getRoot(), i + ".jpg");
+      ImageIO.write(image, "jpg", file);
+      images.add(new ClassifiedImage(file, classifier));
+    }
+  }
+
+  private static int[] pixels(Tile tile) {
+    int[] res = new int[tile.getWidth() * tile.getHeight()];
+    tile.copyTo(res, tile.getWidth(), tile.getHeight(), 0, 0);
+    return res;
+  }
+
+  private int[] thumbnailPixels(ClassifiedImage image) throws IOException {
+    BufferedImage thumbnail = ImageIO.read(thumbnails.get(image.getFile(), WIDTH, HEIGHT));
+    return pixels(Tile.crop(null, thumbnail, WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void sameAsThumbnails() throws Exception {
+    TileAtlas atlas = new TileAtlas(dir, WIDTH, HEIGHT, thumbnails);
+    atlas.prepare(images, WIDTH, HEIGHT, null);
+    assertEquals(images.size(), atlas.size());
+    for (ClassifiedImage image : images) {
+      assertArrayEquals(thumbnailPixels(image), pixels(atlas.get(image, WIDTH, HEIGHT)));
+    }
+    atlas.close();
+  }
+
+  @Test
+  public void reopensWithoutThumbnails() throws Exception {
+    List<int[]> expected = new ArrayList<int[]>();
+    for (ClassifiedImage image : images) {
+      expected.add(thumbnailPixels(image));
+    }
+    TileAtlas atlas = new TileAtlas(dir, WIDTH, HEIGHT, thumbnails);
+    atlas.prepare(images, WIDTH, HEIGHT, null);
+    atlas.close();
+
+    TestUtils.deleteRecursively(new File(dir, WIDTH + "x" + HEIGHT));
+    TileAtlas reopened = new TileAtlas(dir, WIDTH, HEIGHT, thumbnails);
+    assertEquals(images.size(), reopened.size());
+    for (int i = 0; i < images.size(); i++) {
+      assertArrayEquals(expected.get(i), pixels(reopened.get(images.get(i), WIDTH, HEIGHT)));
+    }
+    assertEquals(0, reopened.getAdded());
+    assertFalse(new File(dir, WIDTH + "x" + HEIGHT).exists());
+    reopened.close();
+  }
+
+  @Test
+  public void sharesSlots() throws Exception {
+    TileAtlas a = new TileAtlas(dir, WIDTH, HEIGHT, thumbnails);
+    TileAtlas b = new TileAtlas(dir, WIDTH, HEIGHT, new ThumbnailStore(dir));
+    a.get(images.get(0), WIDTH, HEIGHT);
+    b.get(images.get(1), WIDTH, HEIGHT);
+    // b picks up the tile a added instead of adding it again.
+    b.get(images.get(0), WIDTH, HEIGHT);
+    assertEquals(1, b.getAdded());
+    assertEquals(2, b.size());
+
+    // A copy of an image shares its slot.
+    File copy = new File(tmp.getRoot(), "copy.jpg");
+    Files.copy(images.get(1).getFile().toPath(), copy.toPath());
+    a.get(new ClassifiedImage(copy, new ImageClassifier()), WIDTH, HEIGHT);
+    assertEquals(2, a.size());
+    assertEquals(1, a.getAdded());
+    assertArrayEquals(pixels(b.get(images.get(1), WIDTH, HEIGHT)),
+        pixels(a.get(new ClassifiedImage(copy, new ImageClassifier()), WIDTH, HEIGHT)));
+    a.close();
+    b.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void otherCellSize() throws Exception {
+    TileAtlas atlas = new TileAtlas(dir, WIDTH, HEIGHT, thumbnails);
+    try {
+      atlas.get(images.get(0), WIDTH + 1, HEIGHT);
+    } finally {
+      atlas.close();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TileCacheTest {
+
+  private final static int WIDTH = 9;
+  private final static int HEIGHT = 6;
+  // Pixels and the object around them.
+  private final static int TILE_BYTES = 64 + WIDTH * HEIGHT * 4;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ThumbnailStore thumbnails;
+  private List<ClassifiedImage> images;
+
+  @Before
+  public void setUp() throws IOException {
+    thumbnails = new ThumbnailStore(tmp.newFolder("imageCache"));
+    ImageClassifier classifier = new ImageClassifier();
+    Random random = new Random(5);
+    images = new ArrayList<ClassifiedImage>();
+    for (int i = 0; i < 3; i++) {
+      // Larger than a cell in both directions, so every tile fills one.
+      BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+      for (int y = 0; y < image.getHeight(); y++) {
+        for (int x = 0; x < image.getWidth(); x++) {
+          image.setRGB(x, y, random.nextInt(0x1000000));
+        }
+      }
+      File file = new File(tmp.getRoot(), i + ".jpg");
+      ImageIO.write(image, "jpg", file);
+      images.add(new ClassifiedImage(file, classifier));
+    }
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedTileAtTheBudget() throws IOException {
+    TileCache cache = new TileCache(2 * TILE_BYTES, thumbnails);
+    Tile a = cache.get(images.get(0), WIDTH, HEIGHT);
+    assertEquals(TILE_BYTES, a.getByteSize());
+    Tile b = cache.get(images.get(1), WIDTH, HEIGHT);
+    assertSame(a, cache.get(images.get(0), WIDTH, HEIGHT));
+    assertEquals(0, cache.getEvictions());
+
+    // b was used longest ago.
+    cache.get(images.get(2), WIDTH, HEIGHT);
+    assertEquals(1, cache.getEvictions());
+    assertSame(a, cache.get(images.get(0), WIDTH, HEIGHT));
+    assertEquals(3, cache.getMisses());
+    assertNotSame(b, cache.get(images.get(1), WIDTH, HEIGHT));
+    assertEquals(4, cache.getMisses());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void countsBytesAfterEvictions() throws IOException {
+    TileCache cache = new TileCache(2 * TILE_BYTES, thumbnails);
+    for (int i = 0; i < 10; i++) {
+      cache.get(images.get(i % images.size()), WIDTH, HEIGHT);
+      assertEquals(Math.min(i + 1, 2) * TILE_BYTES, cache.getBytes());
+    }
+    assertEquals(8, cache.getEvictions());
+
+    // A tile larger than the budget is returned, but not kept.
+    TileCache small = new TileCache(TILE_BYTES - 1, thumbnails);
+    Tile a = small.get(images.get(0), WIDTH, HEIGHT);
+    assertEquals(0, small.getBytes());
+    assertEquals(1, small.getEvictions());
+    assertNotSame(a, small.get(images.get(0), WIDTH, HEIGHT));
+    assertEquals(0, small.getBytes());
+  }
+
+  @Test
+  public void loadsATileOnceForConcurrentGets() throws Exception {
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      // Each round is a new size, so its load has to resize the image and takes a while.
+      for (int round = 0; round < 10; round++) {
+        final TileCache cache = new TileCache(Long.MAX_VALUE, thumbnails);
+        final int width = WIDTH + round;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Tile>> gets = new ArrayList<Future<Tile>>();
+        for (int i = 0; i < threads; i++) {
+          gets.add(executor.submit(new Callable<Tile>() {
+            @Override
+            public Tile call() throws Exception {
+              start.await();
+              return cache.get(images.get(0), width, HEIGHT);
+            }
+          }));
+        }
+        start.countDown();
+        // Each load makes a new tile.
+        Tile tile = gets.get(0).get();
+        for (Future<Tile> get : gets) {
+          assertSame(tile, get.get());
+        }
+        assertEquals(threads, cache.getHits() + cache.getMisses());
+        assertEquals(tile.getByteSize(), cache.getBytes());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.jeffpalm.photocollage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UsageTrackerTest {
+
+  private static IntList ids(int... values) {
+    IntList res = new IntList();
+    for (int v : values) {
+      res.add(v);
+    }
+    return res;
+  }
+
+  @Test
+  public void prefersNeverUsedThenLeastRecentlyUsed() {
+    UsageTracker usage = new UsageTracker(5);
+    usage.use(1);
+    usage.use(3);
+    usage.use(2);
+    assertEquals(4, usage.leastRecentlyUsed(ids(1, 2, 3, 4), null, 0));
+    assertEquals(1, usage.leastRecentlyUsed(ids(1, 2, 3), null, 0));
+    assertEquals(3, usage.leastRecentlyUsed(ids(2, 3), null, 0));
+    assertEquals(-1, usage.getLastUsed(0));
+    assertEquals(2, usage.getLastUsed(2));
+  }
+
+  @Test
+  public void leavesOutExcluded() {
+    UsageTracker usage = new UsageTracker(4);
+    int[] excluded = new int[4];
+    excluded[0] = 7;
+    excluded[2] = 7;
+    excluded[3] = 6;
+    assertEquals(1, usage.leastRecentlyUsed(ids(0, 1, 2), excluded, 7));
+    assertEquals(3, usage.leastRecentlyUsed(ids(0, 2, 3), excluded, 7));
+    assertEquals(UsageTracker.NONE, usage.leastRecentlyUsed(ids(0, 2), excluded, 7));
+  }
+}